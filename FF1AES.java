@@ -0,0 +1,135 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Pure-Java AES-128 block encryption for the FF1 round function.
+*/
+
+/* FF1AES encrypts single 16-byte blocks with AES-128 (FIPS-197) using the usual four
+   32-bit lookup tables, one per column rotation, so a round is 16 table reads and XORs.
+   Only encryption is needed: FFX and FF1 use AES in the forward direction for both
+   Encrypt() and Decrypt().
+
+   The key schedule is expanded once in the constructor and a call allocates nothing,
+   so a block costs only its rounds. FF1Round uses it where a Cipher call costs more than
+   the block, (some Android runtimes,) and the JCE Cipher elsewhere, where it is usually
+   backed by AES instructions, (see FF1Round.tableAES().) FFX_aes checks this class
+   against JCE and compares their speed.
+
+   The tables are built once, at class load, from the field arithmetic rather than typed
+   in. Table lookups are indexed by key-dependent data, so unlike AES instructions this
+   is not constant-time with respect to the cache. That is the usual trade for software
+   AES; use JCE where co-resident code could measure cache timing.
+
+   An instance is immutable after construction and may be shared by any number of threads.
+*/
+final class FF1AES {
+
+   private static final int[] SBOX = new int[256];   // S-box, (values 0..255)
+   private static final int[] T0   = new int[256];   // SubBytes + MixColumns, row 0
+   private static final int[] T1   = new int[256];   // ..rotated by 8 bits
+   private static final int[] T2   = new int[256];   // ..rotated by 16 bits
+   private static final int[] T3   = new int[256];   // ..rotated by 24 bits
+
+   static {
+      // S-box: walk GF(2^8) with p = 3^k and q = 3^-k, then apply the affine transform
+      int p = 1;
+      int q = 1;
+      do {
+         p = p ^ ((p << 1) & 0xFF) ^ (((p & 0x80) != 0) ? 0x1B : 0);
+         q ^= q << 1;
+         q ^= q << 2;
+         q ^= q << 4;
+         q &= 0xFF;
+         if ((q & 0x80) != 0) {
+            q ^= 0x09;
+         }
+         int x = q ^ rotl8(q, 1) ^ rotl8(q, 2) ^ rotl8(q, 3) ^ rotl8(q, 4);
+         SBOX[p] = (x ^ 0x63) & 0xFF;
+      } while (p != 1);
+      SBOX[0] = 0x63;                                // 0 has no inverse
+
+      for (int x=0; x<256; x=x+1) {
+         int s  = SBOX[x];
+         int s2 = xtime(s);
+         int t  = (s2 << 24) | (s << 16) | (s << 8) | (s2 ^ s); // column (2s, s, s, 3s)
+         T0[x]  = t;
+         T1[x]  = Integer.rotateRight(t, 8);
+         T2[x]  = Integer.rotateRight(t, 16);
+         T3[x]  = Integer.rotateRight(t, 24);
+      }
+   }
+
+   private static int rotl8(int x, int s) {
+      return ((x << s) | (x >>> (8 - s))) & 0xFF;
+   }
+
+   private static int xtime(int x) {                 // x * 2 in GF(2^8)
+      return ((x << 1) ^ (((x & 0x80) != 0) ? 0x1B : 0)) & 0xFF;
+   }
+
+   private final int[] rk = new int[44];             // expanded key, 11 round keys
+
+   /* Constructor - key must be 16 bytes, (AES-128.) */
+   FF1AES(byte[] key) throws IllegalArgumentException {
+      if (key == null || key.length != 16) {
+         throw new IllegalArgumentException("FF1AES: key must be 16 bytes");
+      }
+      for (int i=0; i<4; i=i+1) {
+         rk[i] = getBE32(key, 4*i);
+      }
+      int rcon = 0x01;
+      for (int i=4; i<44; i=i+1) {
+         int t = rk[i-1];
+         if (i % 4 == 0) {
+            t = subWord(Integer.rotateLeft(t, 8)) ^ (rcon << 24);
+            rcon = xtime(rcon);
+         }
+         rk[i] = rk[i-4] ^ t;
+      }
+   }
+
+   private static int subWord(int w) {
+      return (SBOX[w >>> 24] << 24) | (SBOX[(w >>> 16) & 0xFF] << 16)
+           | (SBOX[(w >>> 8) & 0xFF] << 8) | SBOX[w & 0xFF];
+   }
+
+   /* encryptBlock() - out[outOff..+15] = AES(in[inOff..+15]). in and out may overlap. */
+   void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+      int[] k = rk;
+      int s0 = getBE32(in, inOff)      ^ k[0];
+      int s1 = getBE32(in, inOff + 4)  ^ k[1];
+      int s2 = getBE32(in, inOff + 8)  ^ k[2];
+      int s3 = getBE32(in, inOff + 12) ^ k[3];
+      for (int r=4; r<40; r=r+4) {                  // rounds 1..9
+         int t0 = T0[s0 >>> 24] ^ T1[(s1 >>> 16) & 0xFF] ^ T2[(s2 >>> 8) & 0xFF] ^ T3[s3 & 0xFF] ^ k[r];
+         int t1 = T0[s1 >>> 24] ^ T1[(s2 >>> 16) & 0xFF] ^ T2[(s3 >>> 8) & 0xFF] ^ T3[s0 & 0xFF] ^ k[r+1];
+         int t2 = T0[s2 >>> 24] ^ T1[(s3 >>> 16) & 0xFF] ^ T2[(s0 >>> 8) & 0xFF] ^ T3[s1 & 0xFF] ^ k[r+2];
+         int t3 = T0[s3 >>> 24] ^ T1[(s0 >>> 16) & 0xFF] ^ T2[(s1 >>> 8) & 0xFF] ^ T3[s2 & 0xFF] ^ k[r+3];
+         s0 = t0;
+         s1 = t1;
+         s2 = t2;
+         s3 = t3;
+      }
+      // Round 10 has no MixColumns
+      putBE32(out, outOff,      last(s0, s1, s2, s3) ^ k[40]);
+      putBE32(out, outOff + 4,  last(s1, s2, s3, s0) ^ k[41]);
+      putBE32(out, outOff + 8,  last(s2, s3, s0, s1) ^ k[42]);
+      putBE32(out, outOff + 12, last(s3, s0, s1, s2) ^ k[43]);
+   }
+
+   /* last() - SubBytes and ShiftRows for one output column. */
+   private static int last(int a, int b, int c, int d) {
+      return (SBOX[a >>> 24] << 24) | (SBOX[(b >>> 16) & 0xFF] << 16)
+           | (SBOX[(c >>> 8) & 0xFF] << 8) | SBOX[d & 0xFF];
+   }
+
+   private static int getBE32(byte[] b, int off) {
+      return (b[off] << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+   }
+
+   private static void putBE32(byte[] b, int off, int v) {
+      b[off]   = (byte) (v >>> 24);
+      b[off+1] = (byte) (v >>> 16);
+      b[off+2] = (byte) (v >>> 8);
+      b[off+3] = (byte) v;
+   }
+
+}
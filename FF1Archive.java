@@ -0,0 +1,529 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Indexed archive of encrypted ADS-B frames, with time-range queries.
+*/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/* FF1Archive stores encrypted 14-byte frames, (tweak byte first,) with their timestamps,
+   so that one time window of a large capture can be found and decrypted without reading
+   the rest. All numbers are big-endian.
+
+      file    = header, block*, index, trailer
+      header  = "FFXA", version (2), blockFrames (2), engine (8)                  16 bytes
+      block   = "FFXB", keyId (4), count (4), crc (4), first (8), last (8),       32 bytes
+                then count records of: delta (4), frame (14)                      18 bytes each
+      index   = one entry per block: offset (8), first (8), last (8), keyId (4),
+                count (4)                                                         32 bytes each
+      trailer = index offset (8), blocks (4), "FFXI"                              16 bytes
+
+   - engine is the FF1Engine.create() name of the engine that encrypted the frames, in
+     ASCII padded with zeros, so the Reader can insist on a matching one.
+   - Timestamps are longs in whatever unit the writer uses, (e.g. the 12 MHz ticks of
+     AVR "@" lines,) and must not go backwards. A record keeps its offset from the
+     block's first timestamp in 31 bits; bit 31 marks a rejected frame, whose payload
+     was zeroed. A frame more than 2^31-1 ticks after its block's first starts a new
+     block.
+   - The Writer only takes engines whose Decrypt() undoes every Encrypt(), ("bits", the
+     default, or "nist".) FF1LS80 and its packed twins cannot undo a few percent of
+     frames, (the reference's short-byte quirks,) so they neither write archives nor,
+     (the Reader only takes the kind a file names,) read them. As a guard the Writer
+     decrypts each block again before writing it: a frame that does not come back as it
+     went in is reported as an error and stored rejected, so every frame a query returns
+     is exactly the one written, or is marked rejected.
+   - A block holds frames under one key ID only. crc is CRC32 over its records.
+   - Blocks are in time order, so the index is sorted on first and on last, and a query
+     finds its first block by binary search. The index only costs 32 bytes per block,
+     (about 4 KB per million frames at 4096 frames per block,) so it is read whole.
+   - A file whose writer never finished, (no trailer,) is recovered by walking the block
+     headers from the start; a torn last block is dropped.
+
+   Writer encrypts each block with one encryptBatch() call, (and checks it with one
+   decryptBatch(),) as it fills. Reader.query() reads the blocks of a time window, (a few
+   at a time, ahead of the caller, each into its pool thread's reused heap buffer,)
+   decrypts them as fork-join tasks with decryptBatch() under their own key IDs, and
+   hands the frames inside the window to a Sink in time order.
+*/
+final class FF1Archive {
+
+   static final int FRAME   = FF1LS80Packed.FRAME_BYTES;
+   static final int RECORD  = 4 + FRAME;
+   static final int HEADER  = 16;
+   static final int BLOCK   = 32;           // block header
+   static final int ENTRY   = 32;           // index entry
+   static final int TRAILER = 16;
+   static final int MAGIC_FILE  = 0x46465841; // "FFXA"
+   static final int MAGIC_BLOCK = 0x46465842; // "FFXB"
+   static final int MAGIC_INDEX = 0x46465849; // "FFXI"
+   static final int VERSION = 1;
+   static final int REJECTED = 0x80000000;  // record flag, (engine rejected the frame)
+   private static final byte[] ZERO = new byte[FRAME-1];
+
+   /* engineName() - the FF1Engine.create() name of an engine, (null for any other class.) */
+   static String engineName(FF1Engine e) {
+      if (e instanceof FF1Lanes)      return "lanes";   // before its superclass
+      if (e instanceof FF1LS80Packed) return "packed";
+      if (e instanceof FF1LS80)       return "ls80";
+      if (e instanceof FF1Bits)       return "bits";
+      if (e instanceof FF1NIST)       return "nist";
+      return null;
+   }
+
+   /* Sink - receives the frames of a query, one at a time, in time order. The frame is
+      at frame[off..off+13] and only valid during the call. status is 1 if the engine
+      rejected it, (on writing or on reading,) and its payload is zeros, else 0.
+   */
+   interface Sink {
+      void frame(long time, int keyId, byte[] frame, int off, int status);
+   }
+
+   /*-Writer-----------------------------------------------------------------*/
+
+   static final class Writer implements AutoCloseable {
+      final FileChannel ch;
+      final int    blockFrames;
+      final String engineName;              // FF1Engine.create() name, "bits" or "nist"
+      private FF1Batch engine;
+      private int keyId;
+
+      // The open block, plaintext until it is flushed.
+      private final long[]    times;
+      private final byte[]    tweak;
+      private final byte[][]  payload;
+      private final byte[][]  plain, check; // payload before encryption, and decrypted again
+      private final boolean[] failed, undo;
+      private int  count;
+      private long lastTime = Long.MIN_VALUE;
+
+      private final ByteBuffer buf;         // one block, encoded
+      private ByteBuffer index = ByteBuffer.allocate(64 * ENTRY);
+      private int  blocks;
+      private long frames, rejected;
+
+      /* Constructor creates, (or truncates,) path for "bits" engines. blockFrames is
+         1..65535.
+      */
+      Writer(Path path, int blockFrames) throws IOException {
+         this(path, blockFrames, "bits");
+      }
+
+      /* Constructor for engines of one kind, by FF1Engine.create() name, ("bits" or "nist".) */
+      Writer(Path path, int blockFrames, String engineName) throws IOException {
+         if (blockFrames < 1 || blockFrames > 0xFFFF) {
+            FF1Metrics.error("FF1Archive.Writer: Error - block size ("+blockFrames+") is not 1..65535.");
+            throw new IllegalArgumentException();
+         }
+         if (!"bits".equals(engineName) && !"nist".equals(engineName)) {
+            FF1Metrics.error("FF1Archive.Writer: Error - engine ("+engineName+") cannot decrypt every frame, (use bits or nist.)");
+            throw new IllegalArgumentException();
+         }
+         this.blockFrames = blockFrames;
+         this.engineName  = engineName;
+         times   = new long[blockFrames];
+         tweak   = new byte[blockFrames];
+         payload = new byte[blockFrames][FRAME-1];
+         plain   = new byte[blockFrames][FRAME-1];
+         check   = new byte[blockFrames][FRAME-1];
+         failed  = new boolean[blockFrames];
+         undo    = new boolean[blockFrames];
+         buf     = ByteBuffer.allocate(BLOCK + blockFrames * RECORD);
+         ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING);
+         ByteBuffer h = ByteBuffer.allocate(HEADER);
+         h.putInt(MAGIC_FILE).putShort((short) VERSION).putShort((short) blockFrames)
+          .put(java.util.Arrays.copyOf(engineName.getBytes(StandardCharsets.US_ASCII), 8));
+         h.flip();
+         write(h);
+      }
+
+      /* key() sets the key for the frames that follow; the open block is closed. engine
+         must be of the archive's kind, (engineName.)
+      */
+      void key(int keyId, FF1Batch engine) throws IOException {
+         if (!engineName.equals(engineName(engine))) {
+            FF1Metrics.error("FF1Archive.key: Error - engine ("+engineName(engine)+") is not ("+engineName+").");
+            throw new IllegalArgumentException();
+         }
+         flush();
+         this.keyId  = keyId;
+         this.engine = engine;
+      }
+
+      /* append() adds the plaintext frame at frame[off..off+13], taken at time. */
+      void append(long time, byte[] frame, int off) throws IOException {
+         if (engine == null) {
+            FF1Metrics.error("FF1Archive.append: Error - no key, (call key() first.)");
+            throw new IllegalArgumentException();
+         }
+         if (time < lastTime) {
+            FF1Metrics.error("FF1Archive.append: Error - time ("+time+") is before ("+lastTime+").");
+            throw new IllegalArgumentException();
+         }
+         if (count == blockFrames || (count > 0 && time - times[0] > Integer.MAX_VALUE)) {
+            flush();
+         }
+         times[count] = time;
+         tweak[count] = frame[off];
+         System.arraycopy(frame, off+1, payload[count], 0, FRAME-1);
+         count = count + 1;
+         lastTime = time;
+      }
+
+      /* flush() encrypts, checks and writes the open block, if any. */
+      void flush() throws IOException {
+         if (count == 0) {
+            return;
+         }
+         for (int i=0; i<count; i=i+1) {
+            System.arraycopy(payload[i], 0, plain[i], 0, FRAME-1);
+         }
+         engine.encryptBatch(tweak, payload, count, failed);
+         for (int i=0; i<count; i=i+1) {
+            System.arraycopy(payload[i], 0, check[i], 0, FRAME-1);
+         }
+         engine.decryptBatch(tweak, check, count, undo);
+         int bad = 0;
+         for (int i=0; i<count; i=i+1) {
+            failed[i] = failed[i] || undo[i] || !java.util.Arrays.equals(check[i], plain[i]);
+            bad = bad + (failed[i] ? 1 : 0);
+         }
+         if (bad > 0) {
+            FF1Metrics.error("FF1Archive.flush: Error - "+bad+" of "+count+" frames did not survive a round trip under ("+engineName+"); stored rejected.");
+         }
+         long offset = ch.position();
+         buf.clear();
+         buf.position(BLOCK);
+         for (int i=0; i<count; i=i+1) {
+            int delta = (int) (times[i] - times[0]);
+            buf.putInt(failed[i] ? delta | REJECTED : delta);
+            buf.put(tweak[i]);
+            if (failed[i]) buf.put(ZERO);
+            else           buf.put(payload[i]);
+         }
+         CRC32 crc = new CRC32();
+         crc.update(buf.array(), BLOCK, count * RECORD);
+         buf.putInt(0, MAGIC_BLOCK).putInt(4, keyId).putInt(8, count).putInt(12, (int) crc.getValue())
+            .putLong(16, times[0]).putLong(24, times[count-1]);
+         buf.flip();
+         write(buf);
+         if (index.remaining() < ENTRY) {
+            ByteBuffer bigger = ByteBuffer.allocate(index.capacity() * 2);
+            index.flip();
+            index = bigger.put(index);
+         }
+         index.putLong(offset).putLong(times[0]).putLong(times[count-1]).putInt(keyId).putInt(count);
+         blocks   = blocks + 1;
+         frames   = frames + count;
+         rejected = rejected + bad;
+         count = 0;
+      }
+
+      /* close() writes the last block, the index and the trailer. */
+      public void close() throws IOException {
+         try {
+            if (engine != null) {
+               flush();
+            }
+            long at = ch.position();
+            index.flip();
+            write(index);
+            ByteBuffer t = ByteBuffer.allocate(TRAILER);
+            t.putLong(at).putInt(blocks).putInt(MAGIC_INDEX);
+            t.flip();
+            write(t);
+         }
+         finally {
+            ch.close();
+         }
+      }
+
+      private void write(ByteBuffer b) throws IOException {
+         while (b.hasRemaining()) {
+            ch.write(b);
+         }
+      }
+
+      /* frames(), rejected(), blocks() - written so far. */
+      long frames()   { return frames; }
+      long rejected() { return rejected; }
+      int  blocks()   { return blocks; }
+   }
+
+   /*-Reader-----------------------------------------------------------------*/
+
+   static final class Reader implements AutoCloseable {
+      final FileChannel ch;
+      final int    blockFrames;
+      final String engineName;               // FF1Engine.create() name of the writer's engine
+      final boolean recovered;               // true if the index was rebuilt by a scan
+      final long[] offset, first, last;      // per block, in file order
+      final int[]  keyId, count;
+
+      private final ThreadLocal<ByteBuffer> blockBuf = new ThreadLocal<ByteBuffer>();
+
+      Reader(Path path) throws IOException {
+         ch = FileChannel.open(path, StandardOpenOption.READ);
+         long size = ch.size();
+         ByteBuffer h = read(0, HEADER);
+         int version = (h.limit() < HEADER) ? 0 : h.getShort(4);
+         if (h.limit() < HEADER || h.getInt(0) != MAGIC_FILE || version != VERSION) {
+            ch.close();
+            FF1Metrics.error("FF1Archive.Reader: Error - ("+path+") is not a version "+VERSION+" archive.");
+            throw new IllegalArgumentException();
+         }
+         blockFrames = h.getShort(6) & 0xFFFF;
+         int len = 0;
+         while (len < 8 && h.get(8 + len) != 0) {
+            len = len + 1;
+         }
+         engineName = new String(h.array(), 8, len, StandardCharsets.US_ASCII);
+         ByteBuffer t = (size >= HEADER + TRAILER) ? read(size - TRAILER, TRAILER) : null;
+         ByteBuffer ix;
+         int n;
+         if (t != null && t.getInt(12) == MAGIC_INDEX) {
+            n  = t.getInt(8);
+            ix = read(t.getLong(0), n * ENTRY);
+            recovered = false;
+         }
+         else {
+            ix = scan(size);
+            n  = ix.limit() / ENTRY;
+            recovered = true;
+         }
+         offset = new long[n];
+         first  = new long[n];
+         last   = new long[n];
+         keyId  = new int[n];
+         count  = new int[n];
+         for (int i=0; i<n; i=i+1) {
+            offset[i] = ix.getLong(i*ENTRY);
+            first[i]  = ix.getLong(i*ENTRY + 8);
+            last[i]   = ix.getLong(i*ENTRY + 16);
+            keyId[i]  = ix.getInt(i*ENTRY + 24);
+            count[i]  = ix.getInt(i*ENTRY + 28);
+         }
+      }
+
+      /* scan() rebuilds the index from the block headers, (a file left without one.) */
+      private ByteBuffer scan(long size) throws IOException {
+         ByteBuffer ix = ByteBuffer.allocate(64 * ENTRY);
+         long at = HEADER;
+         while (at + BLOCK <= size) {
+            ByteBuffer b = read(at, BLOCK);
+            int n = b.getInt(8);
+            if (b.getInt(0) != MAGIC_BLOCK || n < 1 || n > blockFrames
+                  || at + BLOCK + (long) n * RECORD > size) {
+               break;                          // torn or foreign: stop here
+            }
+            if (ix.remaining() < ENTRY) {
+               ByteBuffer bigger = ByteBuffer.allocate(ix.capacity() * 2);
+               ix.flip();
+               ix = bigger.put(ix);
+            }
+            ix.putLong(at).putLong(b.getLong(16)).putLong(b.getLong(24)).putInt(b.getInt(4)).putInt(n);
+            at = at + BLOCK + (long) n * RECORD;
+         }
+         ix.flip();
+         return ix;
+      }
+
+      private ByteBuffer read(long pos, int len) throws IOException {
+         ByteBuffer b = ByteBuffer.allocate(len);
+         read(b, pos);
+         b.flip();
+         return b;
+      }
+
+      /* read() fills b from pos on, (short only at the end of the file.) */
+      private void read(ByteBuffer b, long pos) throws IOException {
+         long at = pos - b.position();
+         while (b.hasRemaining()) {
+            if (ch.read(b, at + b.position()) < 0) {
+               break;
+            }
+         }
+      }
+
+      public void close() throws IOException {
+         ch.close();
+      }
+
+      /* blocks() - blocks in the file; frames() - frames in them. */
+      int blocks() {
+         return offset.length;
+      }
+
+      long frames() {
+         long n = 0;
+         for (int c : count) {
+            n = n + c;
+         }
+         return n;
+      }
+
+      /* firstBlock() - the first block whose last timestamp is at or after from. */
+      int firstBlock(long from) {
+         int lo = 0, hi = offset.length;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (last[mid] < from) lo = mid + 1;
+            else                  hi = mid;
+         }
+         return lo;
+      }
+
+      /* query() decrypts the frames timed from..to, (inclusive,) and hands them to sink in
+         time order. engines maps a key ID to its prepared engine, which must be of the
+         kind the file names, (engineName.) Up to 2 blocks per pool thread are decrypted
+         ahead of the sink. Returns the number of frames delivered.
+      */
+      long query(long from, long to, IntFunction<? extends FF1Batch> engines, ForkJoinPool pool,
+                 Sink sink) throws IOException {
+         int ahead = 2 * pool.getParallelism();
+         ArrayDeque<ForkJoinTask<Block>> window = new ArrayDeque<ForkJoinTask<Block>>();
+         long delivered = 0;
+         int next = firstBlock(from);
+         while (next < offset.length && first[next] <= to && window.size() < ahead) {
+            window.add(pool.submit(new Block(next, from, to, engine(engines, keyId[next]))));
+            next = next + 1;
+         }
+         while (!window.isEmpty()) {
+            Block b = window.poll().join();
+            if (next < offset.length && first[next] <= to) {
+               window.add(pool.submit(new Block(next, from, to, engine(engines, keyId[next]))));
+               next = next + 1;
+            }
+            if (b.error != null) {
+               for (ForkJoinTask<Block> f : window) {
+                  f.cancel(false);
+               }
+               throw b.error;
+            }
+            for (int i=0; i<b.n; i=i+1) {
+               sink.frame(b.times[i], b.keyId, b.frames, i*FRAME, b.failed[i] ? 1 : 0);
+            }
+            delivered = delivered + b.n;
+         }
+         return delivered;
+      }
+
+      /* query() with the engines of a registry, (e.g. new FF1Keys(reader.engineName, ...).) */
+      long query(long from, long to, final FF1Keys keys, ForkJoinPool pool, Sink sink)
+            throws IOException {
+         return query(from, to, id -> {
+            FF1Engine e = keys.engine(id);
+            return (e instanceof FF1Batch) ? (FF1Batch) e : null;
+         }, pool, sink);
+      }
+
+      /* engine() - the engine for key ID id, if it is of the file's kind. */
+      private FF1Batch engine(IntFunction<? extends FF1Batch> engines, int id) {
+         FF1Batch e = engines.apply(id);
+         String name = engineName(e);
+         if (!engineName.equals(name)) {
+            FF1Metrics.error("FF1Archive.query: Error - engine ("+name+") for key ID ("+id+") is not ("+engineName+").");
+            throw new IllegalArgumentException();
+         }
+         return e;
+      }
+
+      /* Block - one block of a query: read, checked, filtered to the window, decrypted. */
+      final class Block extends RecursiveTask<Block> {
+         private static final long serialVersionUID = 1L; // never serialized, (ForkJoinTask is Serializable)
+         final int  i;
+         final long from, to;
+         final FF1Batch engine;
+         final int  keyId;
+         long[]    times;
+         byte[]    frames;
+         boolean[] failed;
+         int       n;
+         IOException error;
+
+         Block(int i, long from, long to, FF1Batch engine) {
+            this.i      = i;
+            this.from   = from;
+            this.to     = to;
+            this.engine = engine;
+            this.keyId  = Reader.this.keyId[i];
+         }
+
+         protected Block compute() {
+            try {
+               int c = count[i];
+               ByteBuffer m = blockBuf.get();
+               if (m == null || m.capacity() < BLOCK + c * RECORD) {
+                  m = ByteBuffer.allocate(BLOCK + Math.max(c, blockFrames) * RECORD);
+                  blockBuf.set(m);
+               }
+               m.clear();
+               m.limit(BLOCK + c * RECORD);
+               read(m, offset[i]);
+               byte[] rec = m.array();            // records from BLOCK on
+               CRC32 crc = new CRC32();
+               crc.update(rec, BLOCK, c * RECORD);
+               if (m.hasRemaining() || m.getInt(0) != MAGIC_BLOCK || (int) crc.getValue() != m.getInt(12)) {
+                  throw new IOException("FF1Archive: block " + i + " at " + offset[i] + " is damaged");
+               }
+               long base = m.getLong(16);
+               times  = new long[c];
+               frames = new byte[c * FRAME];
+               failed = new boolean[c];
+               byte[]   tweak   = new byte[c];
+               byte[][] payload = new byte[c][FRAME-1];
+               int[]    sent    = new int[c];    // indexes of the frames sent to the engine
+               int      k       = 0;
+               for (int r=0; r<c; r=r+1) {
+                  int  d = getInt(rec, BLOCK + r*RECORD);
+                  long t = base + (d & ~REJECTED);
+                  if (t < from || t > to) {
+                     continue;
+                  }
+                  times[n] = t;
+                  System.arraycopy(rec, BLOCK + r*RECORD + 4, frames, n*FRAME, FRAME);
+                  if ((d & REJECTED) != 0) {
+                     failed[n] = true;
+                  }
+                  else {
+                     tweak[k] = rec[BLOCK + r*RECORD + 4];
+                     System.arraycopy(rec, BLOCK + r*RECORD + 5, payload[k], 0, FRAME-1);
+                     sent[k] = n;
+                     k = k + 1;
+                  }
+                  n = n + 1;
+               }
+               boolean[] bad = new boolean[k];
+               engine.decryptBatch(tweak, payload, k, bad);
+               for (int j=0; j<k; j=j+1) {
+                  int at = sent[j] * FRAME;
+                  if (bad[j]) {
+                     failed[sent[j]] = true;
+                     java.util.Arrays.fill(frames, at + 1, at + FRAME, (byte) 0);
+                  }
+                  else {
+                     System.arraycopy(payload[j], 0, frames, at + 1, FRAME-1);
+                  }
+               }
+            }
+            catch (IOException e) {
+               error = e;
+            }
+            return this;
+         }
+      }
+
+      private static int getInt(byte[] b, int off) {
+         return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+      }
+   }
+
+}
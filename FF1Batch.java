@@ -0,0 +1,25 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   The batch calling shape shared by the FF1 engines that have one.
+*/
+
+/* FF1Batch is an FF1Engine that also takes many ADS-B messages in one call, (see
+   FF1LS80Packed.encryptBatch() for the contract):
+   - Message k is M[k], in place, under the ADS-B tweak byte preTweak[k].
+   - An unknown length rejects the whole batch with IllegalArgumentException before
+     anything is changed.
+   - failed[k], (failed may be null,) is set if message k was not transformed, and
+     cleared if it was. If AES itself fails every message not already finished is
+     flagged, (FF1Lanes finishes one length at a time and FF1NIST one message at a
+     time; FF1LS80Packed and FF1Bits finish every message together, so they flag all.)
+   - The return value is the number of failed messages.
+   FF1LS80Packed and FF1Lanes fail where the reference's short-byte quirks would; FF1Bits
+   and FF1NIST only fail on an AES error.
+*/
+public interface FF1Batch extends FF1Engine {
+
+   int encryptBatch(byte[] preTweak, byte[][] Xi, int count, boolean[] failed)
+         throws IllegalArgumentException;
+   int decryptBatch(byte[] preTweak, byte[][] Yi, int count, boolean[] failed)
+         throws IllegalArgumentException;
+
+}
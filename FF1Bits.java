@@ -0,0 +1,373 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Packed-word engine for payloads of any bit length, (Mode-S short and long frames.)
+*/
+import java.security.GeneralSecurityException;
+import javax.crypto.spec.SecretKeySpec;
+
+/* FF1Bits is FF1 method 1 on messages of any length n from 16 to 128 bits, not only
+   whole bytes, so a 56-bit Mode-S short frame or an odd-sized payload is encrypted as
+   it is instead of being padded to 88 bits by the caller, (and paying 44 rounds of AES
+   for it.) The message is the low n bits of ceil(n/8) bytes, in FF1LS80Packed's bit
+   order: bit i is bit (i%8) of byte (i/8). The bits above n in the last byte are not
+   part of the message and are left as they were.
+
+   The split and round count come from an FF1Policy, through planBits(): any split that
+   leaves both halves at least 8 bits and B at most 120 bits. The default, MODE_S, is
+   FF1LS80's n-80 split from 88 bits up and the balanced Addendum split below it. Each
+   added length's FF1Plan, (split, rounds, masks and pad words,) is compiled once into a
+   table indexed by n itself, so a stream that changes length on every message costs one
+   array load per message and nothing is recomputed.
+
+   The round is FF1LS80Packed's: F(B) is AES(Tweak XOR (B || PKCS5 pad)) with B as its
+   Bsize bytes. FF1Bits does not reproduce the reference's short-byte quirks, (see
+   FF1LS80Packed,) so it never rejects a message: every length is a permutation and
+   Decrypt() always inverts Encrypt(), (only an AES failure throws, IllegalStateException.)
+   For 88..128 bits under MODE_S the ciphertexts are FF1LS80's for every message the
+   reference handles cleanly, and differ only where it would throw or leave a stale
+   byte. One instance can be shared by any number of threads.
+*/
+public class FF1Bits implements FF1Batch {
+
+   static final int MIN_BITS = 16;
+   static final int MAX_BITS = 128;
+
+   volatile FF1Plan[] plans = new FF1Plan[MAX_BITS+1]; // valid message sizes, indexed by n
+
+   FF1Policy policy;                // split(n) and rnds(n) for addValidSize(n)
+
+   FF1Round Round;                  // F - one raw AES block per round, per-thread Cipher
+
+   /* Explicit Constructor
+      Expects an AES(128) key supplied as 32 hexidecimal digits, and uses FF1Policy.MODE_S.
+   */
+   FF1Bits(String keyStr) {
+      this(keyStr, FF1Policy.MODE_S);
+   }
+
+   /* Constructor with a split and round policy for every length added. */
+   FF1Bits(String keyStr, FF1Policy policy) {
+      this.policy = policy;
+      Round = new FF1Round(new SecretKeySpec(FF1LS80.hexToBytes(keyStr), "AES"));
+   }
+
+   /*-Supporting Methods-----------------------------------------------------*/
+
+   /* addValidSize() prepares the engine to accept n-bit messages, (any n from 16 to 128.)
+      Return codes match FF1LS80.addValidSize(): 0 added, 1 duplicate, 2 invalid.
+   */
+   public int addValidSize(int n) {
+      return addValidSize(n, policy);
+   }
+
+   /* addValidSize() with a policy for this length only. */
+   public synchronized int addValidSize(int n, FF1Policy policy) {
+      if (n >= MIN_BITS && n <= MAX_BITS && plans[n] != null) {
+         FF1Metrics.warning("FF1Bits.addValidSize: Warning - message size ("+n+") is already added.");
+         return 1; // duplicate size ignored
+      }
+      FF1Plan plan = policy.planBits(n);
+      if (plan == null) {
+         FF1Metrics.error("FF1Bits.addValidSize: Error - message size ("+n+") is not valid for "+policy+".");
+         return 2; // out of range, or the policy cannot split n
+      }
+      FF1Plan[] next = plans.clone();
+      next[n] = plan;
+      plans = next;
+      return 0;
+   }
+
+   /* validateInput() - the plan for an n-bit message held in len bytes. */
+   private FF1Plan validateInput(int n, int len) throws IllegalArgumentException {
+      FF1Plan plan = (n >= 0 && n <= MAX_BITS) ? plans[n] : null;
+      if (plan == null) {
+         FF1Metrics.error("FF1Bits.validateInput: Error - unanticipated message size ("+n+").");
+         throw new IllegalArgumentException(); // every n must be known in advance
+      }
+      if (len != (n+7)/8) {
+         FF1Metrics.error("FF1Bits.validateInput: Error - "+n+" bits need "+(n+7)/8+" bytes, not "+len+".");
+         throw new IllegalArgumentException();
+      }
+      return plan;
+   }
+
+   /* loadLo/loadHi/store - len bytes at off as (lo, hi) words. */
+   private static long loadLo(byte[] M, int off, int len) {
+      return FF1Round.getLE(M, off, Math.min(8, len));
+   }
+   private static long loadHi(byte[] M, int off, int len) {
+      return FF1Round.getLE(M, off+8, len-8);
+   }
+   private static void store(byte[] M, int off, int len, long lo, long hi) {
+      FF1Round.putLE(M, off, Math.min(8, len), lo);
+      FF1Round.putLE(M, off+8, len-8, hi);
+   }
+
+   /*-Encryption and Decryption----------------------------------------------*/
+
+   /* Encrypt() - a whole-byte message, n = Xi.length*8. */
+   public byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      return Encrypt(Tweak, Xi, Xi.length*8);
+   }
+
+   /* Encrypt() - the low n bits of Xi, (ceil(n/8) bytes,) in place. */
+   public byte[] Encrypt(byte[] Tweak, byte[] Xi, int n) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(n, Xi.length);
+      if (Tweak.length != 16) {
+         FF1Metrics.error("FF1Bits.Encrypt: Error - Invalid Parameter (Tweak length)");
+         throw new IllegalStateException(); // not encrypted
+      }
+      run(plan, FF1Round.getLE(Tweak, 0, 8), FF1Round.getLE(Tweak, 8, 8), Xi, 0, true);
+      return Xi;
+   }
+
+   /* Encrypt() for an ADS-B tweak byte, (the Tweak is 16 copies of preTweak.) */
+   public byte[] Encrypt(byte preTweak, byte[] Xi, int n) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(n, Xi.length);
+      long iv = Round.tweakIV[preTweak & 0xFF];
+      run(plan, iv, iv, Xi, 0, true);
+      return Xi;
+   }
+
+   /* Decrypt() - a whole-byte message, n = Yi.length*8. */
+   public byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      return Decrypt(Tweak, Yi, Yi.length*8);
+   }
+
+   /* Decrypt() - the inverse of Encrypt(). */
+   public byte[] Decrypt(byte[] Tweak, byte[] Yi, int n) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(n, Yi.length);
+      if (Tweak.length != 16) {
+         FF1Metrics.error("FF1Bits.Decrypt: Error - Invalid Parameter (Tweak length)");
+         throw new IllegalStateException(); // not decrypted
+      }
+      run(plan, FF1Round.getLE(Tweak, 0, 8), FF1Round.getLE(Tweak, 8, 8), Yi, 0, false);
+      return Yi;
+   }
+
+   /* Decrypt() for an ADS-B tweak byte. */
+   public byte[] Decrypt(byte preTweak, byte[] Yi, int n) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(n, Yi.length);
+      long iv = Round.tweakIV[preTweak & 0xFF];
+      run(plan, iv, iv, Yi, 0, false);
+      return Yi;
+   }
+
+   /* A Mode-S frame is 7 bytes, (56-bit short squitter,) or 14, (112-bit extended
+      squitter.) Byte 0, (DF and CA,) is sent in the clear and is the basis of the Tweak;
+      the rest, (48 or 104 bits,) is the FFX message, encrypted or decrypted in place.
+      Any len from 3 to 17 works once (len-1)*8 has been added with addValidSize().
+   */
+   public void encryptFrame(byte[] frame, int off, int len) throws IllegalArgumentException {
+      frame(frame, off, len, true);
+   }
+
+   public void decryptFrame(byte[] frame, int off, int len) throws IllegalArgumentException {
+      frame(frame, off, len, false);
+   }
+
+   private void frame(byte[] frame, int off, int len, boolean enc) throws IllegalArgumentException {
+      FF1Plan plan = validateInput((len-1)*8, len-1);
+      if (off < 0 || off > frame.length - len) {
+         throw new IndexOutOfBoundsException("frame at " + off + " of " + frame.length);
+      }
+      long iv = Round.tweakIV[frame[off] & 0xFF];
+      run(plan, iv, iv, frame, off+1, enc);
+   }
+
+   /* run() encrypts or decrypts the message at M[off..], leaving the bits above n. */
+   private void run(FF1Plan plan, long ivLo, long ivHi, byte[] M, int off, boolean enc) {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      int len = (plan.n + 7) / 8;
+      int failed = 1;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         long lo = loadLo(M, off, len);
+         long hi = loadHi(M, off, len);
+         s.words[0] = lo & plan.maskNLo;
+         s.words[1] = hi & plan.maskNHi;
+         if (enc) {
+            encryptWords(plan, s, ivLo, ivHi);
+         }
+         else {
+            decryptWords(plan, s, ivLo, ivHi);
+         }
+         store(M, off, len, s.words[0] | (lo & ~plan.maskNLo), s.words[1] | (hi & ~plan.maskNHi));
+         failed = 0;
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1Bits." + (enc ? "Encrypt" : "Decrypt") + ": Error - " + e);
+         throw new IllegalStateException(); // the message is left unchanged
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1Bits", enc ? FF1Metrics.ENCRYPT : FF1Metrics.DECRYPT, plan.n, t0, 1, failed);
+         }
+      }
+   }
+
+   /* encryptWords() - per round: A = low split(n) bits, B = X >>> split(n),
+      C = A XOR F(B), X = B || C.
+   */
+   private static void encryptWords(FF1Plan plan, FF1Round.Scratch s, long ivLo, long ivHi)
+         throws GeneralSecurityException {
+      int  a = plan.imbalance;
+      int  b = plan.remainder;
+      long xLo = s.words[0];
+      long xHi = s.words[1];
+      for (int i=0; i<plan.rounds; i=i+1) {
+         long bLo = FF1Plan.shrLo(xLo, xHi, a);
+         long bHi = FF1Plan.shrHi(xHi, a);
+         long zLo = FF1Round.F(s, ivLo, ivHi, bLo, bHi, plan.padLo, plan.padHi);
+         long cLo = (xLo ^ zLo) & plan.maskALo;
+         long cHi = (xHi ^ s.zHi) & plan.maskAHi;
+         xLo = bLo | FF1Plan.shlLo(cLo, b);
+         xHi = bHi | FF1Plan.shlHi(cLo, cHi, b);
+      }
+      s.words[0] = xLo;
+      s.words[1] = xHi;
+   }
+
+   /* decryptWords() - per round: B = low n-split(n) bits, C = the rest,
+      A = C XOR F(B), Y = A || B.
+   */
+   private static void decryptWords(FF1Plan plan, FF1Round.Scratch s, long ivLo, long ivHi)
+         throws GeneralSecurityException {
+      int  a = plan.imbalance;
+      int  b = plan.remainder;
+      long yLo = s.words[0];
+      long yHi = s.words[1];
+      for (int i=plan.rounds-1; i>=0; i=i-1) {
+         long bLo = yLo & plan.maskBLo;
+         long bHi = yHi & plan.maskBHi;
+         long zLo = FF1Round.F(s, ivLo, ivHi, bLo, bHi, plan.padLo, plan.padHi);
+         long aLo = (FF1Plan.shrLo(yLo, yHi, b) ^ zLo) & plan.maskALo;
+         long aHi = (FF1Plan.shrHi(yHi, b) ^ s.zHi) & plan.maskAHi;
+         yLo = aLo | FF1Plan.shlLo(bLo, a);
+         yHi = aHi | FF1Plan.shlHi(bLo, bHi, a);
+      }
+      s.words[0] = yLo;
+      s.words[1] = yHi;
+   }
+
+   /*-Batch------------------------------------------------------------------*/
+
+   private final ThreadLocal<FF1LS80Packed.Batch> batch = new ThreadLocal<FF1LS80Packed.Batch>();
+
+   /* encryptBatch() encrypts M[0..count-1] in place, message k of bits[k] bits, (or of
+      M[k].length*8 if bits is null,) under the ADS-B tweak byte preTweak[k]. Lengths may
+      differ from message to message. As in FF1LS80Packed, round i runs for every message
+      still going before round i+1 starts, with one multi-block AES call per round; an
+      unknown length rejects the whole batch before anything is changed. Only an AES
+      failure fails a message, and then every message, (see FF1Batch.) Returns the
+      number of failed messages.
+   */
+   public int encryptBatch(byte[] preTweak, byte[][] M, int[] bits, int count)
+         throws IllegalArgumentException {
+      return batch(preTweak, M, bits, count, null, true);
+   }
+
+   /* decryptBatch() decrypts M[0..count-1] in place - see encryptBatch(). */
+   public int decryptBatch(byte[] preTweak, byte[][] M, int[] bits, int count)
+         throws IllegalArgumentException {
+      return batch(preTweak, M, bits, count, null, false);
+   }
+
+   /* encryptBatch() and decryptBatch() of whole-byte messages, with FF1Batch's failed[]. */
+   public int encryptBatch(byte[] preTweak, byte[][] Xi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Xi, null, count, failed, true);
+   }
+
+   public int decryptBatch(byte[] preTweak, byte[][] Yi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Yi, null, count, failed, false);
+   }
+
+   private int batch(byte[] preTweak, byte[][] M, int[] bits, int count, boolean[] failed,
+                     boolean enc) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      FF1LS80Packed.Batch b = batch.get();
+      if (b == null) {
+         b = new FF1LS80Packed.Batch();
+         batch.set(b);
+      }
+      b.ensure(count);
+      int maxRounds = 0;
+      for (int k=0; k<count; k=k+1) {
+         b.plan[k] = validateInput((bits != null) ? bits[k] : M[k].length*8, M[k].length);
+         maxRounds = Math.max(maxRounds, b.plan[k].rounds);
+      }
+      if (failed != null) {
+         java.util.Arrays.fill(failed, 0, count, false);
+      }
+      int failures = 0;
+      for (int k=0; k<count; k=k+1) {
+         FF1Plan p = b.plan[k];
+         b.lo[k]   = loadLo(M[k], 0, M[k].length) & p.maskNLo;
+         b.hi[k]   = loadHi(M[k], 0, M[k].length) & p.maskNHi;
+         b.left[k] = p.rounds;
+      }
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         FF1Round.ensureBatch(s, count);
+         for (int r=0; r<maxRounds; r=r+1) {
+            int m = 0;                        // AES blocks this round
+            for (int k=0; k<count; k=k+1) {
+               if (b.left[k] == 0) {
+                  continue;                   // finished
+               }
+               FF1Plan p = b.plan[k];
+               long bLo = enc ? FF1Plan.shrLo(b.lo[k], b.hi[k], p.imbalance) : b.lo[k] & p.maskBLo;
+               long bHi = enc ? FF1Plan.shrHi(b.hi[k], p.imbalance) : b.hi[k] & p.maskBHi;
+               long iv  = Round.tweakIV[preTweak[k] & 0xFF];
+               FF1Round.putBlock(s, m, iv, iv, bLo, bHi, p.padLo, p.padHi);
+               b.idx[m] = k;
+               m = m + 1;
+            }
+            FF1Round.blocks(s, m);
+            for (int j=0; j<m; j=j+1) {
+               int k = b.idx[j];
+               FF1Plan p = b.plan[k];
+               long xLo = b.lo[k];
+               long xHi = b.hi[k];
+               if (enc) {
+                  long cLo = (xLo ^ FF1Round.getBlock(s, j)) & p.maskALo;
+                  long cHi = (xHi ^ FF1Round.getBlockHi(s, j)) & p.maskAHi;
+                  long bLo = FF1Plan.shrLo(xLo, xHi, p.imbalance);
+                  long bHi = FF1Plan.shrHi(xHi, p.imbalance);
+                  b.lo[k]  = bLo | FF1Plan.shlLo(cLo, p.remainder); // X = B || C
+                  b.hi[k]  = bHi | FF1Plan.shlHi(cLo, cHi, p.remainder);
+               }
+               else {
+                  long bLo = xLo & p.maskBLo;
+                  long bHi = xHi & p.maskBHi;
+                  long aLo = (FF1Plan.shrLo(xLo, xHi, p.remainder) ^ FF1Round.getBlock(s, j)) & p.maskALo;
+                  long aHi = (FF1Plan.shrHi(xHi, p.remainder) ^ FF1Round.getBlockHi(s, j)) & p.maskAHi;
+                  b.lo[k]  = aLo | FF1Plan.shlLo(bLo, p.imbalance); // Y = A || B
+                  b.hi[k]  = aHi | FF1Plan.shlHi(bLo, bHi, p.imbalance);
+               }
+               b.left[k] = b.left[k] - 1;
+            }
+         }
+         for (int k=0; k<count; k=k+1) {
+            FF1Plan p = b.plan[k];
+            int len = M[k].length;
+            long lo = loadLo(M[k], 0, len);
+            long hi = loadHi(M[k], 0, len);
+            store(M[k], 0, len, b.lo[k] | (lo & ~p.maskNLo), b.hi[k] | (hi & ~p.maskNHi));
+         }
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1Bits." + (enc ? "encryptBatch" : "decryptBatch") + ": Error - " + e);
+         failures = FF1LS80Packed.failAll(failed, count); // nothing is written back
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1Bits", enc ? FF1Metrics.ENCRYPT_BATCH : FF1Metrics.DECRYPT_BATCH,
+                              FF1Metrics.batchBits(M, bits, count), t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+}
@@ -0,0 +1,208 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Parallel bulk encryption and decryption of recorded ADS-B captures.
+*/
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/* FF1Bulk re-encrypts or decrypts a whole capture file with one FF1LS80Packed engine.
+   Two capture formats are understood:
+   - AVR text, one frame per line: "*8D4840D6202CC371C32CE0576098;" or, with a 48-bit
+     timestamp, "@0123456789AB8D4840D6202CC371C32CE0576098;". Lines holding 28 hex
+     digits, (a 112-bit extended squitter,) are transformed. Every other byte, (56-bit
+     short frames, comments, line endings,) is copied unchanged. Output hex is upper case.
+   - RAW binary, back-to-back 14-byte frames. A trailing partial frame is copied as is.
+   The output is always the same size as the input, so both files are memory-mapped and
+   cut into chunks on line (AVR) or frame (RAW) boundaries. Each chunk is one fork-join
+   task: it maps its slice of the input and of the output, copies the slice across, and
+   transforms the frames in the output mapping. Hex is parsed and printed in place, so
+   nothing is allocated per frame and the chunks share nothing but the engine.
+
+   A frame the engine rejects, (see FF1LS80Packed,) or cannot transform because AES
+   failed, (IllegalStateException,) has its 13 payload bytes written as zeros, so a
+   failed encryption never leaves plaintext behind, and it is counted in Result.failed.
+*/
+final class FF1Bulk {
+
+   final static int CHUNK = 32 << 20;         // nominal chunk size, bytes
+   final static int FRAME = FF1LS80Packed.FRAME_BYTES;
+
+   final FF1LS80Packed engine;                // must have 104 added
+   final boolean encrypt;                     // true to encrypt, false to decrypt
+
+   /* Result - totals over the whole file. */
+   static final class Result {
+      long bytes;                             // bytes copied
+      long frames;                            // extended squitters transformed
+      long failed;                            // frames rejected by the engine
+   }
+
+   FF1Bulk(FF1LS80Packed engine, boolean encrypt) {
+      this.engine  = engine;
+      this.encrypt = encrypt;
+   }
+
+   /* run() transforms in into out, (out is created or truncated,) using pool. */
+   Result run(Path in, Path out, boolean avr, ForkJoinPool pool) throws IOException {
+      try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+           FileChannel dst = FileChannel.open(out, StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         long size = src.size();
+         List<Chunk> chunks = new ArrayList<Chunk>();
+         long start = 0;
+         while (start < size) {
+            long end = avr ? lineBoundary(src, Math.min(size, start + CHUNK))
+                           : Math.min(size, start + (CHUNK / FRAME) * (long) FRAME);
+            chunks.add(new Chunk(src, dst, start, end, avr));
+            start = end;
+         }
+         for (Chunk c : chunks) {
+            pool.execute(c);
+         }
+         Result total = new Result();
+         for (Chunk c : chunks) {
+            Result r = c.join();
+            total.bytes  += r.bytes;
+            total.frames += r.frames;
+            total.failed += r.failed;
+         }
+         return total;
+      }
+   }
+
+   /* lineBoundary() returns the offset just past the first '\n' at or after pos. */
+   private static long lineBoundary(FileChannel src, long pos) throws IOException {
+      long size = src.size();
+      while (pos < size) {
+         int len = (int) Math.min(4096, size - pos);
+         MappedByteBuffer w = src.map(FileChannel.MapMode.READ_ONLY, pos, len);
+         for (int i=0; i<len; i=i+1) {
+            if (w.get(i) == '\n') {
+               return pos + i + 1;
+            }
+         }
+         pos = pos + len;
+      }
+      return size;
+   }
+
+   /*-Chunks-----------------------------------------------------------------*/
+
+   final class Chunk extends RecursiveTask<Result> {
+      private static final long serialVersionUID = 1L; // never serialized, (ForkJoinTask is Serializable)
+      final FileChannel src, dst;
+      final long start, end;
+      final boolean avr;
+      final byte[] frame = new byte[FRAME];   // one decoded AVR frame
+
+      Chunk(FileChannel src, FileChannel dst, long start, long end, boolean avr) {
+         this.src = src;
+         this.dst = dst;
+         this.start = start;
+         this.end = end;
+         this.avr = avr;
+      }
+
+      protected Result compute() {
+         Result r = new Result();
+         try {
+            int len = (int) (end - start);
+            MappedByteBuffer ib = src.map(FileChannel.MapMode.READ_ONLY, start, len);
+            MappedByteBuffer ob = dst.map(FileChannel.MapMode.READ_WRITE, start, len);
+            ob.put(ib);
+            r.bytes = len;
+            if (avr) {
+               avrLines(ob, len, r);
+            }
+            else {
+               for (int off=0; off+FRAME<=len; off=off+FRAME) {
+                  try {
+                     if (encrypt) engine.encryptFrame(ob, off);
+                     else         engine.decryptFrame(ob, off);
+                     r.frames = r.frames + 1;
+                  }
+                  catch (IllegalArgumentException | IllegalStateException e) {
+                     FF1Round.putLE(ob, off+1, 8, 0);
+                     FF1Round.putLE(ob, off+9, 5, 0);
+                     r.failed = r.failed + 1;
+                  }
+               }
+            }
+         }
+         catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+         }
+         return r;
+      }
+
+      /* avrLines() walks the lines of the chunk and transforms every 112-bit frame. */
+      private void avrLines(MappedByteBuffer b, int len, Result r) {
+         int pos = 0;
+         while (pos < len) {
+            int hex = -1;                     // offset of the frame's first hex digit
+            byte c = b.get(pos);
+            if (c == '*') {
+               hex = pos + 1;
+            }
+            else if (c == '@') {
+               hex = pos + 13;                // skip the 12-digit timestamp
+            }
+            if (hex >= 0 && hex + 2*FRAME < len && b.get(hex + 2*FRAME) == ';'
+                  && decode(b, hex)) {
+               try {
+                  if (encrypt) engine.encryptFrame(frame, 0);
+                  else         engine.decryptFrame(frame, 0);
+                  r.frames = r.frames + 1;
+               }
+               catch (IllegalArgumentException | IllegalStateException e) {
+                  java.util.Arrays.fill(frame, 1, FRAME, (byte) 0);
+                  r.failed = r.failed + 1;
+               }
+               encode(b, hex);
+            }
+            while (pos < len && b.get(pos) != '\n') {
+               pos = pos + 1;                 // on to the next line
+            }
+            pos = pos + 1;
+         }
+      }
+
+      /* decode() parses 28 hex digits at off into frame[]; false if any is not hex. */
+      private boolean decode(MappedByteBuffer b, int off) {
+         for (int i=0; i<FRAME; i=i+1) {
+            int hi = digit(b.get(off + 2*i));
+            int lo = digit(b.get(off + 2*i + 1));
+            if ((hi | lo) < 0) {
+               return false;
+            }
+            frame[i] = (byte) ((hi << 4) | lo);
+         }
+         return true;
+      }
+
+      /* encode() prints frame[] back over the same 28 hex digits. */
+      private void encode(MappedByteBuffer b, int off) {
+         for (int i=0; i<FRAME; i=i+1) {
+            int v = frame[i] & 0xFF;
+            b.put(off + 2*i,     (byte) FF1LS80.hexArray[v >>> 4]);
+            b.put(off + 2*i + 1, (byte) FF1LS80.hexArray[v & 0x0F]);
+         }
+      }
+   }
+
+   /* digit() is Character.digit(c, 16) for ASCII bytes. */
+   static int digit(byte c) {
+      if (c >= '0' && c <= '9') return c - '0';
+      if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+      if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+      return -1;
+   }
+
+}
@@ -0,0 +1,321 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Bounded ciphertext cache for repeated ADS-B frames.
+*/
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/* FF1Cache sits in front of an FF1Engine and remembers the result for each 112-bit frame,
+   (the tweak byte and the 104-bit payload,) so a frame heard again, (a repeated
+   identification or status squitter, or the same frame from another receiver,) costs a
+   hash lookup instead of every Feistel round. Encryption and decryption are cached
+   separately: with the FF1LS80 quirks a decryption is not always the inverse of the
+   encryption, so one direction's results never answer the other's lookups.
+
+   Entries are primitive longs: the 14-byte frame is the key, (k0 = bytes 0..7, and tag =
+   bytes 8..13 plus an occupied bit and a direction bit,) and the 13-byte result is the
+   value, (v0, v1, with a failed bit.) The table is set-associative, 8 ways per set, and
+   never grows, so memory is fixed at about 33 bytes per entry. Keys spread unevenly over
+   the sets, so give it some headroom: at twice the working set a few percent of lookups
+   still miss, (in the sets that drew more than 8 frames.)
+
+   Eviction is CLOCK, (second chance,) within each set. A hit sets the entry's reference
+   bit; an insert sweeps the set's hand past referenced entries, clearing their bits, and
+   replaces the first unreferenced one. New entries start unreferenced, so a frame seen
+   only once is the first to go and a burst of one-off frames cannot flush the repeats.
+
+   Concurrency: the sets are guarded by striped StampedLocks. A lookup is an optimistic
+   read, (no lock is written,) that falls back to a read lock only if an insert raced it.
+   Reference bits are set with plain writes; a lost update only costs an early eviction.
+   Misses run the engine outside any lock, so two threads may both compute one frame.
+   That is harmless, the second insert finds the first and overwrites it with the same
+   value.
+
+   A frame the engine rejects, (see FF1LS80Packed,) is cached too, with the state the
+   engine left behind, and the lookup throws IllegalArgumentException again. The engine's
+   error message is only printed the first time. An AES failure is not a rejection: the
+   engine throws IllegalStateException, (see FF1Engine,) which is passed on with the frame
+   left as it was and nothing cached, so a passing fault never becomes a frame's cached
+   ciphertext.
+
+   Only 104-bit messages with an ADS-B Tweak, (16 copies of the first frame byte,) are
+   cached, and only once addValidSize(104) has been called through the cache. Anything
+   else goes straight to the engine.
+*/
+final class FF1Cache implements FF1Engine {
+
+   static final int  N        = 104;                 // cached message size, bits
+   static final int  WAYS     = 8;                   // entries per set
+   static final long OCCUPIED = 1L << 62;            // tag bit - slot in use
+   static final long DECRYPT  = 1L << 63;            // tag bit - a decryption result
+   static final long FAILED   = 1L << 63;            // v1 bit - the engine threw
+
+   private static final byte[][] TWEAKS = new byte[256][16]; // the ADS-B Tweaks, read-only
+   static {
+      for (int t=0; t<256; t=t+1) {
+         java.util.Arrays.fill(TWEAKS[t], (byte) t);
+      }
+   }
+
+   private static final int MISS = 0, HIT = 1, HIT_FAILED = 2;
+
+   final FF1Engine engine;
+   private volatile boolean ready;                   // 104 has been added
+
+   private final int    setMask;                     // sets - 1, (sets is a power of 2)
+   private final long[] table;                       // k0, tag, v0, v1 per slot
+   private final byte[] ref;                         // CLOCK reference bit per slot
+   private final byte[] hand;                        // CLOCK hand per set
+   private final StampedLock[] locks;
+   private final int    lockMask;
+
+   private final ThreadLocal<byte[]> work = new ThreadLocal<byte[]>();
+
+   final LongAdder hits      = new LongAdder();
+   final LongAdder misses    = new LongAdder();
+   final LongAdder evictions = new LongAdder();
+
+   /* Constructor - capacity is in entries, (rounded up to a power of 2, at least 8.) */
+   FF1Cache(FF1Engine engine, int capacity) {
+      this.engine = engine;
+      int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS) * 2 - 1);
+      setMask  = sets - 1;
+      table    = new long[sets * WAYS * 4];
+      ref      = new byte[sets * WAYS];
+      hand     = new byte[sets];
+      int stripes = Math.min(sets, 64);
+      locks    = new StampedLock[stripes];
+      for (int i=0; i<stripes; i=i+1) {
+         locks[i] = new StampedLock();
+      }
+      lockMask = stripes - 1;
+   }
+
+   /* capacity() - the number of entries the cache holds. */
+   int capacity() {
+      return ref.length;
+   }
+
+   /*-FF1Engine--------------------------------------------------------------*/
+
+   public int addValidSize(int n) {
+      int rc = engine.addValidSize(n);
+      if (n == N && rc < 2) {
+         ready = true;
+      }
+      return rc;
+   }
+
+   public byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      if (!cacheable(Tweak, Xi)) {
+         return engine.Encrypt(Tweak, Xi);
+      }
+      transform(false, Tweak[0], Xi, 0);
+      return Xi;
+   }
+
+   public byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      if (!cacheable(Tweak, Yi)) {
+         return engine.Decrypt(Tweak, Yi);
+      }
+      transform(true, Tweak[0], Yi, 0);
+      return Yi;
+   }
+
+   private boolean cacheable(byte[] Tweak, byte[] M) {
+      return ready && M.length == N/8 && FF1Round.adsbTweak(Tweak);
+   }
+
+   /* Encrypt() and Decrypt() for an ADS-B tweak byte. */
+   public byte[] Encrypt(byte preTweak, byte[] Xi) throws IllegalArgumentException {
+      if (!ready || Xi.length != N/8) {
+         return engine.Encrypt(TWEAKS[preTweak & 0xFF], Xi);
+      }
+      transform(false, preTweak, Xi, 0);
+      return Xi;
+   }
+
+   public byte[] Decrypt(byte preTweak, byte[] Yi) throws IllegalArgumentException {
+      if (!ready || Yi.length != N/8) {
+         return engine.Decrypt(TWEAKS[preTweak & 0xFF], Yi);
+      }
+      transform(true, preTweak, Yi, 0);
+      return Yi;
+   }
+
+   /* encryptFrame() and decryptFrame() - a whole 14-byte frame at off, as in
+      FF1LS80Packed: byte 0 is the tweak byte, bytes 1..13 are transformed in place.
+   */
+   void encryptFrame(byte[] frame, int off) throws IllegalArgumentException {
+      frame(false, frame, off);
+   }
+
+   void decryptFrame(byte[] frame, int off) throws IllegalArgumentException {
+      frame(true, frame, off);
+   }
+
+   private void frame(boolean dec, byte[] frame, int off) throws IllegalArgumentException {
+      if (off < 0 || off + 1 + N/8 > frame.length) {
+         throw new IndexOutOfBoundsException();
+      }
+      if (!ready) {
+         FF1Metrics.error("FF1Cache.frame: Error - unanticipated message size ("+N+").");
+         throw new IllegalArgumentException();
+      }
+      transform(dec, frame[off], frame, off+1);
+   }
+
+   /*-Cache------------------------------------------------------------------*/
+
+   /* transform() - the payload M[off..off+12] under tweak byte t, from the cache or from
+      the engine, (which then fills the cache.)
+   */
+   private void transform(boolean dec, byte t, byte[] M, int off) throws IllegalArgumentException {
+      long k0  = (t & 0xFFL) | (FF1Round.getLE(M, off, 7) << 8);
+      long tag = FF1Round.getLE(M, off+7, 6) | OCCUPIED | (dec ? DECRYPT : 0);
+      int  r   = get(k0, tag, M, off);
+      if (r == HIT) {
+         return;
+      }
+      if (r == HIT_FAILED) {
+         throw new IllegalArgumentException(); // the engine rejected this frame before
+      }
+      misses.increment();
+      byte[] w = work.get();
+      if (w == null) {
+         w = new byte[N/8];
+         work.set(w);
+      }
+      System.arraycopy(M, off, w, 0, N/8);
+      boolean failed = false;
+      try {
+         if (dec) engine.Decrypt(TWEAKS[t & 0xFF], w);
+         else     engine.Encrypt(TWEAKS[t & 0xFF], w);
+      }
+      catch (IllegalArgumentException e) {
+         failed = true;                        // a rejection - the same every time
+      }                                        // (IllegalStateException passes, M untouched)
+      put(k0, tag, FF1Round.getLE(w, 0, 8), FF1Round.getLE(w, 8, 5) | (failed ? FAILED : 0));
+      System.arraycopy(w, 0, M, off, N/8);
+      if (failed) {
+         throw new IllegalArgumentException();
+      }
+   }
+
+   /* set() - the set for a key, (a 64-bit finalizer mix of both key words.) */
+   private int set(long k0, long tag) {
+      long h = k0 * 0x9E3779B97F4A7C15L ^ tag;
+      h ^= h >>> 33;
+      h *= 0xFF51AFD7ED558CCDL;
+      h ^= h >>> 33;
+      return (int) h & setMask;
+   }
+
+   /* get() looks the key up and, on a hit, writes the 13-byte value over M[off..]. */
+   private int get(long k0, long tag, byte[] M, int off) {
+      int set  = set(k0, tag);
+      int base = set * WAYS;
+      StampedLock lock = locks[set & lockMask];
+      long stamp = lock.tryOptimisticRead();
+      int  way = find(base, k0, tag);
+      long v0  = (way >= 0) ? table[(base+way)*4 + 2] : 0;
+      long v1  = (way >= 0) ? table[(base+way)*4 + 3] : 0;
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();              // an insert raced us - read again
+         try {
+            way = find(base, k0, tag);
+            v0  = (way >= 0) ? table[(base+way)*4 + 2] : 0;
+            v1  = (way >= 0) ? table[(base+way)*4 + 3] : 0;
+         }
+         finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      if (way < 0) {
+         return MISS;
+      }
+      ref[base+way] = 1;
+      hits.increment();
+      FF1Round.putLE(M, off, 8, v0);
+      FF1Round.putLE(M, off+8, 5, v1);
+      return ((v1 & FAILED) != 0) ? HIT_FAILED : HIT;
+   }
+
+   private int find(int base, long k0, long tag) {
+      for (int w=0; w<WAYS; w=w+1) {
+         int i = (base+w)*4;
+         if (table[i+1] == tag && table[i] == k0) {
+            return w;
+         }
+      }
+      return -1;
+   }
+
+   /* put() inserts or replaces the entry for the key, evicting by CLOCK if the set is full. */
+   private void put(long k0, long tag, long v0, long v1) {
+      int set  = set(k0, tag);
+      int base = set * WAYS;
+      StampedLock lock = locks[set & lockMask];
+      long stamp = lock.writeLock();
+      try {
+         int way = find(base, k0, tag);
+         if (way < 0) {
+            way = victim(set, base);
+         }
+         int i = (base+way)*4;
+         table[i]   = k0;
+         table[i+1] = tag;
+         table[i+2] = v0;
+         table[i+3] = v1;
+      }
+      finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   /* victim() - a free way, or the CLOCK choice. Called with the set's write lock held. */
+   private int victim(int set, int base) {
+      for (int w=0; w<WAYS; w=w+1) {
+         if (table[(base+w)*4 + 1] == 0) {
+            return w;
+         }
+      }
+      int h = hand[set];
+      while (ref[base+h] != 0) {               // second chance, (ends within one sweep)
+         ref[base+h] = 0;
+         h = (h + 1) % WAYS;
+      }
+      hand[set] = (byte) ((h + 1) % WAYS);
+      ref[base+h] = 0;
+      evictions.increment();
+      return h;
+   }
+
+   /* clear() empties the cache, (the statistics are kept.) */
+   void clear() {
+      for (StampedLock l : locks) {
+         l.writeLock();
+      }
+      try {
+         java.util.Arrays.fill(table, 0);
+         java.util.Arrays.fill(ref, (byte) 0);
+      }
+      finally {
+         for (StampedLock l : locks) {
+            l.tryUnlockWrite();
+         }
+      }
+   }
+
+   /* hitRate() - hits over lookups so far, (0 before the first lookup.) */
+   double hitRate() {
+      long h = hits.sum();
+      long m = misses.sum();
+      return (h + m == 0) ? 0 : (double) h / (h + m);
+   }
+
+   public String toString() {
+      return String.format("FF1Cache: %d entries, %d hits, %d misses, %d evictions, %.1f%% hit rate",
+            capacity(), hits.sum(), misses.sum(), evictions.sum(), 100*hitRate());
+   }
+
+}
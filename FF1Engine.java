@@ -0,0 +1,37 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   The calling shape shared by the FF1 engines.
+*/
+
+/* FF1Engine is what a deployment codes against when it should not care which FF1 it
+   runs: the 2010 FFX draft with the 80-bit split, (FF1LS80 or its packed twin,) or
+   SP 800-38G FF1, (FF1NIST.) The contract is the one FF1LS80 has always had:
+   - addValidSize(n) once per message size before use: 0 added, 1 duplicate, 2 invalid.
+   - Encrypt() and Decrypt() work on the message in place and return it. An unknown
+     size throws IllegalArgumentException. If AES fails the error is reported to
+     FF1Metrics and IllegalStateException is thrown; the message is then not usable.
+   Ciphertexts are only readable by the engine, (and key,) that wrote them.
+*/
+public interface FF1Engine {
+
+   int    addValidSize(int n);
+   byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException;
+   byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException;
+
+   /* create() builds an engine by name, (for configuration files and command lines):
+      "ls80" - FF1LS80, "packed" - FF1LS80Packed, "lanes" - FF1Lanes, (all three give the
+      same ciphertexts,) "bits" - FF1Bits, (any bit length,) "nist" - FF1NIST.
+   */
+   static FF1Engine create(String name, String keyStr) throws IllegalArgumentException {
+      switch (name) {
+         case "ls80":   return new FF1LS80(keyStr);
+         case "packed": return new FF1LS80Packed(keyStr);
+         case "lanes":  return new FF1Lanes(keyStr);
+         case "bits":   return new FF1Bits(keyStr);
+         case "nist":   return new FF1NIST(keyStr);
+         default:
+            FF1Metrics.error("FF1Engine.create: Error - unknown engine ("+name+").");
+            throw new IllegalArgumentException();
+      }
+   }
+
+}
@@ -0,0 +1,343 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Flow.Processor for 14-byte ADS-B frames, with backpressure.
+*/
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* FF1Flow encrypts, (or decrypts,) a Flow stream of 14-byte frames, (tweak byte first,)
+   and publishes the results to one subscriber in arrival order. It needs Java 9, so the
+   build compiles this file, (and FFX_flow,) separately from the Java 8 sources. A Reactive
+   Streams stack can use it through org.reactivestreams.FlowAdapters.
+
+   Memory is bounded by capacity, whatever the rates:
+   - The frames in flight live in one ring of capacity slots. FF1Flow requests capacity
+     frames upstream at first, and after that only as many as it has handed downstream,
+     so a fast publisher can never put more than capacity frames into it. A publisher
+     that sends more than requested gets its subscription cancelled and the subscriber
+     gets an IllegalStateException.
+   - Downstream gets no more than it has requested. A slow subscriber fills the ring and
+     then holds up the publisher, (a SubmissionPublisher blocks or drops, as configured.)
+   - Frames are transformed in place: the byte[] that came in is the one that goes out,
+     so FF1Flow allocates nothing per frame. A publisher must not reuse a frame array
+     once it is sent. A frame the engine rejects, (see FF1LS80Packed,) goes out with its
+     13 payload bytes zeroed, as FF1Bulk writes it.
+
+   Up to parallelism workers run on the executor, each taking up to BATCH unclaimed
+   frames at a time through encryptBatch() or decryptBatch(). A worker is only started
+   when none is running or a full batch is waiting for it, so a trickle of frames costs
+   one worker and a flood uses them all. Results are emitted by whichever thread finds
+   them ready, one thread at a time, (a work-in-progress counter,) so onNext() downstream
+   is never called concurrently. If the engine throws, (104 bits not added, say,) the
+   worker gives its slots up, upstream is cancelled and the subscriber gets the error.
+*/
+final class FF1Flow implements Flow.Processor<byte[], byte[]> {
+
+   static final int BATCH = 64;             // frames per engine call, at most
+   static final int FRAME = FF1LS80Packed.FRAME_BYTES;
+
+   final FF1LS80Packed engine;              // must have 104 added
+   final boolean  encrypt;
+   final int      capacity;                 // frames in flight, a power of 2
+   final Executor executor;
+
+   private final byte[][]  ring;            // frames in flight, by sequence & mask
+   private final boolean[] ready;           // transformed, waiting to be emitted
+   private final byte[][]  out;             // emitter's scratch, (one run of ready frames)
+   private final int       mask;
+   private final Worker[]  workers;
+
+   // Ring indexes, guarded by this: head <= claimed <= tail, head + capacity >= tail.
+   private long head;                       // next to emit
+   private long claimed;                    // next to hand to a worker
+   private long tail;                       // next free slot
+   private int  busy;                       // running workers
+   private long maxFill;                    // most frames in flight at once
+
+   private volatile Flow.Subscription upstream;
+   private Flow.Subscriber<? super byte[]> subscriber;            // guarded by this
+   private volatile Flow.Subscriber<? super byte[]> downstream;  // once subscribed
+   private final AtomicLong    demand = new AtomicLong();  // requested downstream, not yet sent
+   private final AtomicInteger wip    = new AtomicInteger();
+   private volatile boolean    completed, cancelled;
+   private volatile Throwable  error;
+   private boolean             terminated; // touched by the emitter only
+   private volatile long       emitted;    // written by the emitter only
+
+   FF1Flow(FF1LS80Packed engine, boolean encrypt, int parallelism, int capacity) {
+      this(engine, encrypt, parallelism, capacity, ForkJoinPool.commonPool());
+   }
+
+   FF1Flow(FF1LS80Packed engine, boolean encrypt, int parallelism, int capacity, Executor executor) {
+      this.engine   = engine;
+      this.encrypt  = encrypt;
+      this.executor = executor;
+      this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+      this.mask     = this.capacity - 1;
+      this.ring     = new byte[this.capacity][];
+      this.ready    = new boolean[this.capacity];
+      this.out      = new byte[this.capacity][];
+      this.workers  = new Worker[Math.max(1, parallelism)];
+      for (int i=0; i<workers.length; i=i+1) {
+         workers[i] = new Worker();
+      }
+   }
+
+   /*-Upstream: Flow.Subscriber---------------------------------------------*/
+
+   public void onSubscribe(Flow.Subscription s) {
+      if (upstream != null || cancelled) {
+         s.cancel();                          // one publisher only
+         return;
+      }
+      upstream = s;
+      s.request(capacity);
+   }
+
+   public void onNext(byte[] frame) {
+      if (frame == null) {
+         throw new NullPointerException();
+      }
+      if (frame.length != FRAME) {
+         FF1Metrics.error("FF1Flow.onNext: Error - frame length ("+frame.length+") is not "+FRAME+".");
+         fail(new IllegalArgumentException("frame length " + frame.length));
+         return;
+      }
+      Worker w = null;
+      synchronized (this) {
+         if (cancelled || error != null) {
+            return;
+         }
+         if (tail - head < capacity) {
+            ring[(int) tail & mask]  = frame;
+            ready[(int) tail & mask] = false;
+            tail = tail + 1;
+            maxFill = Math.max(maxFill, tail - head);
+            if (busy == 0 || (tail - claimed >= BATCH && busy < workers.length)) {
+               for (Worker k : workers) {
+                  if (!k.running) {
+                     k.running = true;
+                     busy = busy + 1;
+                     w = k;
+                     break;
+                  }
+               }
+            }
+            frame = null;                      // accepted
+         }
+      }
+      if (frame != null) {
+         fail(new IllegalStateException("more frames than requested"));
+         return;
+      }
+      if (w != null) {
+         executor.execute(w);
+      }
+   }
+
+   public void onError(Throwable t) {
+      if (t == null) {
+         throw new NullPointerException();
+      }
+      error = t;
+      drain();
+   }
+
+   public void onComplete() {
+      completed = true;
+      drain();
+   }
+
+   /* fail() - a protocol or input error: stop upstream and tell downstream. */
+   private void fail(Throwable t) {
+      Flow.Subscription s = upstream;
+      if (s != null) {
+         s.cancel();
+      }
+      onError(t);
+   }
+
+   /*-Downstream: Flow.Publisher--------------------------------------------*/
+
+   public void subscribe(Flow.Subscriber<? super byte[]> subscriber) {
+      if (subscriber == null) {
+         throw new NullPointerException();
+      }
+      boolean first;
+      synchronized (this) {
+         first = (this.subscriber == null);
+         if (first) {
+            this.subscriber = subscriber;
+         }
+      }
+      if (first) {
+         subscriber.onSubscribe(new Subscription());
+         downstream = subscriber;              // no signals before onSubscribe() returns
+         drain();
+         return;
+      }
+      subscriber.onSubscribe(new Flow.Subscription() {
+         public void request(long n) { }
+         public void cancel() { }
+      });
+      subscriber.onError(new IllegalStateException("FF1Flow has a subscriber already"));
+   }
+
+   final class Subscription implements Flow.Subscription {
+      public void request(long n) {
+         if (n <= 0) {
+            fail(new IllegalArgumentException("request " + n));
+            return;
+         }
+         long r, next;
+         do {
+            r = demand.get();
+            next = (r + n < 0) ? Long.MAX_VALUE : r + n;
+         } while (!demand.compareAndSet(r, next));
+         drain();
+      }
+
+      public void cancel() {
+         cancelled = true;
+         Flow.Subscription s = upstream;
+         if (s != null) {
+            s.cancel();
+         }
+         synchronized (FF1Flow.this) {
+            java.util.Arrays.fill(ring, null);
+            head = claimed = tail;
+         }
+      }
+   }
+
+   /* drain() emits ready frames in order while there is demand, then completes or fails
+      downstream once the ring is empty. One thread at a time runs the loop; a call that
+      finds it running leaves a note, (wip,) and the running thread goes round again.
+   */
+   private void drain() {
+      if (wip.getAndIncrement() != 0) {
+         return;
+      }
+      int missed = 1;
+      do {
+         Flow.Subscriber<? super byte[]> d = downstream;
+         if (d != null && !cancelled && !terminated) {
+            Throwable e = error;
+            if (e != null) {
+               terminated = true;
+               d.onError(e);
+            }
+            else {
+               long r = demand.get();
+               int k;
+               boolean empty;
+               synchronized (this) {
+                  k = 0;
+                  while (k < r && head < claimed && ready[(int) head & mask]) {
+                     out[k] = ring[(int) head & mask];
+                     ring[(int) head & mask] = null;
+                     head = head + 1;
+                     k = k + 1;
+                  }
+                  empty = (head == tail);
+               }
+               for (int i=0; i<k && !cancelled; i=i+1) {
+                  d.onNext(out[i]);
+                  out[i] = null;
+               }
+               if (k > 0) {
+                  emitted = emitted + k;
+                  if (r != Long.MAX_VALUE) {
+                     demand.addAndGet(-k);
+                  }
+                  if (!completed) {
+                     upstream.request(k);      // the slots just freed
+                  }
+                  missed = wip.get();         // there may be more
+                  continue;
+               }
+               if (completed && empty) {
+                  terminated = true;
+                  d.onComplete();
+               }
+            }
+         }
+         missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+   }
+
+   /*-Workers----------------------------------------------------------------*/
+
+   final class Worker implements Runnable {
+      final byte[][]  frames  = new byte[BATCH][];
+      final byte[]    tweak   = new byte[BATCH];
+      final byte[][]  payload = new byte[BATCH][FRAME-1];
+      final boolean[] failed  = new boolean[BATCH];
+      boolean running;                       // guarded by FF1Flow.this
+
+      public void run() {
+         while (true) {
+            long start;
+            int  k;
+            synchronized (FF1Flow.this) {
+               k = (int) Math.min(tail - claimed, BATCH);
+               if (k == 0 || cancelled) {
+                  running = false;
+                  busy = busy - 1;
+                  return;
+               }
+               start = claimed;
+               claimed = claimed + k;
+               for (int j=0; j<k; j=j+1) {
+                  frames[j] = ring[(int) (start + j) & mask];
+               }
+            }
+            try {
+               for (int j=0; j<k; j=j+1) {
+                  tweak[j] = frames[j][0];
+                  System.arraycopy(frames[j], 1, payload[j], 0, FRAME-1);
+               }
+               if (encrypt) engine.encryptBatch(tweak, payload, k, failed);
+               else         engine.decryptBatch(tweak, payload, k, failed);
+               for (int j=0; j<k; j=j+1) {
+                  if (failed[j]) java.util.Arrays.fill(frames[j], 1, FRAME, (byte) 0);
+                  else           System.arraycopy(payload[j], 0, frames[j], 1, FRAME-1);
+               }
+            }
+            catch (Throwable t) {               // e.g. 104 bits not added to the engine
+               synchronized (FF1Flow.this) {
+                  running = false;
+                  busy = busy - 1;
+               }
+               java.util.Arrays.fill(frames, null);
+               FF1Metrics.error("FF1Flow.worker: Error - " + t);
+               fail(t);                          // cancel upstream, onError downstream
+               return;
+            }
+            java.util.Arrays.fill(frames, 0, k, null);
+            synchronized (FF1Flow.this) {
+               for (int j=0; j<k; j=j+1) {
+                  ready[(int) (start + j) & mask] = true;
+               }
+            }
+            drain();
+         }
+      }
+   }
+
+   /*-Statistics-------------------------------------------------------------*/
+
+   /* maxInFlight() - the most frames held at once, (never more than capacity.) */
+   synchronized long maxInFlight() {
+      return maxFill;
+   }
+
+   /* stats() - frames emitted, in flight and the most ever in flight, (at most capacity.) */
+   synchronized String stats() {
+      return String.format("FF1Flow: %d workers, capacity %d, %d emitted, %d in flight, max %d",
+            workers.length, capacity, emitted, tail - head, maxFill);
+   }
+
+}
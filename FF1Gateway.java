@@ -0,0 +1,498 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Shared encryption service: frames in over TCP or UDP, results back.
+*/
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* FF1Gateway lets many client processes share one FF1LS80Packed engine. A client sends
+   1090ES frames, (in one of FF1Bulk's two formats, chosen per gateway,) and gets the
+   transformed bytes back, the same length and in the same order:
+   - raw: back-to-back 14-byte frames, tweak byte first. A rejected frame comes back with
+     its 13 payload bytes zeroed, as FF1Bulk writes it.
+   - avr: text lines, "*<28 hex>;" or "@<12 hex timestamp><28 hex>;". Other lines come
+     back unchanged.
+   Over TCP a connection is a stream of either. Over UDP each datagram is a whole request,
+   (raw frames or complete lines,) and the reply goes to its sender.
+
+   Each connection, and each UDP datagram, is served on its own thread: a virtual thread
+   where the runtime has them, (Java 21 and later,) otherwise a pooled platform thread.
+   The sources stay at Java 8, so the virtual-thread executor is looked up by reflection.
+
+   Micro-batching: a connection thread reads what has arrived, (up to JOB_FRAMES frames,)
+   queues it as one Job and parks. A batcher thread takes the first queued Job, keeps
+   collecting Jobs until it holds maxBatch frames or maxDelay has passed since the first,
+   (then also takes whatever is already queued, up to maxBatch,) and runs the lot through
+   encryptBatch() or decryptBatch() in one call. So under load, frames from many
+   connections share the engine's round interleaving, and an idle gateway adds at most
+   maxDelay to a lone frame. Each Job, (and its buffers,) belongs to its connection and is
+   reused, so nothing is allocated per frame. A UDP listener preallocates UDP_BUFFERS
+   Datagrams, each a receive buffer, its DatagramPacket, (which carries the reply back
+   to the sender,) and a Job, and runs each request as the Datagram itself; a Datagram
+   goes back to the pool once its reply is sent, and the listener waits for one when
+   all are busy, (the socket's receive buffer holds what arrives meanwhile.) So the
+   gateway allocates nothing per datagram either, beyond what the executor does to run
+   a task.
+
+   Every Job a batcher takes is completed, whatever happens to the engine call: if it
+   throws, the Jobs are completed with an error and their connections are closed rather
+   than sent anything. close() fails the Jobs still queued the same way, so no connection
+   thread is left parked.
+*/
+final class FF1Gateway {
+
+   static final int FRAME       = FF1LS80Packed.FRAME_BYTES;
+   static final int JOB_FRAMES  = 64;       // frames per connection read, at most
+   static final int UDP_BUFFERS = 64;       // datagrams in flight per UDP listener
+   static final int UDP_BYTES   = 65536;    // largest datagram
+
+   final FF1LS80Packed engine;              // must have 104 added
+   final boolean encrypt;                   // true to encrypt, false to decrypt
+   final boolean avr;                       // AVR text, or raw 14-byte frames
+   final int     maxBatch;                  // frames per engine call, (soft limit)
+   final long    maxDelay;                  // nanoseconds a Job may wait for company
+
+   private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+   private final ExecutorService    tasks;
+   private final boolean            virtual; // true when tasks run on virtual threads
+   private final List<Thread>       threads = new ArrayList<Thread>();
+   private final List<java.io.Closeable> sockets = new ArrayList<java.io.Closeable>();
+   private volatile boolean running = true;
+
+   final LongAdder frames    = new LongAdder(); // frames transformed
+   final LongAdder rejected  = new LongAdder(); // frames the engine rejected
+   final LongAdder batches   = new LongAdder(); // engine calls
+   final LongAdder jobs      = new LongAdder(); // connection reads and datagrams
+   final LongAdder clients   = new LongAdder(); // TCP connections accepted
+
+   FF1Gateway(FF1LS80Packed engine, boolean encrypt, boolean avr, int maxBatch,
+              long maxDelayMicros, int batchers) {
+      this.engine   = engine;
+      this.encrypt  = encrypt;
+      this.avr      = avr;
+      this.maxBatch = Math.max(1, maxBatch);
+      this.maxDelay = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+      ExecutorService v = newVirtualExecutor();
+      this.virtual  = v != null;
+      this.tasks    = virtual ? v : newClientExecutor();
+      for (int i=0; i<Math.max(1, batchers); i=i+1) {
+         start(new Batcher(), "FF1Gateway-batcher-" + i);
+      }
+   }
+
+   /* newVirtualExecutor() - a virtual thread per task on Java 21+, else null. */
+   static ExecutorService newVirtualExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+
+   /* newClientExecutor() - a cached pool of daemon threads, (before Java 21.) */
+   static ExecutorService newClientExecutor() {
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "FF1Gateway-client");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   private void start(Runnable r, String name) {
+      Thread t = new Thread(r, name);
+      t.setDaemon(true);
+      threads.add(t);
+      t.start();
+   }
+
+   /*-Listeners--------------------------------------------------------------*/
+
+   /* listenTcp() accepts connections on port, (0 picks one,) and returns the port. */
+   synchronized int listenTcp(String host, int port) throws IOException {
+      final ServerSocket server = new ServerSocket();
+      server.bind(new InetSocketAddress(host, port));
+      sockets.add(server);
+      start(new Runnable() {
+         public void run() {
+            while (running) {
+               try {
+                  final Socket s = server.accept();
+                  s.setTcpNoDelay(true);
+                  clients.increment();
+                  try {
+                     tasks.execute(new Runnable() {
+                        public void run() {
+                           serve(s);
+                        }
+                     });
+                  }
+                  catch (RuntimeException e) {   // the executor is shut down
+                     s.close();
+                  }
+               }
+               catch (IOException e) {
+                  if (running) {
+                     FF1Metrics.error("FF1Gateway.accept: Error - " + e);
+                  }
+               }
+            }
+         }
+      }, "FF1Gateway-tcp-" + server.getLocalPort());
+      return server.getLocalPort();
+   }
+
+   /* listenUdp() serves datagrams on port, (0 picks one,) and returns the port. */
+   synchronized int listenUdp(String host, int port) throws IOException {
+      final DatagramSocket socket = new DatagramSocket(new InetSocketAddress(host, port));
+      sockets.add(socket);
+      final BlockingQueue<Datagram> free = new ArrayBlockingQueue<Datagram>(UDP_BUFFERS);
+      for (int i=0; i<UDP_BUFFERS; i=i+1) {
+         free.add(new Datagram(socket, free));
+      }
+      start(new Runnable() {
+         public void run() {
+            while (running) {
+               Datagram d;
+               try {
+                  d = free.take();               // wait for a request to finish
+               }
+               catch (InterruptedException e) {
+                  return;                        // closing
+               }
+               try {
+                  d.packet.setData(d.buf, 0, UDP_BYTES);
+                  socket.receive(d.packet);
+                  tasks.execute(d);
+               }
+               catch (IOException e) {
+                  free.add(d);
+                  if (running) {
+                     FF1Metrics.error("FF1Gateway.receive: Error - " + e);
+                  }
+               }
+               catch (RuntimeException e) {      // the executor is shut down
+                  free.add(d);
+               }
+            }
+         }
+      }, "FF1Gateway-udp-" + socket.getLocalPort());
+      return socket.getLocalPort();
+   }
+
+   /* close() stops listening, lets the batchers finish the Jobs they hold and fails
+      the Jobs still queued, (their connections are closed.) Other open connections are
+      closed by their clients, (or when their next write fails.)
+   */
+   synchronized void close() {
+      running = false;
+      for (java.io.Closeable c : sockets) {
+         try {
+            c.close();
+         }
+         catch (IOException e) { }
+      }
+      tasks.shutdown();
+      for (Thread t : threads) {
+         t.interrupt();
+      }
+      List<Job> left = new ArrayList<Job>();
+      queue.drainTo(left);
+      for (Job j : left) {
+         complete(j, false);
+      }
+   }
+
+   /*-Connections------------------------------------------------------------*/
+
+   /* serve() - one TCP connection: read, transform what is complete, write it back. */
+   private void serve(Socket s) {
+      Job job = new Job();
+      byte[] buf = new byte[avr ? 65536 : JOB_FRAMES*FRAME];
+      int have = 0;
+      try {
+         InputStream  in  = s.getInputStream();
+         OutputStream out = s.getOutputStream();
+         while (true) {
+            if (have == buf.length) {          // an AVR line longer than the buffer
+               out.write(buf, 0, have);
+               have = 0;
+            }
+            int n = in.read(buf, have, buf.length - have);
+            if (n < 0) {
+               break;
+            }
+            have = have + n;
+            int done = transform(job, buf, have, false);
+            if (done > 0) {
+               out.write(buf, 0, done);
+               out.flush();
+               System.arraycopy(buf, done, buf, 0, have - done);
+               have = have - done;
+            }
+         }
+         if (have > 0) {
+            out.write(buf, 0, transform(job, buf, have, true));
+         }
+      }
+      catch (IOException e) { }                // the client went away
+      catch (InterruptedException e) { }       // the gateway is closing
+      finally {
+         try {
+            s.close();
+         }
+         catch (IOException e) { }
+      }
+   }
+
+   /* Datagram - one pooled UDP request: its buffer, packet and Job. run() answers it to
+      its sender through the same packet, (which still holds the sender's address,) and
+      returns it to the pool.
+   */
+   final class Datagram implements Runnable {
+      final byte[]         buf    = new byte[UDP_BYTES];
+      final DatagramPacket packet = new DatagramPacket(buf, UDP_BYTES);
+      final Job            job    = new Job();
+      final DatagramSocket socket;
+      final BlockingQueue<Datagram> free;
+
+      Datagram(DatagramSocket socket, BlockingQueue<Datagram> free) {
+         this.socket = socket;
+         this.free   = free;
+      }
+
+      public void run() {
+         try {
+            int len = transform(job, buf, packet.getLength(), true);
+            packet.setLength(len);
+            socket.send(packet);
+         }
+         catch (IOException e) {
+            if (running) {
+               FF1Metrics.error("FF1Gateway.send: Error - " + e);
+            }
+         }
+         catch (InterruptedException e) { }
+         finally {
+            free.add(this);
+         }
+      }
+   }
+
+   /* transform() transforms the complete frames, (or lines,) at the start of buf[0..len)
+      in place and returns how many bytes that covered. With all, everything counts as
+      complete, (a trailing partial raw frame or unterminated line is left as is.)
+   */
+   int transform(Job job, byte[] buf, int len, boolean all) throws IOException, InterruptedException {
+      if (!avr) {
+         int end = (len / FRAME) * FRAME;
+         for (int off=0; off<end; off=off+JOB_FRAMES*FRAME) {
+            int count = Math.min(JOB_FRAMES, (end - off) / FRAME);
+            System.arraycopy(buf, off, job.frames, 0, count*FRAME);
+            job.count = count;
+            submit(job);
+            System.arraycopy(job.frames, 0, buf, off, count*FRAME);
+         }
+         return all ? len : end;
+      }
+      int end = len;
+      if (!all) {
+         while (end > 0 && buf[end-1] != '\n') {
+            end = end - 1;                     // complete lines only
+         }
+      }
+      job.count = 0;
+      int pos = 0;
+      while (pos < end) {
+         int eol = pos;
+         while (eol < end && buf[eol] != '\n') {
+            eol = eol + 1;
+         }
+         int hex = (buf[pos] == '*') ? pos + 1 : (buf[pos] == '@') ? pos + 13 : -1;
+         if (hex >= 0 && hex + 2*FRAME < eol && buf[hex + 2*FRAME] == ';'
+               && decode(buf, hex, job.frames, job.count*FRAME)) {
+            job.hexAt[job.count] = hex;
+            job.count = job.count + 1;
+            if (job.count == JOB_FRAMES) {
+               flushAvr(job, buf);
+            }
+         }
+         pos = eol + 1;
+      }
+      flushAvr(job, buf);
+      return end;
+   }
+
+   private void flushAvr(Job job, byte[] buf) throws IOException, InterruptedException {
+      if (job.count > 0) {
+         submit(job);
+         for (int k=0; k<job.count; k=k+1) {
+            encode(job.frames, k*FRAME, buf, job.hexAt[k]);
+         }
+         job.count = 0;
+      }
+   }
+
+   /* decode() parses 28 hex digits at buf[off..] into 14 bytes of frames; false if any
+      is not hex. encode() prints them back.
+   */
+   private static boolean decode(byte[] buf, int off, byte[] frames, int at) {
+      for (int i=0; i<FRAME; i=i+1) {
+         int hi = FF1Bulk.digit(buf[off + 2*i]);
+         int lo = FF1Bulk.digit(buf[off + 2*i + 1]);
+         if ((hi | lo) < 0) {
+            return false;
+         }
+         frames[at + i] = (byte) ((hi << 4) | lo);
+      }
+      return true;
+   }
+
+   private static void encode(byte[] frames, int at, byte[] buf, int off) {
+      for (int i=0; i<FRAME; i=i+1) {
+         int v = frames[at + i] & 0xFF;
+         buf[off + 2*i]     = (byte) FF1LS80.hexArray[v >>> 4];
+         buf[off + 2*i + 1] = (byte) FF1LS80.hexArray[v & 0x0F];
+      }
+   }
+
+   /*-Micro-batches----------------------------------------------------------*/
+
+   /* Job - up to JOB_FRAMES frames from one connection, and who waits for them. */
+   static final class Job {
+      final byte[] frames = new byte[JOB_FRAMES*FRAME];
+      final int[]  hexAt  = new int[JOB_FRAMES]; // AVR: where each frame's hex starts
+      int count;
+      volatile Thread  waiter;
+      volatile boolean done;
+      volatile boolean error;                  // not transformed, (nothing may be sent)
+   }
+
+   /* submit() queues the job and parks until a batcher has transformed it. A job that
+      could not be transformed throws IOException, which closes its connection.
+   */
+   private void submit(Job job) throws IOException, InterruptedException {
+      job.done   = false;
+      job.error  = false;
+      job.waiter = Thread.currentThread();
+      jobs.increment();
+      queue.put(job);
+      if (!running && queue.remove(job)) {
+         complete(job, false);                 // queued after close() drained the queue
+      }
+      while (!job.done) {
+         LockSupport.park(this);
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+      }
+      if (job.error) {
+         throw new IOException("FF1Gateway: frames not transformed");
+      }
+   }
+
+   /* complete() hands a job back to its connection, transformed or failed. */
+   private static void complete(Job job, boolean ok) {
+      job.error = !ok;
+      job.done  = true;
+      LockSupport.unpark(job.waiter);
+   }
+
+   final class Batcher implements Runnable {
+      final List<Job> batch    = new ArrayList<Job>();
+      final int       capacity = maxBatch + JOB_FRAMES;
+      final byte[]    tweak    = new byte[capacity];
+      final byte[][]  payload  = new byte[capacity][FRAME-1];
+      final boolean[] failed   = new boolean[capacity];
+
+      public void run() {
+         try {
+            while (running) {
+               Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+               if (first != null) {
+                  run(first);
+               }
+            }
+         }
+         catch (InterruptedException e) { }   // closing
+      }
+
+      /* run() transforms first and its company. Every Job taken is completed in the
+         finally, with an error if the engine threw or the gateway is closing.
+      */
+      private void run(Job first) throws InterruptedException {
+         batch.clear();
+         batch.add(first);
+         boolean ok = false;
+         try {
+            int total = first.count;
+            long deadline = System.nanoTime() + maxDelay;
+            while (total < maxBatch) {
+               long wait = deadline - System.nanoTime();
+               Job j = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+               if (j == null) {
+                  break;
+               }
+               batch.add(j);
+               total = total + j.count;
+            }
+            int k = 0;
+            for (Job j : batch) {
+               for (int i=0; i<j.count; i=i+1, k=k+1) {
+                  tweak[k] = j.frames[i*FRAME];
+                  System.arraycopy(j.frames, i*FRAME + 1, payload[k], 0, FRAME-1);
+               }
+            }
+            int bad = encrypt ? engine.encryptBatch(tweak, payload, total, failed)
+                              : engine.decryptBatch(tweak, payload, total, failed);
+            k = 0;
+            for (Job j : batch) {
+               for (int i=0; i<j.count; i=i+1, k=k+1) {
+                  if (failed[k]) java.util.Arrays.fill(j.frames, i*FRAME + 1, (i+1)*FRAME, (byte) 0);
+                  else           System.arraycopy(payload[k], 0, j.frames, i*FRAME + 1, FRAME-1);
+               }
+            }
+            ok = true;
+            frames.add(total);
+            rejected.add(bad);
+            batches.increment();
+         }
+         catch (RuntimeException e) {
+            FF1Metrics.error("FF1Gateway.batch: Error - " + e);
+         }
+         finally {
+            for (Job j : batch) {
+               complete(j, ok);
+            }
+            batch.clear();
+         }
+      }
+   }
+
+   /* stats() - totals so far. */
+   String stats() {
+      long b = batches.sum();
+      return String.format("FF1Gateway: %s threads, %d clients, %d jobs, %d frames, %d rejected,"
+            + " %d batches, %.1f frames/batch", virtual ? "virtual" : "platform", clients.sum(),
+            jobs.sum(), frames.sum(), rejected.sum(), b, (b == 0) ? 0.0 : (double) frames.sum() / b);
+   }
+
+}
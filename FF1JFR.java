@@ -0,0 +1,78 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   JDK Flight Recorder events for the engines.
+*/
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/* FF1JFR is the FF1Metrics sink that turns slow calls, AES initializations and engine
+   errors into JFR events, (category "FFX".) It needs Java 11, so the build compiles it
+   separately and FF1Metrics loads it by name when metrics are on. An event costs next to
+   nothing unless a recording has it enabled, e.g.
+      java -Dffx.metrics=true -XX:StartFlightRecording=filename=ffx.jfr FFX_bench
+*/
+final class FF1JFR implements FF1Metrics.Sink {
+
+   @Name("ffx.SlowCall")
+   @Label("FFX Slow Call")
+   @Category("FFX")
+   @Description("An engine call that took at least ffx.metrics.slowMicros")
+   static final class SlowCall extends Event {
+      @Label("Engine")    String engine;
+      @Label("Operation") String operation;
+      @Label("Bits")      int    bits;
+      @Label("Messages")  int    messages;
+      @Label("Time") @Timespan(Timespan.NANOSECONDS) long time;
+   }
+
+   @Name("ffx.AesInit")
+   @Label("FFX AES Initialization")
+   @Category("FFX")
+   @Description("A thread's AES state set up for one key")
+   static final class AesInit extends Event {
+      @Label("Backend")  String backend;
+      @Label("Provider") String provider;
+      @Label("Time") @Timespan(Timespan.NANOSECONDS) long time;
+   }
+
+   @Name("ffx.Error")
+   @Label("FFX Error")
+   @Category("FFX")
+   static final class Error extends Event {
+      @Label("Message") String message;
+   }
+
+   public void error(String message) {
+      Error e = new Error();
+      if (e.isEnabled()) {
+         e.message = message;
+         e.commit();
+      }
+   }
+
+   public void slow(String engine, String op, int n, int messages, long nanos) {
+      SlowCall e = new SlowCall();
+      if (e.isEnabled()) {
+         e.engine    = engine;
+         e.operation = op;
+         e.bits      = n;
+         e.messages  = messages;
+         e.time      = nanos;
+         e.commit();
+      }
+   }
+
+   public void aesInit(String backend, String provider, long nanos) {
+      AesInit e = new AesInit();
+      if (e.isEnabled()) {
+         e.backend  = backend;
+         e.provider = provider;
+         e.time     = nanos;
+         e.commit();
+      }
+   }
+
+}
@@ -0,0 +1,266 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Registry of prepared engines for many keys, with key rotation.
+*/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* FF1Keys holds key material for any number of key IDs and a bounded set of prepared
+   engines, (constructed, with every valid size added,) for the ones in use. A ground
+   station decrypts under whichever key ID the traffic names and encrypts under the one
+   active key, which rotates on a schedule.
+
+   - register() stores key material only. The engine for a key ID is prepared on its
+     first use, so a registry can know many more keys than it keeps engines for. The
+     active key ID cannot be registered again, (as it cannot be retired,) so Encrypt()
+     and Decrypt(keyId) never use different material for one key ID; register the new
+     material under a new ID and rotate() to it.
+   - Prepared engines are bounded by capacity. Past that, an engine other than the
+     active key's, (or the one just prepared,) is dropped by CLOCK, (its key stays registered and is prepared again if
+     it comes back.) engine() sets its entry's referenced bit, (a plain read first, so a
+     busy key costs no shared write,) and evict() sweeps a hand over the entries,
+     clearing set bits and dropping the first clear one, as FF1Cache does.
+   - The active key is an immutable Epoch, (key ID, epoch number, engine,) published
+     through one volatile field. rotate() prepares the new engine first and then swaps
+     the reference, so Encrypt() is one volatile read and is never blocked or serialized
+     by a rotation. A call that read the old epoch finishes with the old engine; callers
+     that must record the key ID of a ciphertext read active() once and use that Epoch.
+
+   Lookups are ConcurrentHashMap reads. Preparing a key, (a few microseconds for FF1LS80,
+   256 AES blocks per size for FF1NIST,) only holds up other callers of that same key:
+   the first caller puts an Entry holding the key material in the map, (putIfAbsent,)
+   and builds its engine outside the map under the Entry's own lock, where other
+   callers of that key wait. An engine is kept only if its material is still the
+   registered one afterwards, so a register() racing a preparation can never leave an
+   engine for the replaced key in the map.
+*/
+final class FF1Keys {
+
+   /* Epoch - the active key as of one rotation. */
+   static final class Epoch {
+      final int       keyId;
+      final long      epoch;                // 1 for the first key, +1 per rotation
+      final FF1Engine engine;
+
+      Epoch(int keyId, long epoch, FF1Engine engine) {
+         this.keyId  = keyId;
+         this.epoch  = epoch;
+         this.engine = engine;
+      }
+   }
+
+   /* Entry - the key material for one key ID, its engine once built, and the CLOCK
+      referenced bit.
+   */
+   private static final class Entry {
+      final String       keyStr;
+      volatile FF1Engine engine;            // null until prepare() has built it
+      volatile boolean   referenced = true; // used since the hand last passed
+
+      Entry(String keyStr) {
+         this.keyStr = keyStr;
+      }
+   }
+
+   final String engineName;                 // FF1Engine.create() name, e.g. "packed"
+   final int[]  sizes;                      // added to every engine when prepared
+   final int    capacity;                   // prepared engines kept
+
+   private final Map<Integer, String> keys    = new ConcurrentHashMap<Integer, String>();
+   private final Map<Integer, Entry>  engines = new ConcurrentHashMap<Integer, Entry>();
+   private volatile Epoch active;           // null until the first rotate()
+   private int  hand;                       // CLOCK position, guarded by this
+   private long evictions;                  // guarded by this
+
+   FF1Keys(String engineName, int capacity, int... sizes) {
+      this.engineName = engineName;
+      this.capacity   = Math.max(1, capacity);
+      this.sizes      = sizes.clone();
+   }
+
+   /* register() stores or replaces the key material for keyId, (32 hex digits.) A
+      replaced key's engine is dropped. The active key cannot be replaced.
+   */
+   synchronized boolean register(int keyId, String keyStr) {
+      Epoch a = active;
+      if (a != null && a.keyId == keyId) {
+         FF1Metrics.error("FF1Keys.register: Error - key ID ("+keyId+") is active.");
+         return false;
+      }
+      keys.put(keyId, keyStr);
+      engines.remove(keyId);
+      return true;
+   }
+
+   /* retire() forgets keyId. The active key cannot be retired. */
+   synchronized boolean retire(int keyId) {
+      Epoch a = active;
+      if (a != null && a.keyId == keyId) {
+         FF1Metrics.error("FF1Keys.retire: Error - key ID ("+keyId+") is active.");
+         return false;
+      }
+      engines.remove(keyId);
+      return keys.remove(keyId) != null;
+   }
+
+   /* rotate() makes keyId the active encrypt key and returns the new Epoch. The engine is
+      prepared before the swap, outside the registry's lock, so the first Encrypt() under
+      the new key is not slowed and register(), retire() and evictions are not held up by
+      the build. The lock is taken only to check the material and swap the reference.
+   */
+   Epoch rotate(int keyId) throws IllegalArgumentException {
+      while (true) {
+         Entry en = entry(keyId);
+         synchronized (this) {
+            if (en.keyStr.equals(keys.get(keyId))) {
+               Entry held = engines.putIfAbsent(keyId, en);  // back in, if another key's
+               if (held != null && held != en) {             // ..build evicted it
+                  continue;
+               }
+               Epoch a = active;
+               Epoch next = new Epoch(keyId, (a == null) ? 1 : a.epoch + 1, en.engine);
+               active = next;
+               return next;
+            }
+         }                                    // replaced or retired meanwhile - again
+      }
+   }
+
+   /* active() returns the current Epoch, (null before the first rotate().) */
+   Epoch active() {
+      return active;
+   }
+
+   /* engine() returns the prepared engine for keyId, preparing it if needed. */
+   FF1Engine engine(int keyId) throws IllegalArgumentException {
+      return entry(keyId).engine;
+   }
+
+   private Entry entry(int keyId) throws IllegalArgumentException {
+      Entry en = engines.get(keyId);
+      if (en == null || en.engine == null) {
+         en = prepare(keyId);
+      }
+      if (!en.referenced) {
+         en.referenced = true;                // written only when the hand has cleared it
+      }
+      return en;
+   }
+
+   private Entry prepare(int keyId) throws IllegalArgumentException {
+      while (true) {
+         Entry en = engines.get(keyId);
+         if (en == null) {
+            String keyStr = keys.get(keyId);
+            if (keyStr == null) {
+               FF1Metrics.error("FF1Keys.engine: Error - unknown key ID ("+keyId+").");
+               throw new IllegalArgumentException();
+            }
+            Entry fresh = new Entry(keyStr);
+            en = engines.putIfAbsent(keyId, fresh);
+            if (en == null) {
+               en = fresh;
+            }
+         }
+         try {
+            build(en);
+         }
+         catch (RuntimeException e) {
+            engines.remove(keyId, en);         // e.g. bad key material - the next call retries
+            throw e;
+         }
+         if (en.keyStr.equals(keys.get(keyId))) {
+            if (engines.size() > capacity) {
+               evict(keyId);
+            }
+            return en;
+         }
+         engines.remove(keyId, en);           // replaced or retired meanwhile - again
+      }
+   }
+
+   /* build() prepares en's engine, once, outside the map; callers of the same key wait. */
+   private void build(Entry en) {
+      if (en.engine != null) {
+         return;
+      }
+      synchronized (en) {
+         if (en.engine == null) {
+            FF1Engine e = FF1Engine.create(engineName, en.keyStr);
+            for (int n : sizes) {
+               e.addValidSize(n);
+            }
+            en.engine = e;
+         }
+      }
+   }
+
+   /* evict() drops engines by CLOCK down to capacity, (never the active key's, nor keep's,
+      the key just prepared, which may be about to become active, nor one still being
+      built.) Keys are compared by ID, since two IDs may hold the same material. The hand
+      clears referenced bits as it passes; the first entry found clear is dropped.
+   */
+   private synchronized void evict(int keep) {
+      while (engines.size() > capacity) {
+         Epoch a = active;
+         List<Map.Entry<Integer, Entry>> all = new ArrayList<Map.Entry<Integer, Entry>>(engines.entrySet());
+         Map.Entry<Integer, Entry> victim = null;
+         for (int i=0; i<2*all.size() && victim == null; i=i+1) {  // two sweeps at most
+            hand = (hand + 1 >= all.size()) ? 0 : hand + 1;
+            int   id = all.get(hand).getKey();
+            Entry en = all.get(hand).getValue();
+            if (en.engine == null || id == keep || (a != null && id == a.keyId)) {
+               continue;
+            }
+            if (en.referenced) {
+               en.referenced = false;         // a second chance
+            }
+            else {
+               victim = all.get(hand);
+            }
+         }
+         if (victim == null) {
+            return;                          // only the active and kept engines, (or builds,) left
+         }
+         engines.remove(victim.getKey(), victim.getValue());
+         evictions = evictions + 1;
+      }
+   }
+
+   /* prepared() - engines currently held; evictions() - engines dropped so far. */
+   int prepared() {
+      return engines.size();
+   }
+
+   synchronized long evictions() {
+      return evictions;
+   }
+
+   /*-Encrypt / Decrypt------------------------------------------------------*/
+
+   /* Encrypt() under the active key. */
+   byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      return current().engine.Encrypt(Tweak, Xi);
+   }
+
+   /* Decrypt() under the active key. */
+   byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      return current().engine.Decrypt(Tweak, Yi);
+   }
+
+   /* Decrypt() under any registered key. */
+   byte[] Decrypt(int keyId, byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      return engine(keyId).Decrypt(Tweak, Yi);
+   }
+
+   private Epoch current() throws IllegalArgumentException {
+      Epoch a = active;
+      if (a == null) {
+         FF1Metrics.error("FF1Keys: Error - no active key, (call rotate() first.)");
+         throw new IllegalArgumentException();
+      }
+      return a;
+   }
+
+}
@@ -39,7 +39,7 @@ import javax.crypto.spec.SecretKeySpec;
    The terminology, variable names, and methods employed here follow the original 
    ffx-spec.pdf document rather than the later variations and proposals.
 */
-public class FF1LS80 {
+public class FF1LS80 implements FF1Engine {
    //         | | '-> S80 refers to the custom 80-bit split()
    //         | '---> L   refers to the use of Feistel method Left
    //         '-----> FF1 refers to the algorithm type within the FFX family
@@ -49,14 +49,16 @@ public class FF1LS80 {
    
    // Class Variables.. (FF1 Parameter Set)
    int      radix;                  // size of the symbol set - only {0,1} is supported
-   int      n = 0;                  // message size in bits, a positive multiple of 8
    
-   int[]    Lengths = new int[16];  // Lengths array - valid message sizes in bits
-                                    // ..16 elements is arbitrary, change as needed.
-   int      Lidx = -1;              // watermark index to the Lengths array
+   //       n                       // message size in bits, a positive multiple of 8,
+                                    // ..supplied at run-time by the length of X
+   
+   volatile FF1Plan[] plans = new FF1Plan[0]; // valid message sizes, indexed by n/8 -
+                                    // ..each plan holds split(n), rnds(n) and friends
    
    byte[]   keyHex  = new byte[16]; // A crypto key in byte array form
    SecretKeySpec Keys0;             // packaged AES key
+   FF1Policy policy;                // split(n) and rnds(n) for addValidSize(n)
    
    //       Tweaks                  // supplied only at run-time
    
@@ -67,11 +69,12 @@ public class FF1LS80 {
                                     //                 2 for Right (balanced)
                                     // ..(this class only implements method=1.)
 
-   int      imbalance;              // split(n) sets the fundamental imbalance
+   //       imbalance               // split(n) sets the fundamental imbalance
    
-   int      remainder;              // n-split(n) is the rest of the message
+   //       remainder               // n-split(n) is the rest of the message
    
-   int      rounds;                 // rnds(n) sets minimum rounds of encryption
+   //       rounds                  // rnds(n) sets minimum rounds of encryption
+                                    // ..(all three are per-n, see FF1Plan)
    
    //       F                       // only AES(128) mode-CBC is demonstrated here
    
@@ -82,6 +85,14 @@ public class FF1LS80 {
       addValidSize() must now also be called at least once before Encrypt() or Decrypt().
    */
     FF1LS80(String keyStr) {
+      this(keyStr, FF1Policy.ORIGINAL);
+    }
+
+   /* Constructor with a round policy, (see FF1Policy.) FF1Policy.ORIGINAL is the split(n)
+      and rnds(n) below; any other policy gives different ciphertexts for the same key.
+   */
+    FF1LS80(String keyStr, FF1Policy policy) {
+      this.policy = policy;
       radix      = 2;       // it's a binary symbol set {0,1}
                             // this is strictly documentation - only bitwise is supported
       keyHex     = hexToBytes(keyStr);
@@ -94,73 +105,45 @@ public class FF1LS80 {
    /*-Supporting Methods-----------------------------------------------------*/
    
    /* addValidSize() prepares FF1 to accept a given message length. 
-      Invokes setCurrentSize().
+      Compiles an immutable FF1Plan for n and publishes it in the plan table.
       Populates a portion of the custom FF1 parameter set.
    */
    public int addValidSize(int n) {
-      boolean rc;                     // prep result variable for checkLengths()
-      rc = checkLengths(n);           // in this case, we want a 1 return = no match
-      if (rc) {                       // this is a new n
-         if (n%8==0 && n>=88) {       // check that n is a multiple of 8 and in range
-            Lidx = Lidx + 1;          // first element is index 0, (-1+1=0.)
-            Lengths[Lidx] = n;        // only one size is needed for extended squitter
-            setCurrentSize(n);        // update all the parameters dependent on n
+      return addValidSize(n, policy);
+   }
+
+   /* addValidSize() with a round policy for this length only. */
+   public synchronized int addValidSize(int n, FF1Policy policy) {
+      if (FF1Plan.lookup(plans, n) == null) { // this is a new n
+         FF1Plan plan = policy.plan(n);   // null unless n is a multiple of 8 and in range
+         if (plan != null) {
+            plans = FF1Plan.with(plans, plan);
             return 0;                 // normal return
          }
          else {
-            System.out.println("FF1LS80.addValidSize: Error - message size ("+n+") is not valid.");
-            return 2; // either n is not a multiple of 8 or n is less than 88
+            FF1Metrics.error("FF1LS80.addValidSize: Error - message size ("+n+") is not valid.");
+            return 2; // either n is not a multiple of 8 or the policy cannot split it
          }
       }
       else {
-         System.out.println("FF1LS80.addValidSize: Warning - message size ("+n+") is already added.");
+         FF1Metrics.warning("FF1LS80.addValidSize: Warning - message size ("+n+") is already added.");
          return 1; // duplicate size ignored
       }
    }
 
-   /* validateInput() does one of three things:
-      1.) Nothing. The message size is the same. No changes are needed.
+   /* validateInput() does one of two things:
+      1.) Return the plan for this message size, (an O(1) lookup by n/8.)
       2.) Throw IllegalArgumentException to begin termination of the process.
-      3.) The class is adjusted to process a different valid message size.
-      It is invoked by Encrypt(), and Decrypt().
+      It is invoked by Encrypt(), and Decrypt(). Nothing is changed, so concurrent calls
+      with different message sizes do not interfere.
    */
-   private void validateInput(int n) throws IllegalArgumentException {
-      boolean rc;                     // prep result variable in case we need checkLengths()
-      if (n != this.n) {              // Is the input a different size this time?
-         rc = checkLengths(n);        // ..Yes, make sure this is a known n.
-         if (rc) {                    // true return means no match found
-            System.out.println("FF1LS80.validateInput: Error - unanticipated message size ("+n+").");
-            throw new IllegalArgumentException(); // every n must be known in advance
-         }
-         else {                       // this is a known n (match found)
-            setCurrentSize(n);        // Update all the parameters dependent on n
-         }
+   private FF1Plan validateInput(int n) throws IllegalArgumentException {
+      FF1Plan plan = FF1Plan.lookup(plans, n);
+      if (plan == null) {             // every n must be known in advance
+         FF1Metrics.error("FF1LS80.validateInput: Error - unanticipated message size ("+n+").");
+         throw new IllegalArgumentException();
       }
-   }
-   
-   /* checkLengths() is a simple search of the valid lengths array for a given value.
-      It is invoked by addValidSize(), Encrypt(), and Decrypt().
-      Zero return means a match is found.
-      Return value 1 means no match is found.
-   */
-   private boolean checkLengths(int n) {
-      for (int i=0; i<Lidx+1; i=i+1) {
-         if (Lengths[i]==n) {         // check if this n is already known
-             return false;            // yes, this n is known as a valid length
-         }                            // no, check the next length
-      }
-      return true;                    // no match found
-   }
-
-   /* setCurrentSize() updates all the FF1 parameters dependent on n. 
-      Invokes split(), rnds().
-   */
-   private void setCurrentSize(int n) {
-      this.n    = n;            // set the class n value to the local n value
-      imbalance = split(n);
-      remainder = n-imbalance;  // term not part of spec - compliment of imbalance, mod n
-      rounds    = rnds(n);
-      return;
+      return plan;
    }
    
    /* split(n) function required by FFX specification...
@@ -170,7 +153,7 @@ public class FF1LS80 {
       with the balanced parameter set A2.) I have selected n-80 to unbalance the split 
       without creating remainders that are not byte-aligned.
    */
-   private int split(int n) {
+   static int split(int n) {
       int nSplit = n-80;
       return nSplit;
    }
@@ -183,7 +166,7 @@ public class FF1LS80 {
       original method is employed here and consideration should be given to updating this 
       method as FFX matures into a true standard.
    */
-   private int rnds(int n) {
+   static int rnds(int n) {
       int nRounds = (int) Math.ceil((n*4.0)/split(n)); 
       return nRounds;
    }
@@ -237,14 +220,22 @@ public class FF1LS80 {
          end if
       }
       In this implementation, the key is set at instantiation. Just Tweak and X are passed.
+      If AES fails, (or the Tweak is not 16 bytes,) the error is reported to FF1Metrics and
+      IllegalStateException is thrown; Xi may then be partly encrypted and must not be used.
    */
    public byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      FF1Plan plan;
       try {
-         validateInput(Xi.length*8);          // make sure this n is known
+         plan = validateInput(Xi.length*8);   // make sure this n is known
       }
       catch (IllegalArgumentException e) {
          throw new IllegalArgumentException(); // all lengths must be known in advance
       }
+      int n         = plan.n;                 // this message's FF1 parameters
+      int imbalance = plan.imbalance;
+      int remainder = plan.remainder;
+      int rounds    = plan.rounds;
       // BitSets round up to multiples of 64 bits
       BitSet X  = new BitSet(n);              // the plaintext
       BitSet A  = new BitSet(imbalance);      // first portion of plaintext - becomes encrypted
@@ -258,6 +249,7 @@ public class FF1LS80 {
       BitSet Z2 = new BitSet(imbalance);      // interim enc factor pending XOR with A 
       BitSet C  = new BitSet(imbalance);      // interim enc (C and A are the same size)
       byte[] C2Cipher = new byte[Asize];      // ..result for this FF1 round
+      int failed = 1;                         // 0 once every round has run
       try {
          // For AES-CBC from Cipher, PKCS5 is processed internally as PKCS7.
          Cipher AESCBC = Cipher.getInstance("AES/CBC/PKCS5Padding"); // explicit to ensure CBC mode
@@ -304,26 +296,35 @@ public class FF1LS80 {
             // Xi is ready for the next FF1 round
          }
          // Xi is fully encrypted
+         failed = 0;
       }
       catch (NoSuchAlgorithmException noSuchAlgo) {
-         System.out.println("FF1LS80.Encrypt: Error - No Such Algorithm exists " + noSuchAlgo);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - No Such Algorithm exists " + noSuchAlgo);
       }
       catch (NoSuchPaddingException noSuchPad) {
-         System.out.println("FF1LS80.Encrypt: Error - No Such Padding exists " + noSuchPad);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - No Such Padding exists " + noSuchPad);
       }
       catch (InvalidKeyException invalidKey) {
-         System.out.println("FF1LS80.Encrypt: Error - Invalid Key " + invalidKey);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - Invalid Key " + invalidKey);
       }
       catch (BadPaddingException badPadding) {
-         System.out.println("FF1LS80.Encrypt: Error - Bad Padding " + badPadding);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - Bad Padding " + badPadding);
       }
       catch (IllegalBlockSizeException illegalBlockSize) {
-         System.out.println("FF1LS80.Encrypt: Error - Illegal Block Size " + illegalBlockSize);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - Illegal Block Size " + illegalBlockSize);
       }
       catch (InvalidAlgorithmParameterException invalidParam) {
-         System.out.println("FF1LS80.Encrypt: Error - Invalid Parameter " + invalidParam);
+         FF1Metrics.error("FF1LS80.Encrypt: Error - Invalid Parameter " + invalidParam);
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80", FF1Metrics.ENCRYPT, n, t0, 1, failed);
+         }
+      }
+      if (failed != 0) {
+         throw new IllegalStateException(); // not encrypted, (reported above)
       }
-      return Xi; // a result is returned - even if encryption failed
+      return Xi;
    }
 
    /*-Decryption-------------------------------------------------------------*/
@@ -345,14 +346,21 @@ public class FF1LS80 {
          end if
       }
       In this implementation, the key is set at instantiation. Just Tweak and Y are passed.
+      An AES failure throws IllegalStateException, as in Encrypt().
    */
    public byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      FF1Plan plan;
       try {
-         validateInput(Yi.length*8);          // make sure this n is known
+         plan = validateInput(Yi.length*8);   // make sure this n is known
       }
       catch (IllegalArgumentException e) {
          throw new IllegalArgumentException(); // all lengths must be known in advance
       }
+      int n         = plan.n;                 // this message's FF1 parameters
+      int imbalance = plan.imbalance;
+      int remainder = plan.remainder;
+      int rounds    = plan.rounds;
       // BitSets round up to multiples of 64 bits
       BitSet Y  = new BitSet(n);              // the ciphertext
       BitSet B  = new BitSet(remainder);      // first portion of ciphertext - now the larger piece
@@ -366,6 +374,7 @@ public class FF1LS80 {
       BitSet Z2 = new BitSet(imbalance);      // interim dec factor pending XOR with C
       BitSet A  = new BitSet(imbalance);      // interim dec (C and A are the same size)
       byte[] A2Cipher = new byte[Csize];      // ..result for this FF1 round
+      int failed = 1;                         // 0 once every round has run
       try {
          // For AES-CBC from Cipher, PKCS5 is processed internally as PKCS7.
          Cipher AESCBC = Cipher.getInstance("AES/CBC/PKCS5Padding"); // explicit to ensure CBC mode
@@ -414,26 +423,35 @@ public class FF1LS80 {
             // Yi is ready for the next FF1 round
          }
          // Yi is fully decrypted
+         failed = 0;
       }
       catch (NoSuchAlgorithmException noSuchAlgo) {
-         System.out.println("FF1LS80.Decrypt: Error - No Such Algorithm exists " + noSuchAlgo);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - No Such Algorithm exists " + noSuchAlgo);
       }
       catch (NoSuchPaddingException noSuchPad) {
-         System.out.println("FF1LS80.Decrypt: Error - No Such Padding exists " + noSuchPad);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - No Such Padding exists " + noSuchPad);
       }
       catch (InvalidKeyException invalidKey) {
-         System.out.println("FF1LS80.Decrypt: Error - Invalid Key " + invalidKey);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - Invalid Key " + invalidKey);
       }
       catch (BadPaddingException badPadding) {
-         System.out.println("FF1LS80.Decrypt: Error - Bad Padding " + badPadding);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - Bad Padding " + badPadding);
       }
       catch (IllegalBlockSizeException illegalBlockSize) {
-         System.out.println("FF1LS80.Decrypt: Error - Illegal Block Size " + illegalBlockSize);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - Illegal Block Size " + illegalBlockSize);
       }
       catch (InvalidAlgorithmParameterException invalidParam) {
-         System.out.println("FF1LS80.Decrypt: Error - Invalid Parameter " + invalidParam);
+         FF1Metrics.error("FF1LS80.Decrypt: Error - Invalid Parameter " + invalidParam);
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80", FF1Metrics.DECRYPT, n, t0, 1, failed);
+         }
+      }
+      if (failed != 0) {
+         throw new IllegalStateException(); // not decrypted, (reported above)
       }
-      return Yi; // a result is returned - even if decryption failed
+      return Yi;
    }
 
 }
@@ -0,0 +1,607 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Packed-word engine for the FF1LS80 parameter set.
+   This produces the same ciphertexts as FF1LS80, including the corner cases where the
+   BitSet implementation drops a trailing zero byte, (see "Reference quirks" below.)
+*/
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.spec.SecretKeySpec;
+
+/* FF1LS80Packed holds the working message in two primitive long words instead of a
+   BitSet, so each round is a handful of shifts, masks and one raw AES block. Nothing is
+   allocated per round and nothing is allocated per message once the instance is built.
+
+   Bit order follows BitSet.valueOf(): bit i of the message is bit (i%8) of byte (i/8).
+   Read little-endian into (lo,hi), bit i of the message is bit (i%64) of word (i/64),
+   so the spec's A = X[1..split(n)] is simply the low split(n) bits of the pair and
+   B = X[split(n)+1..n] is the pair shifted right by split(n).
+
+   The AES call is the one FF1LS80 makes through AES/CBC/PKCS5Padding. B is at most 15
+   bytes, so CBC+PKCS5 encrypts exactly one block, AES(Tweak XOR (B || pad)), and the
+   first split(n) bits of that block are used. FF1Round computes that block. With the
+   default policy B is 80 bits, so the block is AES(Tweak XOR (B || 0x06*6)).
+
+   Reference quirks... BitSet.toByteArray() drops trailing zero bytes. FF1LS80 forces a
+   bit to pad a value that is more than one byte short, but a value whose bit length is
+   exactly (size-8) still comes back one byte short. FF1LS80 then behaves as follows and
+   this engine reproduces it so archived ciphertexts stay readable:
+   - Encrypt, B short: System.arraycopy() throws. Here IllegalArgumentException is thrown.
+   - Encrypt, C short: the last message byte keeps its value from before the round.
+   - Decrypt, B short: AES sees 9 bytes, (PKCS5 pads with 0x07,) and the last message
+                       byte keeps its value from before the round.
+   - Decrypt, A short: System.arraycopy() throws. Here IllegalArgumentException is thrown.
+   An AES failure is reported to FF1Metrics and throws IllegalStateException, as in
+   FF1LS80; the frame calls leave the frame unchanged then.
+
+   Working state is limited to 128 bits, so n <= 128, (88 <= n <= 128 with the default
+   policy.) Per-length parameters come from an immutable FF1Plan, so one instance can be
+   shared by any number of threads. The split and round count come from an FF1Policy.
+*/
+public class FF1LS80Packed implements FF1Batch {
+
+   // Class Variables.. (FF1 Parameter Set - same meaning as in FF1LS80)
+   volatile FF1Plan[] plans = new FF1Plan[0]; // valid message sizes, indexed by n/8
+
+   FF1Policy policy;                // split(n) and rnds(n) for addValidSize(n)
+
+   FF1Round Round;                  // F - one raw AES block per round, per-thread Cipher
+
+   /* Explicit Constructor
+      Expects an AES(128) key supplied as 32 hexidecimal digits.
+      addValidSize() must now also be called at least once before Encrypt() or Decrypt().
+   */
+   FF1LS80Packed(String keyStr) {
+      this(keyStr, FF1Policy.ORIGINAL);
+   }
+
+   /* Constructor with a round policy for every length added with addValidSize(n). */
+   FF1LS80Packed(String keyStr, FF1Policy policy) {
+      this.policy = policy;
+      Round = new FF1Round(new SecretKeySpec(FF1LS80.hexToBytes(keyStr), "AES"));
+   }
+
+   /*-Supporting Methods-----------------------------------------------------*/
+
+   /* addValidSize() prepares the engine to accept a given message length.
+      Return codes match FF1LS80.addValidSize(); n above 128 is also rejected (2).
+   */
+   public int addValidSize(int n) {
+      return addValidSize(n, policy);
+   }
+
+   /* addValidSize() with a round policy for this length only. */
+   public synchronized int addValidSize(int n, FF1Policy policy) {
+      if (FF1Plan.lookup(plans, n) != null) {
+         FF1Metrics.warning("FF1LS80Packed.addValidSize: Warning - message size ("+n+") is already added.");
+         return 1; // duplicate size ignored
+      }
+      FF1Plan plan = policy.plan(n);
+      if (plan == null || !plan.packed) {
+         FF1Metrics.error("FF1LS80Packed.addValidSize: Error - message size ("+n+") is not valid for "+policy+".");
+         return 2; // the policy cannot split n, or n is above 128
+      }
+      plans = FF1Plan.with(plans, plan);
+      return 0;
+   }
+
+   /* validateInput() - same contract as FF1LS80.validateInput(). */
+   private FF1Plan validateInput(int n) throws IllegalArgumentException {
+      FF1Plan plan = FF1Plan.lookup(plans, n);
+      if (plan == null) {
+         FF1Metrics.error("FF1LS80Packed.validateInput: Error - unanticipated message size ("+n+").");
+         throw new IllegalArgumentException(); // every n must be known in advance
+      }
+      return plan;
+   }
+
+   /* loadLo/loadHi/store - a message as (lo, hi) words, whatever its byte length. */
+   private static long loadLo(byte[] M) {
+      return FF1Round.getLE(M, 0, Math.min(8, M.length));
+   }
+   private static long loadHi(byte[] M) {
+      return FF1Round.getLE(M, 8, M.length-8);
+   }
+   private static void store(byte[] M, long lo, long hi) {
+      FF1Round.putLE(M, 0, Math.min(8, M.length), lo);
+      FF1Round.putLE(M, 8, M.length-8, hi);
+   }
+
+   /*-Encryption-------------------------------------------------------------*/
+
+   /* Encrypt() - same contract and output as FF1LS80.Encrypt().
+      Per round: A = low split(n) bits, B = X >>> split(n), C = A XOR F(B), X = B || C.
+   */
+   public byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(Xi.length*8); // make sure this n is known
+      if (Tweak.length != 16) {
+         FF1Metrics.error("FF1LS80Packed.Encrypt: Error - Invalid Parameter (Tweak length)");
+         throw new IllegalStateException(); // not encrypted
+      }
+      return encrypt(plan, FF1Round.getLE(Tweak, 0, 8), FF1Round.getLE(Tweak, 8, 8), Xi);
+   }
+
+   /* Encrypt() for an ADS-B tweak byte, (the Tweak is 16 copies of preTweak.)
+      Uses the precomputed IV words, so the caller does not build a Tweak array.
+   */
+   public byte[] Encrypt(byte preTweak, byte[] Xi) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(Xi.length*8);
+      long iv = Round.tweakIV[preTweak & 0xFF];
+      return encrypt(plan, iv, iv, Xi);
+   }
+
+   private byte[] encrypt(FF1Plan plan, long ivLo, long ivHi, byte[] Xi)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      boolean ok = false;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         s.words[0] = loadLo(Xi);
+         s.words[1] = loadHi(Xi);
+         ok = encryptWords(plan, s, ivLo, ivHi);
+         store(Xi, s.words[0], s.words[1]);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.Encrypt: Error - " + e);
+         throw new IllegalStateException(); // not encrypted
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80Packed", FF1Metrics.ENCRYPT, plan.n, t0, 1, ok ? 0 : 1);
+         }
+      }
+      if (!ok) {
+         FF1Metrics.error("FF1LS80Packed.Encrypt: Error - B is one byte short (reference fails here)");
+         throw new IllegalArgumentException();
+      }
+      return Xi;
+   }
+
+   /* encryptWords() runs every round on the message words in s.words. It returns false,
+      with the words as they were before the failing round, where FF1LS80 would throw.
+   */
+   private static boolean encryptWords(FF1Plan plan, FF1Round.Scratch s, long ivLo, long ivHi)
+         throws GeneralSecurityException {
+      int  a = plan.imbalance;
+      int  b = plan.remainder;
+      long xLo = s.words[0];
+      long xHi = s.words[1];
+      for (int i=0; i<plan.rounds; i=i+1) {
+         long aLo = xLo & plan.maskALo;
+         long aHi = xHi & plan.maskAHi;
+         long bLo = FF1Plan.shrLo(xLo, xHi, a);
+         long bHi = FF1Plan.shrHi(xHi, a);
+         if (FF1Plan.bitLength(bLo, bHi) == b-8) {
+            s.words[0] = xLo;                 // the reference stops part way, too
+            s.words[1] = xHi;
+            return false;
+         }
+         long zLo = FF1Round.F(s, ivLo, ivHi, bLo, bHi, plan.padLo, plan.padHi);
+         long cLo = (aLo ^ zLo) & plan.maskALo;
+         long cHi = (aHi ^ s.zHi) & plan.maskAHi;
+         long prevLo = xLo;
+         long prevHi = xHi;
+         xLo = bLo | FF1Plan.shlLo(cLo, b);   // X = B || C
+         xHi = bHi | FF1Plan.shlHi(cLo, cHi, b);
+         if (FF1Plan.bitLength(cLo, cHi) == a-8) {
+            xLo = (xLo & ~plan.topLo) | (prevLo & plan.topLo); // C short - last byte is stale
+            xHi = (xHi & ~plan.topHi) | (prevHi & plan.topHi);
+         }
+      }
+      s.words[0] = xLo;
+      s.words[1] = xHi;
+      return true;
+   }
+
+   /*-Decryption-------------------------------------------------------------*/
+
+   /* Decrypt() - same contract and output as FF1LS80.Decrypt().
+      Per round: B = low n-split(n) bits, C = the rest, A = C XOR F(B), Y = A || B.
+   */
+   public byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(Yi.length*8); // make sure this n is known
+      if (Tweak.length != 16) {
+         FF1Metrics.error("FF1LS80Packed.Decrypt: Error - Invalid Parameter (Tweak length)");
+         throw new IllegalStateException(); // not decrypted
+      }
+      return decrypt(plan, FF1Round.getLE(Tweak, 0, 8), FF1Round.getLE(Tweak, 8, 8), Yi);
+   }
+
+   /* Decrypt() for an ADS-B tweak byte, (the Tweak is 16 copies of preTweak.) */
+   public byte[] Decrypt(byte preTweak, byte[] Yi) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(Yi.length*8);
+      long iv = Round.tweakIV[preTweak & 0xFF];
+      return decrypt(plan, iv, iv, Yi);
+   }
+
+   private byte[] decrypt(FF1Plan plan, long ivLo, long ivHi, byte[] Yi)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      boolean ok = false;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         s.words[0] = loadLo(Yi);
+         s.words[1] = loadHi(Yi);
+         ok = decryptWords(plan, s, ivLo, ivHi);
+         store(Yi, s.words[0], s.words[1]);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.Decrypt: Error - " + e);
+         throw new IllegalStateException(); // not decrypted
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80Packed", FF1Metrics.DECRYPT, plan.n, t0, 1, ok ? 0 : 1);
+         }
+      }
+      if (!ok) {
+         FF1Metrics.error("FF1LS80Packed.Decrypt: Error - A is one byte short (reference fails here)");
+         throw new IllegalArgumentException();
+      }
+      return Yi;
+   }
+
+   /* decryptWords() - the inverse of encryptWords(). */
+   private static boolean decryptWords(FF1Plan plan, FF1Round.Scratch s, long ivLo, long ivHi)
+         throws GeneralSecurityException {
+      int  a = plan.imbalance;
+      int  b = plan.remainder;
+      long yLo = s.words[0];
+      long yHi = s.words[1];
+      for (int i=plan.rounds-1; i>=0; i=i-1) {
+         long bLo = yLo & plan.maskBLo;
+         long bHi = yHi & plan.maskBHi;
+         long cLo = FF1Plan.shrLo(yLo, yHi, b);
+         long cHi = FF1Plan.shrHi(yHi, b);
+         boolean shortB = FF1Plan.bitLength(bLo, bHi) == b-8;
+         long zLo = shortB ? FF1Round.F(s, ivLo, ivHi, bLo, bHi, plan.shortLo, plan.shortHi)
+                           : FF1Round.F(s, ivLo, ivHi, bLo, bHi, plan.padLo, plan.padHi);
+         long aLo = (cLo ^ zLo) & plan.maskALo;
+         long aHi = (cHi ^ s.zHi) & plan.maskAHi;
+         if (FF1Plan.bitLength(aLo, aHi) == a-8) {
+            s.words[0] = yLo;                 // the reference stops part way, too
+            s.words[1] = yHi;
+            return false;
+         }
+         long prevLo = yLo;
+         long prevHi = yHi;
+         yLo = aLo | FF1Plan.shlLo(bLo, a);   // Y = A || B
+         yHi = aHi | FF1Plan.shlHi(bLo, bHi, a);
+         if (shortB) {
+            yLo = (yLo & ~plan.topLo) | (prevLo & plan.topLo); // last byte is stale
+            yHi = (yHi & ~plan.topHi) | (prevHi & plan.topHi);
+         }
+      }
+      s.words[0] = yLo;
+      s.words[1] = yHi;
+      return true;
+   }
+
+   /*-Frames-----------------------------------------------------------------*/
+
+   /* A 1090ES frame is 14 bytes: byte 0 (DF and CA) is sent in the clear and is the basis
+      of the Tweak, and bytes 1..13 are the 104-bit FFX message. These methods work on a
+      frame where it lies - in a byte[] or in a heap or direct ByteBuffer - and encrypt or
+      decrypt bytes 1..13 in place. No Tweak array or message copy is made. 104 must have
+      been added with addValidSize(). Failures behave as in Encrypt() and Decrypt(), and
+      the ByteBuffer's position, limit and byte order are left alone.
+   */
+   static final int FRAME_BYTES = 14;         // 112-bit extended squitter
+
+   public void encryptFrame(byte[] frame, int off) throws IllegalArgumentException {
+      frameWords(frame, off, true);
+   }
+
+   public void decryptFrame(byte[] frame, int off) throws IllegalArgumentException {
+      frameWords(frame, off, false);
+   }
+
+   public void encryptFrame(ByteBuffer frame, int off) throws IllegalArgumentException {
+      frameBounds(off, frame.limit());            // (a heap buffer may be a slice of a larger array)
+      if (frame.hasArray()) {
+         frameWords(frame.array(), frame.arrayOffset() + off, true);
+      }
+      else {
+         frameWords(frame, off, true);
+      }
+   }
+
+   public void decryptFrame(ByteBuffer frame, int off) throws IllegalArgumentException {
+      frameBounds(off, frame.limit());
+      if (frame.hasArray()) {
+         frameWords(frame.array(), frame.arrayOffset() + off, false);
+      }
+      else {
+         frameWords(frame, off, false);
+      }
+   }
+
+   /* frameBounds() - a frame at off must lie within the first limit bytes. */
+   private static void frameBounds(int off, int limit) {
+      if (off < 0 || off > limit - FRAME_BYTES) {
+         throw new IndexOutOfBoundsException("frame at " + off + " of " + limit);
+      }
+   }
+
+   private void frameWords(byte[] frame, int off, boolean enc) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(104);
+      frameBounds(off, frame.length);
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0;
+      boolean ok = false;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         long iv = Round.tweakIV[frame[off] & 0xFF];
+         s.words[0] = FF1Round.getLE(frame, off+1, 8);
+         s.words[1] = FF1Round.getLE(frame, off+9, 5);
+         ok = enc ? encryptWords(plan, s, iv, iv) : decryptWords(plan, s, iv, iv);
+         FF1Round.putLE(frame, off+1, 8, s.words[0]);
+         FF1Round.putLE(frame, off+9, 5, s.words[1]);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.frame: Error - " + e);
+         throw new IllegalStateException(); // the frame is left unchanged
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80Packed", enc ? FF1Metrics.ENCRYPT : FF1Metrics.DECRYPT, 104,
+                              t0, 1, ok ? 0 : 1);
+         }
+      }
+      failed(ok, enc);
+   }
+
+   private void frameWords(ByteBuffer frame, int off, boolean enc) throws IllegalArgumentException {
+      FF1Plan plan = validateInput(104);
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0;
+      boolean ok = false;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         long iv = Round.tweakIV[frame.get(off) & 0xFF];
+         s.words[0] = FF1Round.getLE(frame, off+1, 8);
+         s.words[1] = FF1Round.getLE(frame, off+9, 5);
+         ok = enc ? encryptWords(plan, s, iv, iv) : decryptWords(plan, s, iv, iv);
+         FF1Round.putLE(frame, off+1, 8, s.words[0]);
+         FF1Round.putLE(frame, off+9, 5, s.words[1]);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.frame: Error - " + e);
+         throw new IllegalStateException(); // the frame is left unchanged
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1LS80Packed", enc ? FF1Metrics.ENCRYPT : FF1Metrics.DECRYPT, 104,
+                              t0, 1, ok ? 0 : 1);
+         }
+      }
+      failed(ok, enc);
+   }
+
+   /* failed() reports a frame the reference would reject, (it is left part way.) */
+   private static void failed(boolean ok, boolean enc) throws IllegalArgumentException {
+      if (!ok) {
+         FF1Metrics.error("FF1LS80Packed.frame: Error - " + (enc ? "B" : "A")
+                            + " is one byte short (reference fails here)");
+         throw new IllegalArgumentException();
+      }
+   }
+
+   /*-Batch------------------------------------------------------------------*/
+
+   /* Batch - per-thread working state for encryptBatch() and decryptBatch(). */
+   static final class Batch {
+      long[]    lo   = new long[0];     // message words, as in encrypt()/decrypt()
+      long[]    hi   = new long[0];
+      FF1Plan[] plan = new FF1Plan[0];  // each message's plan
+      int[]     left = new int[0];      // rounds still to run, -1 once the message fails
+      int[]     idx  = new int[0];      // message behind each AES block this round
+
+      void ensure(int count) {
+         if (lo.length < count) {
+            lo   = new long[count];
+            hi   = new long[count];
+            plan = new FF1Plan[count];
+            left = new int[count];
+            idx  = new int[count];
+         }
+      }
+   }
+
+   private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+   private Batch batch(int count) {
+      Batch b = batch.get();
+      if (b == null) {
+         b = new Batch();
+         batch.set(b);
+      }
+      b.ensure(count);
+      return b;
+   }
+
+   /* encryptBatch() encrypts Xi[0..count-1] in place, message k under the ADS-B tweak
+      byte preTweak[k]. Round i runs for every message before round i+1 starts, and each
+      round is one multi-block AES call. Results match Encrypt(preTweak[k], Xi[k]).
+      Messages may have different (added) lengths; an unknown length rejects the whole
+      batch with IllegalArgumentException before anything is changed. A message that
+      Encrypt() would reject is left as Encrypt() leaves it and flagged in failed[k],
+      (failed may be null.) If AES itself fails every message is flagged, whatever state
+      it was left in. Returns the number of failed messages.
+   */
+   public int encryptBatch(byte[] preTweak, byte[][] Xi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Batch b = batch(count);
+      int maxRounds = prepare(b, Xi, count, failed);
+      int failures = 0;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         FF1Round.ensureBatch(s, count);
+         for (int r=0; r<maxRounds; r=r+1) {
+            int m = 0;                        // AES blocks this round
+            for (int k=0; k<count; k=k+1) {
+               if (b.left[k] <= 0) {
+                  continue;                   // finished, or failed
+               }
+               FF1Plan p = b.plan[k];
+               long bLo = FF1Plan.shrLo(b.lo[k], b.hi[k], p.imbalance);
+               long bHi = FF1Plan.shrHi(b.hi[k], p.imbalance);
+               if (FF1Plan.bitLength(bLo, bHi) == p.remainder-8) {
+                  failures = failures + fail(b, k, Xi[k], failed); // B short
+                  continue;
+               }
+               long iv = Round.tweakIV[preTweak[k] & 0xFF];
+               FF1Round.putBlock(s, m, iv, iv, bLo, bHi, p.padLo, p.padHi);
+               b.idx[m] = k;
+               m = m + 1;
+            }
+            FF1Round.blocks(s, m);
+            for (int j=0; j<m; j=j+1) {
+               int k = b.idx[j];
+               FF1Plan p = b.plan[k];
+               long xLo = b.lo[k];
+               long xHi = b.hi[k];
+               long cLo = (xLo ^ FF1Round.getBlock(s, j)) & p.maskALo;
+               long cHi = (xHi ^ FF1Round.getBlockHi(s, j)) & p.maskAHi;
+               long bLo = FF1Plan.shrLo(xLo, xHi, p.imbalance);
+               long bHi = FF1Plan.shrHi(xHi, p.imbalance);
+               b.lo[k]  = bLo | FF1Plan.shlLo(cLo, p.remainder); // X = B || C
+               b.hi[k]  = bHi | FF1Plan.shlHi(cLo, cHi, p.remainder);
+               if (FF1Plan.bitLength(cLo, cHi) == p.imbalance-8) {
+                  b.lo[k] = (b.lo[k] & ~p.topLo) | (xLo & p.topLo); // C short
+                  b.hi[k] = (b.hi[k] & ~p.topHi) | (xHi & p.topHi);
+               }
+               b.left[k] = b.left[k] - 1;
+            }
+         }
+         finish(b, Xi, count);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.encryptBatch: Error - " + e);
+         failures = failAll(failed, count);
+         return count; // nothing further is written back, (no result may be used)
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1LS80Packed", FF1Metrics.ENCRYPT_BATCH,
+                              FF1Metrics.batchBits(Xi, null, count), t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+   /* decryptBatch() decrypts Yi[0..count-1] in place - see encryptBatch(). */
+   public int decryptBatch(byte[] preTweak, byte[][] Yi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Batch b = batch(count);
+      int maxRounds = prepare(b, Yi, count, failed);
+      int failures = 0;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         FF1Round.ensureBatch(s, count);
+         for (int r=0; r<maxRounds; r=r+1) {
+            int m = 0;
+            for (int k=0; k<count; k=k+1) {
+               if (b.left[k] <= 0) {
+                  continue;
+               }
+               FF1Plan p = b.plan[k];
+               long bLo = b.lo[k] & p.maskBLo;
+               long bHi = b.hi[k] & p.maskBHi;
+               long iv  = Round.tweakIV[preTweak[k] & 0xFF];
+               if (FF1Plan.bitLength(bLo, bHi) == p.remainder-8) {
+                  FF1Round.putBlock(s, m, iv, iv, bLo, bHi, p.shortLo, p.shortHi); // B short
+               }
+               else {
+                  FF1Round.putBlock(s, m, iv, iv, bLo, bHi, p.padLo, p.padHi);
+               }
+               b.idx[m] = k;
+               m = m + 1;
+            }
+            FF1Round.blocks(s, m);
+            for (int j=0; j<m; j=j+1) {
+               int k = b.idx[j];
+               FF1Plan p = b.plan[k];
+               long yLo = b.lo[k];
+               long yHi = b.hi[k];
+               long bLo = yLo & p.maskBLo;
+               long bHi = yHi & p.maskBHi;
+               long aLo = (FF1Plan.shrLo(yLo, yHi, p.remainder) ^ FF1Round.getBlock(s, j)) & p.maskALo;
+               long aHi = (FF1Plan.shrHi(yHi, p.remainder) ^ FF1Round.getBlockHi(s, j)) & p.maskAHi;
+               if (FF1Plan.bitLength(aLo, aHi) == p.imbalance-8) {
+                  failures = failures + fail(b, k, Yi[k], failed); // A short
+                  continue;
+               }
+               b.lo[k] = aLo | FF1Plan.shlLo(bLo, p.imbalance); // Y = A || B
+               b.hi[k] = aHi | FF1Plan.shlHi(bLo, bHi, p.imbalance);
+               if (FF1Plan.bitLength(bLo, bHi) == p.remainder-8) {
+                  b.lo[k] = (b.lo[k] & ~p.topLo) | (yLo & p.topLo); // B short
+                  b.hi[k] = (b.hi[k] & ~p.topHi) | (yHi & p.topHi);
+               }
+               b.left[k] = b.left[k] - 1;
+            }
+         }
+         finish(b, Yi, count);
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1LS80Packed.decryptBatch: Error - " + e);
+         failures = failAll(failed, count);
+         return count; // nothing further is written back, (no result may be used)
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1LS80Packed", FF1Metrics.DECRYPT_BATCH,
+                              FF1Metrics.batchBits(Yi, null, count), t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+   /* prepare() validates every length, loads the words and returns the most rounds. */
+   private int prepare(Batch b, byte[][] M, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      int maxRounds = 0;
+      for (int k=0; k<count; k=k+1) {
+         b.plan[k] = validateInput(M[k].length*8);
+         maxRounds = Math.max(maxRounds, b.plan[k].rounds);
+      }
+      for (int k=0; k<count; k=k+1) {
+         b.lo[k]   = loadLo(M[k]);
+         b.hi[k]   = loadHi(M[k]);
+         b.left[k] = b.plan[k].rounds;
+         if (failed != null) {
+            failed[k] = false;
+         }
+      }
+      return maxRounds;
+   }
+
+   /* fail() stores a rejected message as the single-message path leaves it. */
+   private static int fail(Batch b, int k, byte[] M, boolean[] failed) {
+      store(M, b.lo[k], b.hi[k]);
+      b.left[k] = -1;
+      if (failed != null) {
+         failed[k] = true;
+      }
+      return 1;
+   }
+
+   /* failAll() flags every message after an AES failure, so no caller mistakes an
+      unchanged message for its result. Returns count.
+   */
+   static int failAll(boolean[] failed, int count) {
+      if (failed != null) {
+         java.util.Arrays.fill(failed, 0, count, true);
+      }
+      return count;
+   }
+
+   /* finish() writes the words of every message that completed back to its array. */
+   private static void finish(Batch b, byte[][] M, int count) {
+      for (int k=0; k<count; k=k+1) {
+         if (b.left[k] == 0) {
+            store(M[k], b.lo[k], b.hi[k]);
+         }
+      }
+   }
+
+}
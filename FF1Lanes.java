@@ -0,0 +1,380 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Lane-parallel batch engine for the FF1LS80 parameter set.
+*/
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.security.GeneralSecurityException;
+
+/* FF1Lanes is FF1LS80Packed with its batches run lane-parallel, for bulk work such as
+   re-encrypting archives and capture files. A batch is grouped by message length and a
+   group is held as columns, (lo[], hi[] and iv[], one lane per message,) so a Feistel
+   round is three passes over the whole group:
+   - in:  split off B, flag the reference's short-B case, and build every lane's AES
+          block, IV XOR (B || pad);
+   - AES: one multi-block call for the group, (see FF1Round.blocks();)
+   - out: XOR the AES output into A and reassemble B || C, (or A || B,) in every lane.
+   Within a group the plan is the same for every lane, so each pass is the same shifts,
+   masks and XORs lane after lane. A lane that fails is masked, (live[k] = 0,) rather
+   than taken out, so the passes have no per-lane branches and map directly onto SIMD
+   registers; a failed lane just rides along through AES, (a few percent of frames.)
+
+   The passes are a Kernel, which runs them a lane at a time and is the default. AES
+   dominates a round, and on the machines measured so far the scalar Kernel is as fast
+   or faster, (FFX_lanes compares them.) FF1LanesVector runs the passes on
+   jdk.incubator.vector LongVectors, (8 lanes per instruction with AVX-512, 4 with AVX2,)
+   and is used only with -Dffx.vector=true. It needs Java 17 and --add-modules
+   jdk.incubator.vector, so Maven compiles it in a profile of its own and FF1Lanes loads
+   it by name; where it is missing, (Java 8-16, Android, or the module not added at run
+   time,) or its available() says the CPU has no long vectors, the scalar Kernel is used.
+   Both give FF1LS80Packed's results exactly, failures included, (see FFX_regress.)
+
+   Single messages and frames are FF1LS80Packed's, unchanged. encryptFrames() and
+   decryptFrames() take runs of 14-byte frames laid end to end, as in a raw capture.
+*/
+public class FF1Lanes extends FF1LS80Packed {
+
+   static final Kernel KERNEL = kernel();    // scalar, or the vector kernel if asked for
+
+   Kernel kernel = KERNEL;                   // this instance's, (FFX_lanes compares them)
+
+   FF1Lanes(String keyStr) {
+      super(keyStr);
+   }
+
+   FF1Lanes(String keyStr, FF1Policy policy) {
+      super(keyStr, policy);
+   }
+
+   /* kernel() - the scalar Kernel, unless -Dffx.vector=true and vector() has one. */
+   private static Kernel kernel() {
+      Kernel v = Boolean.getBoolean("ffx.vector") ? vector() : null;
+      return (v != null) ? v : new Kernel();
+   }
+
+   /* vector() - an FF1LanesVector if it is built, jdk.incubator.vector is there and
+      FF1LanesVector.available(), else null.
+   */
+   static Kernel vector() {
+      try {
+         Class<?> c = Class.forName("FF1LanesVector");
+         if (!(Boolean) c.getDeclaredMethod("available").invoke(null)) {
+            return null;                     // no long vectors worth having
+         }
+         return (Kernel) c.getDeclaredConstructor().newInstance();
+      }
+      catch (ReflectiveOperationException e) { }     // not built
+      catch (LinkageError e) { }                     // no jdk.incubator.vector module
+      return null;
+   }
+
+   /*-Lanes------------------------------------------------------------------*/
+
+   /* Lanes - one thread's columns, grown to the largest group it has run. */
+   static final class Lanes {
+      long[] lo     = new long[0];           // message words, bit i in word i/64
+      long[] hi     = new long[0];
+      long[] iv     = new long[0];           // IV word, (8 copies of the tweak byte)
+      long[] live   = new long[0];           // -1 while the lane runs, 0 once it fails
+      long[] bLo    = new long[0];           // this round's B, (encryption)
+      long[] bHi    = new long[0];
+      long[] shortB = new long[0];           // -1 where this round's B is short, (decryption)
+      long[] blocks = new long[0];           // AES blocks, (lo, hi) per lane, in then out
+      int[]  index  = new int[0];            // batch position of each lane
+      byte[] inArray, outArray;              // the Scratch batch arrays the views are on
+      LongBuffer in, out;
+
+      void ensure(int count) {
+         if (lo.length < count) {
+            lo     = new long[count];
+            hi     = new long[count];
+            iv     = new long[count];
+            live   = new long[count];
+            bLo    = new long[count];
+            bHi    = new long[count];
+            shortB = new long[count];
+            blocks = new long[2*count];
+            index  = new int[count];
+         }
+      }
+
+      /* toAES()/fromAES() - blocks[0..2m-1] to and from the Scratch batch, little-endian. */
+      void toAES(FF1Round.Scratch s, int m) {
+         view(s);
+         in.position(0);
+         in.put(blocks, 0, 2*m);
+      }
+
+      void fromAES(FF1Round.Scratch s, int m) {
+         out.position(0);
+         out.get(blocks, 0, 2*m);
+      }
+
+      private void view(FF1Round.Scratch s) {
+         if (inArray != s.batchIn) {
+            inArray  = s.batchIn;
+            outArray = s.batchOut;
+            in  = ByteBuffer.wrap(inArray).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            out = ByteBuffer.wrap(outArray).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+         }
+      }
+   }
+
+   private final ThreadLocal<Lanes> lanes = new ThreadLocal<Lanes>();
+
+   private Lanes lanes(int count) {
+      Lanes l = lanes.get();
+      if (l == null) {
+         l = new Lanes();
+         lanes.set(l);
+      }
+      l.ensure(count);
+      return l;
+   }
+
+   /*-Kernel-----------------------------------------------------------------*/
+
+   /* Kernel - the passes of one round over lanes from..to-1, a lane at a time. Each is
+      FF1LS80Packed.encryptWords()/decryptWords() for one round, with the branches turned
+      into masks. A subclass may do a prefix of the lanes its own way and pass the rest on.
+   */
+   static class Kernel {
+
+      /* encryptIn() - B = X >>> a and its AES block; a lane whose B is short fails. */
+      void encryptIn(FF1Plan p, Lanes l, int from, int to) {
+         int a = p.imbalance;
+         for (int k=from; k<to; k=k+1) {
+            long b0 = FF1Plan.shrLo(l.lo[k], l.hi[k], a);
+            long b1 = FF1Plan.shrHi(l.hi[k], a);
+            l.live[k] &= ~length(b0, b1, p.remainder-8);
+            l.bLo[k] = b0;
+            l.bHi[k] = b1;
+            l.blocks[2*k]   = (b0 | p.padLo) ^ l.iv[k];
+            l.blocks[2*k+1] = (b1 | p.padHi) ^ l.iv[k];
+         }
+      }
+
+      /* encryptOut() - C = A XOR F(B), X = B || C, (last byte stale where C is short.) */
+      void encryptOut(FF1Plan p, Lanes l, int from, int to) {
+         int b = p.remainder;
+         for (int k=from; k<to; k=k+1) {
+            long x0 = l.lo[k];
+            long x1 = l.hi[k];
+            long c0 = (x0 ^ l.blocks[2*k])   & p.maskALo;
+            long c1 = (x1 ^ l.blocks[2*k+1]) & p.maskAHi;
+            long n0 = l.bLo[k] | FF1Plan.shlLo(c0, b);
+            long n1 = l.bHi[k] | FF1Plan.shlHi(c0, c1, b);
+            long stale = length(c0, c1, p.imbalance-8);
+            n0 = (n0 & ~(stale & p.topLo)) | (x0 & stale & p.topLo);
+            n1 = (n1 & ~(stale & p.topHi)) | (x1 & stale & p.topHi);
+            l.lo[k] = (n0 & l.live[k]) | (x0 & ~l.live[k]);
+            l.hi[k] = (n1 & l.live[k]) | (x1 & ~l.live[k]);
+         }
+      }
+
+      /* decryptIn() - B = low b bits of Y and its AES block, (short pad where B is short.) */
+      void decryptIn(FF1Plan p, Lanes l, int from, int to) {
+         for (int k=from; k<to; k=k+1) {
+            long b0 = l.lo[k] & p.maskBLo;
+            long b1 = l.hi[k] & p.maskBHi;
+            long sh = length(b0, b1, p.remainder-8);
+            l.shortB[k] = sh;
+            l.blocks[2*k]   = (b0 | (p.shortLo & sh) | (p.padLo & ~sh)) ^ l.iv[k];
+            l.blocks[2*k+1] = (b1 | (p.shortHi & sh) | (p.padHi & ~sh)) ^ l.iv[k];
+         }
+      }
+
+      /* decryptOut() - A = C XOR F(B), Y = A || B; a lane whose A is short fails. */
+      void decryptOut(FF1Plan p, Lanes l, int from, int to) {
+         int a = p.imbalance;
+         int b = p.remainder;
+         for (int k=from; k<to; k=k+1) {
+            long y0 = l.lo[k];
+            long y1 = l.hi[k];
+            long a0 = (FF1Plan.shrLo(y0, y1, b) ^ l.blocks[2*k])   & p.maskALo;
+            long a1 = (FF1Plan.shrHi(y1, b)     ^ l.blocks[2*k+1]) & p.maskAHi;
+            long b0 = y0 & p.maskBLo;
+            long b1 = y1 & p.maskBHi;
+            long live = l.live[k] & ~length(a0, a1, a-8);
+            long n0 = a0 | FF1Plan.shlLo(b0, a);
+            long n1 = a1 | FF1Plan.shlHi(b0, b1, a);
+            long stale = l.shortB[k];
+            n0 = (n0 & ~(stale & p.topLo)) | (y0 & stale & p.topLo);
+            n1 = (n1 & ~(stale & p.topHi)) | (y1 & stale & p.topHi);
+            l.live[k] = live;
+            l.lo[k] = (n0 & live) | (y0 & ~live);
+            l.hi[k] = (n1 & live) | (y1 & ~live);
+         }
+      }
+
+      /* length() - -1 if BitSet.length() of (lo, hi) is bits, else 0. */
+      static long length(long lo, long hi, int bits) {
+         return (FF1Plan.bitLength(lo, hi) == bits) ? -1L : 0L;
+      }
+
+      public String toString() {
+         return "scalar";
+      }
+   }
+
+   /*-Batches----------------------------------------------------------------*/
+
+   /* encryptBatch() - FF1LS80Packed.encryptBatch(), lane-parallel. Each length's messages
+      are written back as soon as their rounds are done, so if AES fails only the
+      messages of that length and of the lengths not yet run are flagged failed, (and
+      left as they were.)
+   */
+   public int encryptBatch(byte[] preTweak, byte[][] Xi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Xi, count, failed, true);
+   }
+
+   /* decryptBatch() - FF1LS80Packed.decryptBatch(), lane-parallel. */
+   public int decryptBatch(byte[] preTweak, byte[][] Yi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Yi, count, failed, false);
+   }
+
+   private int batch(byte[] preTweak, byte[][] M, int count, boolean[] failed, boolean enc)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      for (int k=0; k<count; k=k+1) {
+         validate(M[k].length*8);            // nothing changes if a length is unknown
+      }
+      Lanes l = lanes(count);
+      int failures = 0;
+      long done = 0;                          // lengths run so far, bit n/8
+      long written = 0;                       // ..and written back to M
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         FF1Round.ensureBatch(s, count);
+         for (int k=0; k<count; k=k+1) {
+            int n = M[k].length*8;
+            if ((done & (1L << (n/8))) != 0) {
+               continue;
+            }
+            done |= 1L << (n/8);
+            int m = 0;                        // gather this length's messages as lanes
+            for (int j=k; j<count; j=j+1) {
+               if (M[j].length*8 == n) {
+                  l.lo[m]    = FF1Round.getLE(M[j], 0, Math.min(8, M[j].length));
+                  l.hi[m]    = FF1Round.getLE(M[j], 8, M[j].length-8);
+                  l.iv[m]    = Round.tweakIV[preTweak[j] & 0xFF];
+                  l.index[m] = j;
+                  m = m + 1;
+               }
+            }
+            run(FF1Plan.lookup(plans, n), l, s, m, enc);
+            for (int i=0; i<m; i=i+1) {
+               byte[] X = M[l.index[i]];
+               FF1Round.putLE(X, 0, Math.min(8, X.length), l.lo[i]);
+               FF1Round.putLE(X, 8, X.length-8, l.hi[i]);
+               failures = failures + mark(failed, l.index[i], l.live[i] == 0);
+            }
+            written = done;
+         }
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1Lanes." + (enc ? "encryptBatch" : "decryptBatch") + ": Error - " + e);
+         for (int k=0; k<count; k=k+1) {      // lengths already written back keep their results
+            if ((written & (1L << M[k].length)) == 0) {
+               failures = failures + mark(failed, k, true);
+            }
+         }
+         return failures; // nothing further is written back
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1Lanes", enc ? FF1Metrics.ENCRYPT_BATCH : FF1Metrics.DECRYPT_BATCH,
+                  FF1Metrics.batchBits(M, null, count), t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+   /* encryptFrames() encrypts count 14-byte frames laid end to end from buf[off], each
+      under its own byte 0, (see encryptFrame().) 104 must have been added. A frame the
+      reference would reject is left as encryptFrame() leaves it and flagged in failed[k],
+      (failed may be null.) Returns the number of failed frames.
+   */
+   public int encryptFrames(byte[] buf, int off, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return frames(buf, off, count, failed, true);
+   }
+
+   /* decryptFrames() - the inverse of encryptFrames(). */
+   public int decryptFrames(byte[] buf, int off, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return frames(buf, off, count, failed, false);
+   }
+
+   private int frames(byte[] buf, int off, int count, boolean[] failed, boolean enc)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      FF1Plan plan = validate(8 * (FRAME_BYTES-1));
+      Lanes l = lanes(count);
+      int failures = 0;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         FF1Round.ensureBatch(s, count);
+         for (int k=0; k<count; k=k+1) {
+            int at = off + k*FRAME_BYTES;
+            l.lo[k] = FF1Round.getLE(buf, at+1, 8);
+            l.hi[k] = FF1Round.getLE(buf, at+9, FRAME_BYTES-9);
+            l.iv[k] = Round.tweakIV[buf[at] & 0xFF];
+         }
+         run(plan, l, s, count, enc);
+         for (int k=0; k<count; k=k+1) {
+            int at = off + k*FRAME_BYTES;
+            FF1Round.putLE(buf, at+1, 8, l.lo[k]);
+            FF1Round.putLE(buf, at+9, FRAME_BYTES-9, l.hi[k]);
+            failures = failures + mark(failed, k, l.live[k] == 0);
+         }
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1Lanes." + (enc ? "encryptFrames" : "decryptFrames") + ": Error - " + e);
+         failures = failAll(failed, count);
+         return count; // nothing is written back, (no result may be used)
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1Lanes", enc ? FF1Metrics.ENCRYPT_BATCH : FF1Metrics.DECRYPT_BATCH,
+                  plan.n, t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+   /* run() - every round of plan over lanes 0..m-1, (loaded in l.lo, l.hi and l.iv.) */
+   private void run(FF1Plan plan, Lanes l, FF1Round.Scratch s, int m, boolean enc)
+         throws GeneralSecurityException {
+      java.util.Arrays.fill(l.live, 0, m, -1L);
+      for (int r=0; r<plan.rounds; r=r+1) {
+         if (enc) kernel.encryptIn(plan, l, 0, m);
+         else     kernel.decryptIn(plan, l, 0, m);
+         l.toAES(s, m);
+         FF1Round.blocks(s, m);
+         l.fromAES(s, m);
+         if (enc) kernel.encryptOut(plan, l, 0, m);
+         else     kernel.decryptOut(plan, l, 0, m);
+      }
+   }
+
+   /* validate() - the plan for n, or an error and IllegalArgumentException. */
+   private FF1Plan validate(int n) throws IllegalArgumentException {
+      FF1Plan plan = FF1Plan.lookup(plans, n);
+      if (plan == null) {
+         FF1Metrics.error("FF1Lanes.validate: Error - unanticipated message size ("+n+").");
+         throw new IllegalArgumentException(); // every n must be known in advance
+      }
+      return plan;
+   }
+
+   private static int mark(boolean[] failed, int k, boolean bad) {
+      if (failed != null) {
+         failed[k] = bad;
+      }
+      return bad ? 1 : 0;
+   }
+
+}
@@ -0,0 +1,157 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   FF1Lanes kernel on the Java Vector API.
+*/
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+import static jdk.incubator.vector.VectorOperators.EQ;
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.LSHR;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/* FF1LanesVector runs the FF1Lanes passes S.length() lanes at a time, (the widest long
+   vector the CPU has,) and leaves the lanes past the last whole vector to the scalar
+   Kernel. The 128-bit shifts are by the plan's split, the same for every lane, so each
+   is two or three vector shifts; the reference's short-byte checks become lane masks.
+   AES blocks are (lo, hi) pairs: ZIP_LO and ZIP_HI interleave a vector of lo words with
+   one of hi words on the way in, and EVEN and ODD separate them on the way out.
+
+   It needs Java 17 and --add-modules jdk.incubator.vector, at compile and run time.
+   FF1Lanes loads it by name, (with -Dffx.vector=true,) after checking available(), and
+   falls back to the scalar Kernel if it cannot.
+*/
+final class FF1LanesVector extends FF1Lanes.Kernel {
+
+   static final VectorSpecies<Long> S = LongVector.SPECIES_PREFERRED;
+   static final int L = S.length();
+
+   // Two-vector shuffles: indexes L..2L-1 take from the second vector.
+   static final VectorShuffle<Long> ZIP_LO = VectorShuffle.fromOp(S, i -> ((i & 1) == 0) ? i/2 : L + i/2);
+   static final VectorShuffle<Long> ZIP_HI = VectorShuffle.fromOp(S, i -> ((i & 1) == 0) ? L/2 + i/2 : L + L/2 + i/2);
+   static final VectorShuffle<Long> EVEN   = VectorShuffle.fromOp(S, i -> 2*i);
+   static final VectorShuffle<Long> ODD    = VectorShuffle.fromOp(S, i -> 2*i + 1);
+
+   static final LongVector ZERO = LongVector.zero(S);
+
+   /* available() - false where the preferred species holds fewer than 2 longs. */
+   static boolean available() {
+      return L >= 2;
+   }
+
+   void encryptIn(FF1Plan p, FF1Lanes.Lanes l, int from, int to) {
+      int a = p.imbalance;
+      int k = from;
+      for (; k<from+S.loopBound(to-from); k=k+L) {
+         LongVector x0 = LongVector.fromArray(S, l.lo, k);
+         LongVector x1 = LongVector.fromArray(S, l.hi, k);
+         LongVector iv = LongVector.fromArray(S, l.iv, k);
+         LongVector b0 = shrLo(x0, x1, a);
+         LongVector b1 = shrHi(x1, a);
+         LongVector.fromArray(S, l.live, k).blend(0L, length(b0, b1, p.remainder-8)).intoArray(l.live, k);
+         b0.intoArray(l.bLo, k);
+         b1.intoArray(l.bHi, k);
+         blocks(l, k, b0.or(p.padLo).lanewise(XOR, iv), b1.or(p.padHi).lanewise(XOR, iv));
+      }
+      super.encryptIn(p, l, k, to);
+   }
+
+   void encryptOut(FF1Plan p, FF1Lanes.Lanes l, int from, int to) {
+      int b = p.remainder;
+      int k = from;
+      for (; k<from+S.loopBound(to-from); k=k+L) {
+         LongVector x0 = LongVector.fromArray(S, l.lo, k);
+         LongVector x1 = LongVector.fromArray(S, l.hi, k);
+         LongVector w0 = LongVector.fromArray(S, l.blocks, 2*k);
+         LongVector w1 = LongVector.fromArray(S, l.blocks, 2*k + L);
+         LongVector c0 = x0.lanewise(XOR, w0.rearrange(EVEN, w1)).and(p.maskALo);
+         LongVector c1 = x1.lanewise(XOR, w0.rearrange(ODD,  w1)).and(p.maskAHi);
+         LongVector n0 = LongVector.fromArray(S, l.bLo, k).or(shlLo(c0, b));
+         LongVector n1 = LongVector.fromArray(S, l.bHi, k).or(shlHi(c0, c1, b));
+         VectorMask<Long> stale = length(c0, c1, p.imbalance-8);
+         n0 = n0.blend(n0.and(~p.topLo).or(x0.and(p.topLo)), stale);
+         n1 = n1.blend(n1.and(~p.topHi).or(x1.and(p.topHi)), stale);
+         VectorMask<Long> live = LongVector.fromArray(S, l.live, k).compare(EQ, -1L);
+         x0.blend(n0, live).intoArray(l.lo, k);
+         x1.blend(n1, live).intoArray(l.hi, k);
+      }
+      super.encryptOut(p, l, k, to);
+   }
+
+   void decryptIn(FF1Plan p, FF1Lanes.Lanes l, int from, int to) {
+      int k = from;
+      for (; k<from+S.loopBound(to-from); k=k+L) {
+         LongVector b0 = LongVector.fromArray(S, l.lo, k).and(p.maskBLo);
+         LongVector b1 = LongVector.fromArray(S, l.hi, k).and(p.maskBHi);
+         LongVector iv = LongVector.fromArray(S, l.iv, k);
+         VectorMask<Long> sh = length(b0, b1, p.remainder-8);
+         ZERO.blend(-1L, sh).intoArray(l.shortB, k);
+         LongVector pad0 = LongVector.broadcast(S, p.padLo).blend(p.shortLo, sh);
+         LongVector pad1 = LongVector.broadcast(S, p.padHi).blend(p.shortHi, sh);
+         blocks(l, k, b0.or(pad0).lanewise(XOR, iv), b1.or(pad1).lanewise(XOR, iv));
+      }
+      super.decryptIn(p, l, k, to);
+   }
+
+   void decryptOut(FF1Plan p, FF1Lanes.Lanes l, int from, int to) {
+      int a = p.imbalance;
+      int b = p.remainder;
+      int k = from;
+      for (; k<from+S.loopBound(to-from); k=k+L) {
+         LongVector y0 = LongVector.fromArray(S, l.lo, k);
+         LongVector y1 = LongVector.fromArray(S, l.hi, k);
+         LongVector w0 = LongVector.fromArray(S, l.blocks, 2*k);
+         LongVector w1 = LongVector.fromArray(S, l.blocks, 2*k + L);
+         LongVector a0 = shrLo(y0, y1, b).lanewise(XOR, w0.rearrange(EVEN, w1)).and(p.maskALo);
+         LongVector a1 = shrHi(y1, b).lanewise(XOR, w0.rearrange(ODD, w1)).and(p.maskAHi);
+         LongVector b0 = y0.and(p.maskBLo);
+         LongVector b1 = y1.and(p.maskBHi);
+         LongVector live = LongVector.fromArray(S, l.live, k).blend(0L, length(a0, a1, a-8));
+         LongVector n0 = a0.or(shlLo(b0, a));
+         LongVector n1 = a1.or(shlHi(b0, b1, a));
+         VectorMask<Long> stale = LongVector.fromArray(S, l.shortB, k).compare(EQ, -1L);
+         n0 = n0.blend(n0.and(~p.topLo).or(y0.and(p.topLo)), stale);
+         n1 = n1.blend(n1.and(~p.topHi).or(y1.and(p.topHi)), stale);
+         live.intoArray(l.live, k);
+         VectorMask<Long> run = live.compare(EQ, -1L);
+         y0.blend(n0, run).intoArray(l.lo, k);
+         y1.blend(n1, run).intoArray(l.hi, k);
+      }
+      super.decryptOut(p, l, k, to);
+   }
+
+   public String toString() {
+      return "vector(" + L + " lanes)";
+   }
+
+   /* blocks() stores lanes k..k+L-1 of the AES input as (lo, hi) pairs. */
+   private static void blocks(FF1Lanes.Lanes l, int k, LongVector lo, LongVector hi) {
+      lo.rearrange(ZIP_LO, hi).intoArray(l.blocks, 2*k);
+      lo.rearrange(ZIP_HI, hi).intoArray(l.blocks, 2*k + L);
+   }
+
+   /* length() - lanes where BitSet.length() of (lo, hi) is bits: (lo, hi) >>> bits-1 is 1. */
+   private static VectorMask<Long> length(LongVector lo, LongVector hi, int bits) {
+      if (bits == 0) {
+         return lo.or(hi).compare(EQ, 0L);
+      }
+      return shrLo(lo, hi, bits-1).compare(EQ, 1L).and(shrHi(hi, bits-1).compare(EQ, 0L));
+   }
+
+   /* shrLo/shrHi/shlLo/shlHi - FF1Plan's shifts of a (lo, hi) pair, lane-wise, 0 <= s < 128. */
+   private static LongVector shrLo(LongVector lo, LongVector hi, int s) {
+      if (s == 0) return lo;
+      return (s < 64) ? lo.lanewise(LSHR, s).or(hi.lanewise(LSHL, 64-s)) : hi.lanewise(LSHR, s-64);
+   }
+   private static LongVector shrHi(LongVector hi, int s) {
+      return (s < 64) ? hi.lanewise(LSHR, s) : ZERO;
+   }
+   private static LongVector shlLo(LongVector lo, int s) {
+      return (s < 64) ? lo.lanewise(LSHL, s) : ZERO;
+   }
+   private static LongVector shlHi(LongVector lo, LongVector hi, int s) {
+      if (s == 0) return hi;
+      return (s < 64) ? hi.lanewise(LSHL, s).or(lo.lanewise(LSHR, 64-s)) : lo.lanewise(LSHL, s-64);
+   }
+
+}
@@ -0,0 +1,376 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Call counts, latency histograms and error reporting for the engines.
+*/
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* FF1Metrics is where the engines report what they do. Two parts:
+
+   - Errors. Every engine error message, (the "Class.method: Error - ..." lines,) goes
+     through error(), which counts it and hands it to the sinks. The default sink prints
+     it on System.out as before; replace it with setSinks() to log elsewhere or not at all.
+     Warnings go to the sinks the same way through warning() but are not counted.
+     Errors are rare, so this part is always on.
+
+   - Call metrics, on only with -Dffx.metrics=true. ENABLED is a static final read once,
+     so when it is false the JIT removes the instrumentation from the engines entirely,
+     (the time stamps included.) When it is true, each Encrypt(), Decrypt(), frame call
+     and batch records, per operation and per message length, (n/8 up to 64, longer
+     lengths share the last slot, and a batch of several lengths goes in slot 0, shown
+     as "mixed",) the calls, messages, failed messages, nanoseconds and a latency
+     histogram. It also counts length switches: calls whose length differs
+     from the same thread's previous call, (a switch used to cost a setCurrentSize() in
+     FF1LS80, and still costs cache misses on plan tables.) Calls taking at least
+     -Dffx.metrics.slowMicros, (default 1000,) go to the sinks' slow().
+
+   The counters are striped all the way down: each thread records into its own Slab,
+   (found through one ThreadLocal,) so a call costs two nanoTime() reads and a few
+   increments of memory no other thread writes. The counters are AtomicLongArrays
+   written only by their owner, with ordered stores, (lazySet,) so there is no CAS on
+   the hot path, yet report() on another thread always reads whole, published values,
+   (a 64-bit count cannot tear, even on a 32-bit VM.) report() sums the slabs of the
+   live threads and a retired total: a slab whose thread has ended is folded into the
+   retired total and dropped, so short-lived threads do not accumulate slabs.
+   A histogram is log-linear, (HdrHistogram style: 16 sub-buckets per power of 2, so a
+   value is known within 6.25%,) from nanoseconds to centuries in 960 buckets.
+
+   AES initialization, (once per thread and key,) is reported to aesInit() always. With
+   metrics on and Java 11 or later, FF1JFR is added as a sink, so slow calls, AES
+   initializations and errors show up as JFR events in a flight recording.
+*/
+final class FF1Metrics {
+
+   static final boolean ENABLED = Boolean.getBoolean("ffx.metrics");
+   static final long    SLOW    = Long.getLong("ffx.metrics.slowMicros", 1000) * 1000;
+
+   // Operations
+   static final int ENCRYPT       = 0;
+   static final int DECRYPT       = 1;
+   static final int ENCRYPT_BATCH = 2;
+   static final int DECRYPT_BATCH = 3;
+   static final String[] OPS = { "Encrypt", "Decrypt", "encryptBatch", "decryptBatch" };
+
+   static final int LENGTHS = 65;           // n/8 = 0..64, the last for 512 bits and up
+   static final int MIXED   = 0;            // n of a batch of several lengths, (slot 0)
+
+   /* Sink - where errors and notable events go. Calls may come from any thread. */
+   interface Sink {
+      void error(String message);
+      void slow(String engine, String op, int n, int messages, long nanos);
+      void aesInit(String backend, String provider, long nanos);
+   }
+
+   /* Print - the default sink: errors on System.out, as the engines always did. */
+   static class Print implements Sink {
+      public void error(String message) {
+         System.out.println(message);
+      }
+      public void slow(String engine, String op, int n, int messages, long nanos) { }
+      public void aesInit(String backend, String provider, long nanos) { }
+   }
+
+   private static volatile Sink[] sinks = defaultSinks();
+
+   private static Sink[] defaultSinks() {
+      if (ENABLED) {
+         try {
+            Sink jfr = (Sink) Class.forName("FF1JFR").getDeclaredConstructor().newInstance();
+            return new Sink[] { new Print(), jfr };
+         }
+         catch (ReflectiveOperationException e) { }   // built without it
+         catch (LinkageError e) { }                   // Java 8-10, or no jdk.jfr
+      }
+      return new Sink[] { new Print() };
+   }
+
+   /* setSinks() replaces the sinks, (none at all is allowed.) */
+   static void setSinks(Sink... s) {
+      sinks = s.clone();
+   }
+
+   static Sink[] sinks() {
+      return sinks.clone();
+   }
+
+   /*-Histogram buckets------------------------------------------------------*/
+
+   static final int SUB     = 16;           // sub-buckets per power of 2
+   static final int BUCKETS = 32 + (63 - 5) * SUB;
+
+   /* bucket() - values below 32 have their own; above, 16 per power of 2. */
+   static int bucket(long v) {
+      if (v < 32) {
+         return (v < 0) ? 0 : (int) v;
+      }
+      int e = 63 - Long.numberOfLeadingZeros(v);   // 5..62
+      return 32 + (e - 5) * SUB + (int) ((v >>> (e - 4)) & (SUB - 1));
+   }
+
+   /* lowest() - the smallest value in bucket i. */
+   static long lowest(int i) {
+      if (i < 32) {
+         return i;
+      }
+      int e = (i - 32) / SUB + 5;
+      return (1L << e) | ((long) ((i - 32) % SUB) << (e - 4));
+   }
+
+   /* percentile() - the lowest value of the bucket holding the p-th quantile. */
+   static long percentile(long[] h, double p) {
+      long total = 0;
+      for (long c : h) {
+         total = total + c;
+      }
+      long rank = Math.max(1, (long) Math.ceil(p * total));
+      long seen = 0;
+      for (int i=0; i<h.length; i=i+1) {
+         seen = seen + h[i];
+         if (seen >= rank) {
+            return lowest(i);
+         }
+      }
+      return 0;
+   }
+
+   static long max(long[] h) {
+      for (int i=h.length-1; i>=0; i=i-1) {
+         if (h[i] > 0) {
+            return lowest(i);
+         }
+      }
+      return 0;
+   }
+
+   /*-Counters---------------------------------------------------------------*/
+
+   /* Stat - one operation at one length, in one thread's slab: calls, messages, failed
+      messages, nanoseconds, then the histogram buckets. Only one thread writes a Stat,
+      (add(),) so an ordered store of get() + d is a whole, race-free increment.
+   */
+   static final int CALLS = 0, MESSAGES = 1, FAILED = 2, NANOS = 3, LATENCY = 4;
+
+   static final class Stat {
+      final AtomicLongArray v = new AtomicLongArray(LATENCY + BUCKETS);
+
+      void add(int i, long d) {
+         v.lazySet(i, v.get(i) + d);
+      }
+   }
+
+   /* Slab - one thread's counters, written by that thread only, (or, once the thread
+      has ended, folded into the retired slab under the lock.)
+   */
+   static final class Slab {
+      final WeakReference<Thread> owner;
+      final AtomicReferenceArray<Stat> stats = new AtomicReferenceArray<Stat>(OPS.length * LENGTHS);
+      final AtomicLong switches = new AtomicLong();
+      int lastN;                               // the owner's previous length
+
+      Slab(Thread owner) {
+         this.owner = new WeakReference<Thread>(owner);
+      }
+
+      Stat stat(int op, int n) {
+         return stat(op * LENGTHS + Math.min(n >>> 3, LENGTHS - 1));
+      }
+
+      Stat stat(int i) {
+         Stat s = stats.get(i);
+         if (s == null) {
+            s = new Stat();
+            stats.lazySet(i, s);
+         }
+         return s;
+      }
+
+      boolean ended() {
+         Thread t = owner.get();
+         return t == null || !t.isAlive();
+      }
+   }
+
+   private static final CopyOnWriteArrayList<Slab> slabs = new CopyOnWriteArrayList<Slab>();
+   private static final ThreadLocal<Slab> slab = new ThreadLocal<Slab>() {
+      protected Slab initialValue() {
+         Slab s = new Slab(Thread.currentThread());
+         slabs.add(s);
+         return s;
+      }
+   };
+   private static final Object lock    = new Object();          // guards retired and pruning
+   private static final Slab   retired = new Slab(null);        // ended threads' totals
+   private static final LongAdder errors = new LongAdder();
+
+   /* record() - one call of op on messages of n bits, started at t0, (System.nanoTime().)
+      Call it only when ENABLED.
+   */
+   static void record(String engine, int op, int n, long t0, int messages, int failed) {
+      long nanos = System.nanoTime() - t0;
+      Slab sl = slab.get();
+      Stat s = sl.stat(op, n);
+      s.add(CALLS, 1);
+      s.add(MESSAGES, messages);
+      s.add(FAILED, failed);
+      s.add(NANOS, nanos);
+      s.add(LATENCY + bucket(nanos), 1);
+      if (n != MIXED && sl.lastN != n) {
+         if (sl.lastN != 0) {
+            sl.switches.lazySet(sl.switches.get() + 1);
+         }
+         sl.lastN = n;
+      }
+      if (nanos >= SLOW) {
+         for (Sink k : sinks) {
+            k.slow(engine, OPS[op], n, messages, nanos);
+         }
+      }
+   }
+
+   /* batchBits() - the n to record for a batch: its length if all count messages share
+      one, else MIXED. bits[k] is message k's length in bits, (null for whole bytes.)
+   */
+   static int batchBits(byte[][] M, int[] bits, int count) {
+      int n = (bits != null) ? bits[0] : M[0].length*8;
+      for (int k=1; k<count; k=k+1) {
+         if (n != ((bits != null) ? bits[k] : M[k].length*8)) {
+            return MIXED;
+         }
+      }
+      return n;
+   }
+
+   /* prune() folds the slabs of ended threads into retired and drops them. Called with
+      the lock held. A thread's end happens-before isAlive() reads false, so its last
+      counts are all seen.
+   */
+   private static void prune() {
+      for (Slab sl : slabs) {
+         if (!sl.ended()) {
+            continue;
+         }
+         for (int i=0; i<sl.stats.length(); i=i+1) {
+            Stat s = sl.stats.get(i);
+            if (s == null) {
+               continue;
+            }
+            Stat r = retired.stat(i);
+            for (int j=0; j<s.v.length(); j=j+1) {
+               r.add(j, s.v.get(j));
+            }
+         }
+         retired.switches.lazySet(retired.switches.get() + sl.switches.get());
+         slabs.remove(sl);
+      }
+   }
+
+   /* error() - an engine error message, counted and passed to the sinks. */
+   static void error(String message) {
+      errors.increment();
+      for (Sink k : sinks) {
+         k.error(message);
+      }
+   }
+
+   /* warning() - an engine warning message, (a "Class.method: Warning - ..." line, e.g.
+      a size added twice,) passed to the sinks' error() but not counted in errors().
+   */
+   static void warning(String message) {
+      for (Sink k : sinks) {
+         k.error(message);
+      }
+   }
+
+   /* aesInit() - a thread's AES state was set up, (backend "JCE" or "FF1AES".) */
+   static void aesInit(String backend, String provider, long nanos) {
+      for (Sink k : sinks) {
+         k.aesInit(backend, provider, nanos);
+      }
+   }
+
+   static long errors() {
+      return errors.sum();
+   }
+
+   static long switches() {
+      synchronized (lock) {
+         prune();
+         long n = retired.switches.get();
+         for (Slab s : slabs) {
+            n = n + s.switches.get();
+         }
+         return n;
+      }
+   }
+
+   /* slabs() - live threads' slabs still held, (after pruning ended ones.) */
+   static int slabs() {
+      synchronized (lock) {
+         prune();
+         return slabs.size();
+      }
+   }
+
+   /* total() - op at n bits summed over every thread: calls, messages, failed, nanos,
+      then the histogram buckets. n < 0 sums every length.
+   */
+   static long[] total(int op, int n) {
+      long[] t = new long[LATENCY + BUCKETS];
+      synchronized (lock) {
+         prune();
+         add(t, retired, op, n);
+         for (Slab sl : slabs) {
+            add(t, sl, op, n);
+         }
+      }
+      return t;
+   }
+
+   private static void add(long[] t, Slab sl, int op, int n) {
+      for (int len=0; len<LENGTHS; len=len+1) {
+         Stat s = sl.stats.get(op * LENGTHS + len);
+         if (s == null || (n >= 0 && len != Math.min(n >>> 3, LENGTHS - 1))) {
+            continue;
+         }
+         for (int i=0; i<t.length; i=i+1) {
+            t[i] = t[i] + s.v.get(i);
+         }
+      }
+   }
+
+   /* report() - one line per operation and length seen, then an "all" line per
+      operation used at more than one length; latencies in microseconds.
+   */
+   static String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-13s %5s %11s %11s %8s %8s %8s %8s %8s %9s%n", "operation", "bits",
+            "calls", "messages", "failed", "mean", "p50", "p99", "p99.9", "max"));
+      for (int op=0; op<OPS.length; op=op+1) {
+         int lines = 0;
+         for (int len=0; len<LENGTHS; len=len+1) {
+            long[] t = total(op, len * 8);
+            if (t[0] > 0) {
+               line(sb, OPS[op], (len == MIXED) ? "mixed" : (len == LENGTHS-1) ? (len*8 + "+")
+                                                      : String.valueOf(len*8), t);
+               lines = lines + 1;
+            }
+         }
+         if (lines > 1) {
+            line(sb, OPS[op], "all", total(op, -1));
+         }
+      }
+      sb.append(String.format("errors %d, length switches %d%n", errors(), switches()));
+      return sb.toString();
+   }
+
+   private static void line(StringBuilder sb, String op, String bits, long[] t) {
+      long[] h = java.util.Arrays.copyOfRange(t, 4, t.length);
+      sb.append(String.format("%-13s %5s %11d %11d %8d %8.1f %8.1f %8.1f %8.1f %9.1f%n", op, bits,
+            t[0], t[1], t[2], t[3] / 1e3 / t[0], percentile(h, 0.50) / 1e3, percentile(h, 0.99) / 1e3,
+            percentile(h, 0.999) / 1e3, max(h) / 1e3));
+   }
+
+}
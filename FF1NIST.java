@@ -0,0 +1,405 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   FF1 as standardized in NIST SP 800-38G, radix 2.
+*/
+import java.security.GeneralSecurityException;
+import javax.crypto.spec.SecretKeySpec;
+
+/* FF1NIST implements FF1 from the final SP 800-38G, (not the 2010 FFX draft that FF1LS80
+   follows,) for radix 2 and messages of 24..128 bits in whole bytes. The numeral string
+   is the message's bits, most significant bit of byte 0 first, so NUM(X) is the message
+   read as a big-endian integer.
+
+   Per SP 800-38G, with u = floor(n/2), v = n-u, b = ceil(v/8) and d = 4*ceil(b/4)+4:
+      P = [1] [2] [1] [radix]^3 [10] [u mod 256] [n]^4 [t]^4
+      for i = 0 to 9 {
+         Q = T || [0]^((-t-b-1) mod 16) || [i] || [NUM(B)]^b
+         R = PRF(P || Q)                       // AES CBC-MAC, zero IV
+         y = NUM(first d bytes of R)           // d <= 16 here, so R is all of S
+         m = u if i is even, else v
+         C = (NUM(A) + y) mod 2^m
+         A = B, B = C
+      }
+   PRF is a CBC chain, so only its last block differs from round to round:
+   - CIPH(P) depends only on the key, n and the tweak length. addValidSize() computes it
+     once per length for the 16-byte ADS-B tweak.
+   - T and the zero pad are the same for all ten rounds. For the 256 ADS-B tweaks, (16
+     copies of the first frame byte,) addValidSize() also chains them once per length,
+     so a message costs exactly ten AES blocks. Any other tweak pays for its own blocks
+     once per message.
+   - Each round then encrypts one block: the chain state XOR ([i] || [NUM(B)]^b).
+
+   A and B are long words and mod 2^m is a mask, so nothing is allocated per message.
+   One instance can be shared by any number of threads, (see FF1Round.) FF1NIST has the
+   addValidSize/Encrypt/Decrypt shape of the FF1LS80 engines, (see FF1Engine,) but not
+   their ciphertexts, and none of their short-BitSet failures.
+*/
+public class FF1NIST implements FF1Batch {
+
+   static final int TWEAK_BYTES = 16;      // ADS-B tweak length, cached per size
+   static final int ROUNDS      = 10;      // fixed by SP 800-38G
+
+   /* Plan - everything FF1 derives from n for this key. Immutable once published. */
+   static final class Plan {
+      final int  n;                         // message size in bits, a multiple of 8
+      final int  u, v;                      // floor(n/2) and n-u
+      final int  b, d;                      // bytes of [NUM(B)]^b in Q, bytes of R in y
+      final long maskU, maskV;              // low u bits, low v bits
+      final long pHi, pLo;                  // CIPH(P) for a 16-byte tweak
+      final long[] tweakMAC = new long[512]; // chain state after each ADS-B tweak, (hi, lo)
+
+      Plan(int n, FF1Round.Scratch s) throws GeneralSecurityException {
+         this.n = n;
+         u      = n / 2;
+         v      = n - u;
+         b      = (v + 7) / 8;
+         d      = 4 * ((b + 3) / 4) + 4;
+         maskU  = FF1Plan.maskLo(u);
+         maskV  = FF1Plan.maskLo(v);
+         ciph(s, pWordHi(u), pWordLo(n, TWEAK_BYTES));
+         pHi    = FF1Round.getBE(s.blockOut, 0, 8);
+         pLo    = FF1Round.getBE(s.blockOut, 8, 8);
+         for (int t=0; t<256; t=t+1) {
+            long T = t * 0x0101010101010101L;
+            ciph(s, pHi ^ T, pLo ^ T);
+            tweakMAC[2*t]   = FF1Round.getBE(s.blockOut, 0, 8);
+            tweakMAC[2*t+1] = FF1Round.getBE(s.blockOut, 8, 8);
+         }
+      }
+   }
+
+   volatile Plan[] plans = new Plan[0];    // valid message sizes, indexed by n/8
+
+   FF1Round Round;                          // keyed AES, per-thread Cipher
+
+   /* Explicit Constructor
+      Expects an AES(128) key supplied as 32 hexidecimal digits.
+      addValidSize() must be called at least once before Encrypt() or Decrypt().
+   */
+   FF1NIST(String keyStr) {
+      Round = new FF1Round(new SecretKeySpec(FF1LS80.hexToBytes(keyStr), "AES"));
+   }
+
+   /*-Supporting Methods-----------------------------------------------------*/
+
+   /* addValidSize() prepares the engine to accept a given message length.
+      Return codes match FF1LS80.addValidSize(). Valid sizes are multiples of 8 from 24,
+      (radix^n must reach 1,000,000,) to 128.
+   */
+   public synchronized int addValidSize(int n) {
+      if (lookup(n) != null) {
+         FF1Metrics.warning("FF1NIST.addValidSize: Warning - message size ("+n+") is already added.");
+         return 1; // duplicate size ignored
+      }
+      if (n%8!=0 || n<24 || n>128) {
+         FF1Metrics.error("FF1NIST.addValidSize: Error - message size ("+n+") is not valid.");
+         return 2; // not a multiple of 8, or outside 24..128
+      }
+      Plan plan;
+      try {
+         plan = new Plan(n, Round.scratch());
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST.addValidSize: Error - " + e);
+         return 2; // the key cannot be used
+      }
+      Plan[] next = java.util.Arrays.copyOf(plans, Math.max(plans.length, n/8 + 1));
+      next[n/8] = plan;
+      plans = next;
+      return 0;
+   }
+
+   private Plan lookup(int n) {
+      Plan[] p = plans;
+      return (n%8 == 0 && n/8 < p.length) ? p[n/8] : null;
+   }
+
+   /* validateInput() returns the plan for n, or prints an error and throws. */
+   private Plan validateInput(int n) throws IllegalArgumentException {
+      Plan plan = lookup(n);
+      if (plan == null) {
+         FF1Metrics.error("FF1NIST.validateInput: Error - unanticipated message size ("+n+").");
+         throw new IllegalArgumentException();
+      }
+      return plan;
+   }
+
+   /* pWordHi/pWordLo - the P block, [1][2][1][0][0][2][10][u] and [n]^4 [t]^4. */
+   static long pWordHi(int u) {
+      return 0x0102010000020A00L | (u & 0xFF);
+   }
+   static long pWordLo(int n, int t) {
+      return ((long) n << 32) | (t & 0xFFFFFFFFL);
+   }
+
+   /* ciph() encrypts the block (hi, lo), big-endian, into s.blockOut. */
+   private static void ciph(FF1Round.Scratch s, long hi, long lo) throws GeneralSecurityException {
+      FF1Round.putBE(s.blockIn, 0, 8, hi);
+      FF1Round.putBE(s.blockIn, 8, 8, lo);
+      s.encrypt(s.blockIn, s.blockOut, 16);
+   }
+
+   /* prefix() leaves in s.mac the chain state after P and all but the last block of Q,
+      (hi, lo,) and the tweak bytes that fall in the last block, (hi, lo.)
+   */
+   private static void prefix(Plan p, FF1Round.Scratch s, byte[] Tweak) throws GeneralSecurityException {
+      int t = Tweak.length;
+      if (FF1Round.adsbTweak(Tweak)) {
+         adsb(p, s, Tweak[0]);
+         return;
+      }
+      long hi = p.pHi;
+      long lo = p.pLo;
+      if (t != TWEAK_BYTES) {
+         ciph(s, pWordHi(p.u), pWordLo(p.n, t));
+         hi = FF1Round.getBE(s.blockOut, 0, 8);
+         lo = FF1Round.getBE(s.blockOut, 8, 8);
+      }
+      int pad  = Math.floorMod(-t - p.b - 1, 16);
+      int last = t + pad + 1 + p.b - 16;    // Q bytes before its last block
+      for (int off=0; off<last; off=off+16) {
+         ciph(s, hi ^ qWord(Tweak, off), lo ^ qWord(Tweak, off+8));
+         hi = FF1Round.getBE(s.blockOut, 0, 8);
+         lo = FF1Round.getBE(s.blockOut, 8, 8);
+      }
+      s.mac[0] = hi;
+      s.mac[1] = lo;
+      s.mac[2] = qWord(Tweak, last);
+      s.mac[3] = qWord(Tweak, last+8);
+   }
+
+   /* adsb() is prefix() for the tweak of 16 copies of preTweak, (no AES at all.) */
+   private static void adsb(Plan p, FF1Round.Scratch s, byte preTweak) {
+      int k = 2 * (preTweak & 0xFF);
+      s.mac[0] = p.tweakMAC[k];
+      s.mac[1] = p.tweakMAC[k+1];
+      s.mac[2] = 0;
+      s.mac[3] = 0;
+   }
+
+   /* qWord() - 8 bytes of T || [0]^pad from off, big-endian, (zero past the tweak.) */
+   private static long qWord(byte[] Tweak, int off) {
+      long w = 0;
+      for (int i=off; i<off+8; i=i+1) {
+         w = (w << 8) | ((i < Tweak.length) ? (Tweak[i] & 0xFFL) : 0);
+      }
+      return w;
+   }
+
+   /* y() - round i's NUM(S) mod 2^64 for the half X: R = CIPH(state XOR ([i] || [X]^b)),
+      and the low 64 bits of NUM(first d bytes of R) are bytes d-8..d-1.
+   */
+   private static long y(Plan p, FF1Round.Scratch s, int i, long X) throws GeneralSecurityException {
+      long qHi = s.mac[2];
+      long qLo = s.mac[3] | X;
+      if (p.b == 8) qHi |= i;               // [i] is the last byte of the high word
+      else          qLo |= (long) i << (8*p.b);
+      ciph(s, s.mac[0] ^ qHi, s.mac[1] ^ qLo);
+      return FF1Round.getBE(s.blockOut, p.d-8, 8);
+   }
+
+   /* load() splits M into A = NUM(first u bits) and B = NUM(last v bits) in s.words. */
+   private static void load(Plan p, FF1Round.Scratch s, byte[] M) {
+      long hi = 0;
+      long lo = 0;
+      for (int j=0; j<M.length; j=j+1) {
+         hi = (hi << 8) | (lo >>> 56);
+         lo = (lo << 8) | (M[j] & 0xFFL);
+      }
+      s.words[0] = ((p.v == 64) ? hi : (lo >>> p.v) | (hi << (64-p.v))) & p.maskU;
+      s.words[1] = lo & p.maskV;
+   }
+
+   /* store() writes A || B back over M. */
+   private static void store(Plan p, byte[] M, long A, long B) {
+      long lo = (p.v == 64) ? B : B | (A << p.v);
+      long hi = (p.v == 64) ? A : A >>> (64-p.v);
+      for (int j=M.length-1; j>=0; j=j-1) {
+         M[j] = (byte) lo;
+         lo = (lo >>> 8) | (hi << 56);
+         hi = hi >>> 8;
+      }
+   }
+
+   /*-Encryption-------------------------------------------------------------*/
+
+   /* Encrypt() - any tweak length, (a 16-byte ADS-B tweak takes the cached path.) */
+   public byte[] Encrypt(byte[] Tweak, byte[] Xi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Plan plan = validateInput(Xi.length*8);
+      int failed = 1;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         prefix(plan, s, Tweak);
+         encrypt(plan, s, Xi);
+         failed = 0;
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST.Encrypt: Error - " + e);
+         throw new IllegalStateException(); // the message is not usable
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1NIST", FF1Metrics.ENCRYPT, plan.n, t0, 1, failed);
+         }
+      }
+      return Xi;
+   }
+
+   /* Encrypt() with the ADS-B tweak given as its single repeated byte. */
+   public byte[] Encrypt(byte preTweak, byte[] Xi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Plan plan = validateInput(Xi.length*8);
+      int failed = 1;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         adsb(plan, s, preTweak);
+         encrypt(plan, s, Xi);
+         failed = 0;
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST.Encrypt: Error - " + e);
+         throw new IllegalStateException(); // the message is not usable
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1NIST", FF1Metrics.ENCRYPT, plan.n, t0, 1, failed);
+         }
+      }
+      return Xi;
+   }
+
+   /* encrypt() runs the ten rounds over M in place, C = (A + y) mod 2^m, A || B = B || C. */
+   private static void encrypt(Plan p, FF1Round.Scratch s, byte[] M) throws GeneralSecurityException {
+      load(p, s, M);
+      long A = s.words[0];
+      long B = s.words[1];
+      for (int i=0; i<ROUNDS; i=i+1) {
+         long mask = ((i & 1) == 0) ? p.maskU : p.maskV;
+         long C = (A + y(p, s, i, B)) & mask;
+         A = B;
+         B = C;
+      }
+      store(p, M, A, B);
+   }
+
+   /*-Decryption-------------------------------------------------------------*/
+
+   /* Decrypt() - any tweak length, (a 16-byte ADS-B tweak takes the cached path.) */
+   public byte[] Decrypt(byte[] Tweak, byte[] Yi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Plan plan = validateInput(Yi.length*8);
+      int failed = 1;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         prefix(plan, s, Tweak);
+         decrypt(plan, s, Yi);
+         failed = 0;
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST.Decrypt: Error - " + e);
+         throw new IllegalStateException(); // the message is not usable
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1NIST", FF1Metrics.DECRYPT, plan.n, t0, 1, failed);
+         }
+      }
+      return Yi;
+   }
+
+   /* Decrypt() with the ADS-B tweak given as its single repeated byte. */
+   public byte[] Decrypt(byte preTweak, byte[] Yi) throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      Plan plan = validateInput(Yi.length*8);
+      int failed = 1;
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         adsb(plan, s, preTweak);
+         decrypt(plan, s, Yi);
+         failed = 0;
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST.Decrypt: Error - " + e);
+         throw new IllegalStateException(); // the message is not usable
+      }
+      finally {
+         if (FF1Metrics.ENABLED) {
+            FF1Metrics.record("FF1NIST", FF1Metrics.DECRYPT, plan.n, t0, 1, failed);
+         }
+      }
+      return Yi;
+   }
+
+   /* decrypt() runs the rounds backwards, C = (B - y) mod 2^m, A || B = C || A. */
+   private static void decrypt(Plan p, FF1Round.Scratch s, byte[] M) throws GeneralSecurityException {
+      load(p, s, M);
+      long A = s.words[0];
+      long B = s.words[1];
+      for (int i=ROUNDS-1; i>=0; i=i-1) {
+         long mask = ((i & 1) == 0) ? p.maskU : p.maskV;
+         long C = (B - y(p, s, i, A)) & mask;
+         B = A;
+         A = C;
+      }
+      store(p, M, A, B);
+   }
+
+   /*-Batch------------------------------------------------------------------*/
+
+   /* encryptBatch() encrypts Xi[0..count-1] in place, message k under the ADS-B tweak
+      byte preTweak[k], (see FF1Batch.) Every length is checked before anything is
+      changed; then the messages run one after another, (each round's AES input depends
+      on the last, so there is nothing to gain from interleaving them here.) Only an AES
+      failure fails a message: that message and the ones after it are flagged, (the ones
+      before it are finished and keep their results.) Returns the number failed.
+   */
+   public int encryptBatch(byte[] preTweak, byte[][] Xi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Xi, count, failed, true);
+   }
+
+   /* decryptBatch() decrypts Yi[0..count-1] in place - see encryptBatch(). */
+   public int decryptBatch(byte[] preTweak, byte[][] Yi, int count, boolean[] failed)
+         throws IllegalArgumentException {
+      return batch(preTweak, Yi, count, failed, false);
+   }
+
+   private int batch(byte[] preTweak, byte[][] M, int count, boolean[] failed, boolean enc)
+         throws IllegalArgumentException {
+      long t0 = FF1Metrics.ENABLED ? System.nanoTime() : 0; // see FF1Metrics
+      for (int k=0; k<count; k=k+1) {
+         validateInput(M[k].length*8);
+      }
+      if (failed != null) {
+         java.util.Arrays.fill(failed, 0, count, false);
+      }
+      int failures = 0;
+      int k = 0;                              // messages finished
+      try {
+         FF1Round.Scratch s = Round.scratch();
+         for (k=0; k<count; k=k+1) {
+            Plan plan = lookup(M[k].length*8);
+            adsb(plan, s, preTweak[k]);
+            if (enc) encrypt(plan, s, M[k]);
+            else     decrypt(plan, s, M[k]);
+         }
+      }
+      catch (GeneralSecurityException e) {
+         FF1Metrics.error("FF1NIST." + (enc ? "encryptBatch" : "decryptBatch") + ": Error - " + e);
+         for (int j=k; j<count; j=j+1) {      // the messages before k keep their results
+            if (failed != null) {
+               failed[j] = true;
+            }
+         }
+         failures = count - k;
+      }
+      finally {
+         if (FF1Metrics.ENABLED && count > 0) {
+            FF1Metrics.record("FF1NIST", enc ? FF1Metrics.ENCRYPT_BATCH : FF1Metrics.DECRYPT_BATCH,
+                              FF1Metrics.batchBits(M, null, count), t0, count, failures);
+         }
+      }
+      return failures;
+   }
+
+}
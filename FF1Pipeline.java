@@ -0,0 +1,261 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Sharded multi-core streaming stage for 14-byte ADS-B frames.
+*/
+import java.util.concurrent.locks.LockSupport;
+
+/* FF1Pipeline spreads a stream of frames from one receiver thread over several worker
+   threads, and hands the results back to one consumer thread, in order.
+
+      producer --offer()--> in[0..N-1] --> worker i --> out[0..N-1] --poll()--> consumer
+
+   Every arrow is an FF1Ring, (single producer, single consumer, preallocated,) so no
+   lock is taken and nothing is allocated per frame. A worker takes whatever its input
+   ring holds, (up to BATCH frames,) and runs it through FF1LS80Packed.encryptBatch() or
+   decryptBatch(), so a busy worker interleaves rounds across the batch. Workers share
+   the engine, whose per-thread state, (see FF1Round,) is each worker's own.
+
+   Two sharding modes:
+   - ordered:  frame k goes to worker k mod N and poll() reads the output rings in that
+               same rotation, so frames come out exactly in the order they went in.
+   - by ICAO:  a frame goes to the worker chosen by its address bytes, (frame bytes 1..3
+               of an extended squitter,) and poll() takes from any worker that is ready.
+               Frames from one aircraft keep their order, and a slow shard does not hold
+               up the others. On decryption the address bytes are still encrypted, so
+               the order is kept per encrypted address instead.
+
+   A frame the engine rejects, (see FF1LS80Packed,) comes out with status 1 and its 13
+   payload bytes zeroed, as FF1Bulk writes it. If the engine throws instead, (an AES
+   failure that escapes it,) the error is reported to FF1Metrics and every frame of that
+   batch comes out the same way; the worker carries on with the next batch.
+
+   Waiting, (producer on a full ring, worker or consumer on an empty one,) spins briefly,
+   then yields, then parks for 50 microseconds at a time, so an idle stage costs little.
+   Stop the producer, drain poll() until frames() are all out, then close().
+*/
+final class FF1Pipeline {
+
+   static final int BATCH = 64;             // frames per engine call, at most
+   static final int FRAME = FF1LS80Packed.FRAME_BYTES;
+
+   final FF1LS80Packed engine;              // must have 104 added
+   final boolean encrypt;
+   final boolean byIcao;
+   final FF1Ring[] in, out;
+   private final Worker[] workers;
+   private volatile boolean running = true;
+
+   // Producer and consumer state, (each touched by its own thread only)
+   private int  nextIn, nextOut;            // ordered mode rotation
+   private long offered, stalls;            // producer counts
+   private long polled;                     // consumer count
+
+   FF1Pipeline(FF1LS80Packed engine, boolean encrypt, int workers, int ringFrames, boolean byIcao) {
+      if (FF1Plan.lookup(engine.plans, (FRAME-1)*8) == null) {
+         FF1Metrics.error("FF1Pipeline: Error - message size ("+(FRAME-1)*8+") is not added to the engine.");
+         throw new IllegalArgumentException(); // a worker would reject every batch
+      }
+      this.engine  = engine;
+      this.encrypt = encrypt;
+      this.byIcao  = byIcao;
+      in  = new FF1Ring[workers];
+      out = new FF1Ring[workers];
+      this.workers = new Worker[workers];
+      for (int i=0; i<workers; i=i+1) {
+         in[i]  = new FF1Ring(ringFrames);
+         out[i] = new FF1Ring(ringFrames);
+         this.workers[i] = new Worker(in[i], out[i]);
+         this.workers[i].setName("FF1Pipeline-" + i);
+         this.workers[i].setDaemon(true);
+      }
+   }
+
+   void start() {
+      for (Worker w : workers) {
+         w.start();
+      }
+   }
+
+   /* close() stops the workers once their input rings are empty and waits for them. */
+   void close() throws InterruptedException {
+      running = false;
+      for (Worker w : workers) {
+         LockSupport.unpark(w);
+         w.join();
+      }
+   }
+
+   /*-Producer side----------------------------------------------------------*/
+
+   /* offer() queues the frame at off, false if its shard's ring is full, (try again.) */
+   boolean offer(byte[] frame, int off) {
+      int shard = byIcao ? icaoShard(frame, off) : nextIn;
+      if (!in[shard].offer(frame, off, (byte) 0)) {
+         stalls = stalls + 1;
+         return false;
+      }
+      if (!byIcao) {
+         nextIn = (nextIn + 1 == in.length) ? 0 : nextIn + 1;
+      }
+      offered = offered + 1;
+      if (workers[shard].idle) {
+         LockSupport.unpark(workers[shard]);
+      }
+      return true;
+   }
+
+   /* put() queues the frame, waiting for room. */
+   void put(byte[] frame, int off) {
+      for (int spins=0; !offer(frame, off); spins=spins+1) {
+         backoff(spins);
+      }
+   }
+
+   private int icaoShard(byte[] frame, int off) {
+      int icao = ((frame[off+1] & 0xFF) << 16) | ((frame[off+2] & 0xFF) << 8) | (frame[off+3] & 0xFF);
+      return (int) (((icao * 0x9E3779B1L) & 0xFFFFFFFFL) * in.length >>> 32);
+   }
+
+   /*-Consumer side----------------------------------------------------------*/
+
+   /* poll() copies the next result to frame[off..], returning 0, 1 if the engine
+      rejected it, or -1 if none is ready.
+   */
+   int poll(byte[] frame, int off) {
+      int n = out.length;
+      for (int k=0; k<(byIcao ? n : 1); k=k+1) {
+         int i = nextOut;
+         int status = out[i].poll(frame, off);
+         if (status >= 0 || byIcao) {
+            nextOut = (i + 1 == n) ? 0 : i + 1;
+         }
+         if (status >= 0) {
+            polled = polled + 1;
+            return status;
+         }
+      }
+      return -1;
+   }
+
+   /* take() waits for the next result. */
+   int take(byte[] frame, int off) {
+      int status;
+      for (int spins=0; (status = poll(frame, off)) < 0; spins=spins+1) {
+         backoff(spins);
+      }
+      return status;
+   }
+
+   static void backoff(int spins) {
+      if (spins < 64) {
+         return;
+      }
+      if (spins < 128) {
+         Thread.yield();
+         return;
+      }
+      LockSupport.parkNanos(50000);
+   }
+
+   /*-Workers----------------------------------------------------------------*/
+
+   final class Worker extends Thread {
+      final FF1Ring src, dst;
+      final byte[]    tweak   = new byte[BATCH];
+      final byte[][]  payload = new byte[BATCH][FRAME-1];
+      final boolean[] failed  = new boolean[BATCH];
+      volatile boolean idle;
+      volatile long frames, batches, rejected; // written by this worker only
+      volatile int  maxDepth;
+
+      Worker(FF1Ring src, FF1Ring dst) {
+         this.src = src;
+         this.dst = dst;
+      }
+
+      public void run() {
+         int spins = 0;
+         while (true) {
+            int depth = src.readable();
+            if (depth == 0) {
+               if (!running) {
+                  return;
+               }
+               idle = spins >= 128;
+               backoff(spins);
+               spins = spins + 1;
+               continue;
+            }
+            idle  = false;
+            spins = 0;
+            if (depth > maxDepth) {
+               maxDepth = depth;
+            }
+            int k = Math.min(depth, BATCH);
+            for (int j=0; j<k; j=j+1) {
+               int o = src.slot(j);
+               tweak[j] = src.buf[o];
+               System.arraycopy(src.buf, o+1, payload[j], 0, FRAME-1);
+            }
+            src.release(k);
+            int bad;
+            try {
+               bad = encrypt ? engine.encryptBatch(tweak, payload, k, failed)
+                             : engine.decryptBatch(tweak, payload, k, failed);
+            }
+            catch (RuntimeException e) {          // the worker must not die, (take() would spin)
+               FF1Metrics.error("FF1Pipeline.worker: Error - " + e);
+               java.util.Arrays.fill(failed, 0, k, true);
+               bad = k;
+            }
+            for (int j=0, w=0; j<k; ) {
+               int room = dst.writable();
+               if (room == 0) {
+                  backoff(w);
+                  w = w + 1;
+                  continue;
+               }
+               int m = Math.min(room, k-j);
+               for (int q=0; q<m; q=q+1, j=j+1) {
+                  int o = dst.wslot(q);
+                  dst.buf[o] = tweak[j];
+                  if (failed[j]) java.util.Arrays.fill(dst.buf, o+1, o+FRAME, (byte) 0);
+                  else           System.arraycopy(payload[j], 0, dst.buf, o+1, FRAME-1);
+                  dst.buf[o + FF1Ring.STATUS] = (byte) (failed[j] ? 1 : 0);
+               }
+               dst.commit(m);
+            }
+            frames   = frames + k;
+            batches  = batches + 1;
+            rejected = rejected + bad;
+         }
+      }
+   }
+
+   /*-Statistics-------------------------------------------------------------*/
+
+   /* frames() - frames accepted by offer() so far. */
+   long frames() {
+      return offered;
+   }
+
+   /* stats() - counts per worker, mean batch size and the deepest input queue seen. */
+   String stats() {
+      StringBuilder sb = new StringBuilder();
+      long total = 0, batches = 0, rejected = 0;
+      int  depth = 0;
+      for (int i=0; i<workers.length; i=i+1) {
+         Worker w = workers[i];
+         total    = total + w.frames;
+         batches  = batches + w.batches;
+         rejected = rejected + w.rejected;
+         depth    = Math.max(depth, w.maxDepth);
+         sb.append(String.format("   worker %d: %d frames, in %d, out %d queued%n",
+               i, w.frames, in[i].size(), out[i].size()));
+      }
+      return String.format("FF1Pipeline: %d workers, %d offered, %d done, %d rejected, %d polled,"
+            + " %.1f frames/batch, max depth %d, %d producer stalls%n",
+            workers.length, offered, total, rejected, polled,
+            (batches == 0) ? 0.0 : (double) total / batches, depth, stalls) + sb;
+   }
+
+}
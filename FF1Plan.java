@@ -0,0 +1,112 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Immutable per-length parameters for the FF1LS80 engines.
+*/
+
+/* FF1Plan holds everything that depends on the message size n. addValidSize() compiles
+   one plan per n, and Encrypt() and Decrypt() look it up by n/8 in a plan table, (by n
+   itself in FF1Bits, whose lengths need not be whole bytes.) They never write shared
+   state, so one keyed engine can be used from any number of threads.
+
+   The table is copy-on-write: addValidSize() builds a new array and publishes it through
+   a volatile field, and readers index whatever array they see. Adding a size is rare,
+   (normally once at start-up,) so the copy costs nothing that matters.
+
+   For the packed engine a message of up to 128 bits is a (lo, hi) pair of long words,
+   bit i in word i/64, and the plan carries the masks and PKCS5 pad words for its split.
+   The shr/shl helpers shift such a pair; the JIT inlines them and folds the branches.
+*/
+final class FF1Plan {
+
+   final int  n;                  // message size in bits, (a multiple of 8 except in FF1Bits)
+   final int  imbalance;          // split(n) - the size of A and C
+   final int  remainder;          // n-split(n) - the size of B
+   final int  rounds;             // rnds(n)
+   final int  Asize;              // bytes needed for A and C
+   final int  Bsize;              // bytes needed for B
+
+   // Packed-word masks and pads, (only meaningful when packed is true)
+   final boolean packed;          // n <= 128, so the message fits in a (lo, hi) pair
+   final long maskNLo, maskNHi;   // low n bits, (the message within its last byte)
+   final long maskALo, maskAHi;   // low imbalance bits
+   final long maskBLo, maskBHi;   // low remainder bits
+   final long topLo, topHi;       // the last message byte
+   final long padLo, padHi;       // PKCS5 pad bytes after a Bsize-byte B
+   final long shortLo, shortHi;   // PKCS5 pad bytes after a (Bsize-1)-byte B
+
+   FF1Plan(int n, int imbalance, int rounds) {
+      this.n         = n;
+      this.imbalance = imbalance;
+      this.remainder = n - imbalance;
+      this.rounds    = rounds;
+      this.Asize     = (imbalance + 7) / 8;
+      this.Bsize     = (remainder + 7) / 8;
+      this.packed    = n <= 128 && Bsize <= 15;
+      this.maskNLo   = maskLo(n);
+      this.maskNHi   = maskHi(n);
+      this.maskALo   = maskLo(imbalance);
+      this.maskAHi   = maskHi(imbalance);
+      this.maskBLo   = maskLo(remainder);
+      this.maskBHi   = maskHi(remainder);
+      long tLo       = shlLo(0xFFL, n-8);
+      long tHi       = shlHi(0xFFL, 0, n-8);
+      this.topLo     = packed ? tLo : 0;
+      this.topHi     = packed ? tHi : 0;
+      this.padLo     = padWord(Bsize, 0);
+      this.padHi     = padWord(Bsize, 8);
+      this.shortLo   = padWord(Bsize-1, 0);
+      this.shortHi   = padWord(Bsize-1, 8);
+   }
+
+   /* padWord() - bytes off..off+7 of a 16-byte block whose first len bytes are B. */
+   private static long padWord(int len, int off) {
+      long v = 0;
+      for (int i=0; i<8; i=i+1) {
+         if (off + i >= len && len < 16 && len >= 0) {
+            v |= (long) (16 - len) << (8*i);
+         }
+      }
+      return v;
+   }
+
+   static long maskLo(int bits) { return (bits >= 64) ? -1L : (1L << bits) - 1; }
+   static long maskHi(int bits) { return (bits >= 128) ? -1L : (bits > 64) ? (1L << (bits-64)) - 1 : 0; }
+
+   /* shrLo/shrHi - (lo, hi) >>> s, for 0 < s < 128. */
+   static long shrLo(long lo, long hi, int s) {
+      return (s < 64) ? (lo >>> s) | (hi << (64-s)) : hi >>> (s-64);
+   }
+   static long shrHi(long hi, int s) {
+      return (s < 64) ? hi >>> s : 0;
+   }
+
+   /* shlLo/shlHi - (lo, hi) << s, for 0 < s < 128. */
+   static long shlLo(long lo, int s) {
+      return (s < 64) ? lo << s : 0;
+   }
+   static long shlHi(long lo, long hi, int s) {
+      return (s < 64) ? (hi << s) | (lo >>> (64-s)) : lo << (s-64);
+   }
+
+   /* bitLength() is BitSet.length() of a (lo, hi) pair. */
+   static int bitLength(long lo, long hi) {
+      return (hi != 0) ? 128 - Long.numberOfLeadingZeros(hi) : 64 - Long.numberOfLeadingZeros(lo);
+   }
+
+   /* lookup() returns the plan for an n-bit message, or null if n was never added. */
+   static FF1Plan lookup(FF1Plan[] plans, int n) {
+      int idx = n >>> 3;
+      if ((n & 7) != 0 || idx >= plans.length) {
+         return null;
+      }
+      return plans[idx];
+   }
+
+   /* with() returns a copy of plans that also holds p, (the table grows as needed.) */
+   static FF1Plan[] with(FF1Plan[] plans, FF1Plan p) {
+      int idx = p.n >>> 3;
+      FF1Plan[] next = java.util.Arrays.copyOf(plans, Math.max(plans.length, idx + 1));
+      next[idx] = p;
+      return next;
+   }
+
+}
@@ -0,0 +1,131 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Round-count and split policies for the FF1LS80 engines.
+*/
+import java.util.function.IntUnaryOperator;
+
+/* FF1Policy supplies the two FFX functions that depend only on n: split(n) and rnds(n).
+   addValidSize() asks the engine's policy, (or the one passed for that length,) once and
+   compiles the answers into the length's FF1Plan, so nothing is recomputed per message.
+
+   ORIGINAL  - the FF1LS80 rule: split(n) = n-80 and rnds(n) = ceil(4n/split(n)). This is
+               the default and gives exactly the ciphertexts FF1LS80 always has; for n=104
+               that is a 24/80 split and 18 rounds.
+   ADDENDUM  - the FFX Addendum's fixed round counts for radix 2, (parameter set A2: 12
+               rounds once n >= 32,) with the A2 balanced split floor(n/2) rounded down
+               to whole bytes, (the engines split on byte boundaries.) For n=104 that is a
+               48/56 split and 12 rounds. Feistel method 1 is kept.
+   explicit  - a caller-chosen round count, with the n-80 split or an explicit split.
+   BALANCED  - the Addendum A2 round counts with the exact split floor(n/2), to the bit.
+               Only FF1Bits can split off whole bytes, so this is for FF1Bits, (or for
+               lengths that are multiples of 16.)
+   MODE_S    - ORIGINAL from 88 bits up, (so 1090ES payloads keep their ciphertexts,)
+               and BALANCED below, (56-bit Mode-S short frames and other short payloads.)
+               The FF1Bits default.
+   of        - any split and round functions, for other payload formats.
+
+   Fewer rounds run faster but give less security margin; the choice is the deployment's.
+   Ciphertexts from different policies are not interchangeable, so a key's readers and
+   writers must agree on it.
+*/
+abstract class FF1Policy {
+
+   final String name;                        // for messages and benchmark labels
+
+   FF1Policy(String name) {
+      this.name = name;
+   }
+
+   /* split(n) - the size of A in bits. */
+   abstract int split(int n);
+
+   /* rnds(n) - the number of Feistel rounds. */
+   abstract int rnds(int n);
+
+   public String toString() {
+      return name;
+   }
+
+   static final FF1Policy ORIGINAL = new FF1Policy("original") {
+      int split(int n) { return FF1LS80.split(n); }
+      int rnds(int n)  { return FF1LS80.rnds(n); }
+   };
+
+   static final FF1Policy ADDENDUM = new FF1Policy("addendum") {
+      int split(int n) { return (n / 16) * 8; }   // floor(n/2), whole bytes
+      int rnds(int n)  { return a2(n); }
+   };
+
+   static final FF1Policy BALANCED = new FF1Policy("balanced") {
+      int split(int n) { return n / 2; }
+      int rnds(int n)  { return a2(n); }
+   };
+
+   static final FF1Policy MODE_S = new FF1Policy("mode-s") {
+      int split(int n) { return (n >= 88) ? FF1LS80.split(n) : n / 2; }
+      int rnds(int n)  { return (n >= 88) ? FF1LS80.rnds(n) : a2(n); }
+   };
+
+   /* a2() - the Addendum's round table for radix 2, (parameter set A2.) */
+   static int a2(int n) {
+      if (n >= 32) return 12;
+      if (n >= 20) return 18;
+      if (n >= 14) return 24;
+      if (n >= 10) return 30;
+      return 36;
+   }
+
+   /* explicit() - a fixed round count with the usual n-80 split. */
+   static FF1Policy explicit(final int rounds) {
+      return new FF1Policy("explicit(" + rounds + ")") {
+         int split(int n) { return FF1LS80.split(n); }
+         int rnds(int n)  { return rounds; }
+      };
+   }
+
+   /* explicit() - a fixed round count and a fixed split, (select it per length.) */
+   static FF1Policy explicit(final int rounds, final int split) {
+      return new FF1Policy("explicit(" + rounds + "," + split + ")") {
+         int split(int n) { return split; }
+         int rnds(int n)  { return rounds; }
+      };
+   }
+
+   /* of() - split(n) and rnds(n) from the caller, e.g. for FF1Bits,
+      FF1Policy.of("ratio", n -> n/3, n -> 16).
+   */
+   static FF1Policy of(String name, final IntUnaryOperator split, final IntUnaryOperator rnds) {
+      return new FF1Policy(name) {
+         int split(int n) { return split.applyAsInt(n); }
+         int rnds(int n)  { return rnds.applyAsInt(n); }
+      };
+   }
+
+   /* plan() compiles the plan for n, or returns null if this policy cannot serve n:
+      both halves must be whole bytes, at least one byte each, and B must fit in one
+      AES block with its padding, (at most 15 bytes.)
+   */
+   FF1Plan plan(int n) {
+      int a = split(n);
+      int r = rnds(n);
+      if (n%8 != 0 || a%8 != 0 || a < 8 || n-a < 8 || n-a > 120 || r < 1) {
+         return null;
+      }
+      return new FF1Plan(n, a, r);
+   }
+
+   /* planBits() is plan() for FF1Bits, which splits anywhere: any n from 16 to 128 bits,
+      both halves at least 8 bits, and B at most 120 bits, (15 bytes with the PKCS5 pad.)
+   */
+   FF1Plan planBits(int n) {
+      if (n < 16 || n > 128) {
+         return null;
+      }
+      int a = split(n);
+      int r = rnds(n);
+      if (a < 8 || n-a < 8 || n-a > 120 || r < 1) {
+         return null;
+      }
+      return new FF1Plan(n, a, r);
+   }
+
+}
@@ -0,0 +1,112 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Single-producer, single-consumer ring of frame slots.
+*/
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* FF1Ring is a bounded queue between exactly two threads, one writing and one reading.
+   It holds fixed 16-byte slots in one preallocated byte[], (a 14-byte frame, a status
+   byte and a spare,) so passing a frame allocates nothing and copies 16 bytes.
+
+   The writer owns tail and the reader owns head. Each publishes its index with lazySet,
+   (a release store, no fence,) after touching the slots, and reads the other's index
+   only when its cached copy says the ring is full or empty. The two indexes live in one
+   AtomicLongArray, 128 bytes apart, so they never share a cache line.
+
+   Both sides work on runs of slots: readable()/slot()/release() for the reader and
+   writable()/wslot()/commit() for the writer, so a batch costs one index update.
+*/
+final class FF1Ring {
+
+   static final int SLOT   = 16;            // bytes per slot
+   static final int STATUS = 14;            // offset of the status byte in a slot
+
+   private static final int HEAD = 8;       // index positions in idx, (16 longs apart)
+   private static final int TAIL = 24;
+
+   final byte[] buf;                        // capacity * SLOT bytes
+   final int    capacity;                   // slots, a power of 2
+   private final int mask;
+   private final AtomicLongArray idx = new AtomicLongArray(32);
+
+   private long headCache;                  // writer's view of head
+   private long tailCache;                  // reader's view of tail
+
+   /* Constructor - capacity is in slots, rounded up to a power of 2. */
+   FF1Ring(int capacity) {
+      this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+      this.mask     = this.capacity - 1;
+      this.buf      = new byte[this.capacity * SLOT];
+   }
+
+   /* size() - slots in use, as seen by any thread, (approximate while both move.) */
+   int size() {
+      return (int) (idx.get(TAIL) - idx.get(HEAD));
+   }
+
+   /*-Writer side------------------------------------------------------------*/
+
+   /* writable() - free slots. */
+   int writable() {
+      long tail = idx.get(TAIL);
+      if (tail - headCache == capacity) {
+         headCache = idx.get(HEAD);
+      }
+      return capacity - (int) (tail - headCache);
+   }
+
+   /* wslot() - byte offset in buf of the i-th free slot. */
+   int wslot(int i) {
+      return (int) ((idx.get(TAIL) + i) & mask) * SLOT;
+   }
+
+   /* commit() publishes the next count slots to the reader. */
+   void commit(int count) {
+      idx.lazySet(TAIL, idx.get(TAIL) + count);
+   }
+
+   /* offer() copies one 14-byte frame in, false if the ring is full. */
+   boolean offer(byte[] frame, int off, byte status) {
+      if (writable() == 0) {
+         return false;
+      }
+      int o = wslot(0);
+      System.arraycopy(frame, off, buf, o, 14);
+      buf[o + STATUS] = status;
+      commit(1);
+      return true;
+   }
+
+   /*-Reader side------------------------------------------------------------*/
+
+   /* readable() - filled slots. */
+   int readable() {
+      long head = idx.get(HEAD);
+      if (tailCache == head) {
+         tailCache = idx.get(TAIL);
+      }
+      return (int) (tailCache - head);
+   }
+
+   /* slot() - byte offset in buf of the i-th filled slot. */
+   int slot(int i) {
+      return (int) ((idx.get(HEAD) + i) & mask) * SLOT;
+   }
+
+   /* release() hands the next count slots back to the writer. */
+   void release(int count) {
+      idx.lazySet(HEAD, idx.get(HEAD) + count);
+   }
+
+   /* poll() copies one frame out and returns its status, or -1 if the ring is empty. */
+   int poll(byte[] frame, int off) {
+      if (readable() == 0) {
+         return -1;
+      }
+      int o = slot(0);
+      System.arraycopy(buf, o, frame, off, 14);
+      int status = buf[o + STATUS];
+      release(1);
+      return status;
+   }
+
+}
@@ -0,0 +1,245 @@
+/* EEL4915 - Develop demonstration FFX encryption and decryption for ADS-B
+   Keyed round function F for the FF1LS80 parameter set.
+*/
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+
+/* FF1Round computes F(n, T, i, B) exactly as FF1LS80 does: one AES/CBC/PKCS5Padding
+   encryption of B under the Tweak as IV. B is never longer than 15 bytes, so that is a
+   single AES block, AES(Tweak XOR (B || PKCS5 pad)). FF1Round computes that block with a
+   raw AES/ECB/NoPadding Cipher, so the engines built on it, (FF1LS80Packed and those that
+   followed,) do not pay for Cipher.getInstance(), key expansion, an IvParameterSpec, or
+   the CBC and padding layers per message. FF1LS80 keeps its own Cipher call; it is the
+   reference the others are checked against.
+
+   Each thread gets its own initialized Cipher and scratch blocks (a Scratch) the first
+   time it uses a given FF1Round. After that nothing is allocated, and one FF1Round can be
+   shared by every thread that uses the key. Batch callers fill several blocks at once and
+   encrypt them with one Cipher call, (see blocks().)
+
+   The ADS-B Tweak is 16 copies of the first message byte, so there are only 256 distinct
+   IVs. They are precomputed as long words, (bytes little-endian,) in tweakIV[].
+
+   The AES itself is either the JCE Cipher or FF1AES, a table-driven AES-128 in plain
+   Java for runtimes where a Cipher call costs more than the block, (see tableAES().)
+   Both give the same blocks; every AES call goes through Scratch.encrypt().
+*/
+public class FF1Round {
+
+   final SecretKey Keys0;                   // packaged AES key
+   final FF1AES table;                      // built-in AES-128, or null to use JCE
+   final long[] tweakIV = new long[256];    // IV word for each ADS-B tweak byte
+
+   /* Scratch - the per-thread AES state. */
+   static final class Scratch {
+      final Cipher AESECB;                  // AES/ECB/NoPadding, initialized with Keys0
+      final FF1AES table;                   // ..or the built-in AES, (AESECB is then null)
+      final byte[] blockIn  = new byte[16]; // IV XOR padded B
+      final byte[] blockOut = new byte[16]; // AES output, the enc/dec factor
+      final long[] words    = new long[2];  // message words (lo, hi) for the packed engine
+      long         zHi;                     // bytes 8..15 of the last F() result
+      final long[] mac      = new long[4];  // CBC-MAC state and fixed Q words for FF1NIST
+      byte[] batchIn  = new byte[0];        // IV XOR padded B, 16 bytes per message
+      byte[] batchOut = new byte[0];        // AES output, 16 bytes per message
+
+      Scratch(SecretKey key, FF1AES table) throws GeneralSecurityException {
+         this.table = table;
+         if (table == null) {
+            AESECB = Cipher.getInstance("AES/ECB/NoPadding");
+            AESECB.init(Cipher.ENCRYPT_MODE, key);
+         }
+         else {
+            AESECB = null;
+         }
+      }
+
+      /* encrypt() - AES of the len bytes of in, (whole blocks,) into out. */
+      void encrypt(byte[] in, byte[] out, int len) throws GeneralSecurityException {
+         if (table != null) {
+            for (int off=0; off<len; off=off+16) {
+               table.encryptBlock(in, off, out, off);
+            }
+         }
+         else {
+            AESECB.doFinal(in, 0, len, out, 0);
+         }
+      }
+   }
+
+   private final ThreadLocal<Scratch> local = new ThreadLocal<Scratch>();
+
+   FF1Round(SecretKey key) {
+      this(key, tableAES());
+   }
+
+   /* Constructor with an explicit AES choice, true for FF1AES. FF1AES only does AES-128,
+      so any other key size uses JCE regardless.
+   */
+   FF1Round(SecretKey key, boolean useTable) {
+      Keys0 = key;
+      byte[] raw = key.getEncoded();
+      table = (useTable && raw != null && raw.length == 16) ? new FF1AES(raw) : null;
+      for (int t=0; t<256; t=t+1) {
+         tweakIV[t] = t * 0x0101010101010101L; // 8 copies of the tweak byte
+      }
+   }
+
+   /* scratch() returns this thread's initialized AES state, building it on first use,
+      (reported to FF1Metrics.aesInit().) Callers fetch it once per message and pass it to F().
+   */
+   Scratch scratch() throws GeneralSecurityException {
+      Scratch s = local.get();
+      if (s == null) {
+         long t0 = System.nanoTime();
+         s = new Scratch(Keys0, table);
+         local.set(s);
+         FF1Metrics.aesInit((table != null) ? "FF1AES" : "JCE",
+               (table != null) ? "built-in" : s.AESECB.getProvider().getName(), System.nanoTime() - t0);
+      }
+      return s;
+   }
+
+   /* tableAES() is the default AES choice, from the system property ffx.aes:
+      "table" - always FF1AES, "jce" - always the JCE Cipher, "auto" (or unset) - FF1AES
+      on Android, (where a Cipher call is expensive,) and JCE elsewhere, (where it is
+      usually backed by AES instructions.)
+   */
+   static boolean tableAES() {
+      String choice = System.getProperty("ffx.aes", "auto");
+      if (choice.equals("table")) return true;
+      if (choice.equals("jce"))   return false;
+      return "Dalvik".equals(System.getProperty("java.vm.name"));
+   }
+
+   /* F() on long words.. B is (bLo, bHi), (ivLo, ivHi) is the IV and (padLo, padHi) are
+      the PKCS5 pad bytes that follow B, (see FF1Plan.) Returns bytes 0..7 of the AES
+      block little-endian and leaves bytes 8..15 in s.zHi.
+   */
+   static long F(Scratch s, long ivLo, long ivHi, long bLo, long bHi, long padLo, long padHi)
+         throws GeneralSecurityException {
+      putLE(s.blockIn, 0, 8, (bLo | padLo) ^ ivLo);
+      putLE(s.blockIn, 8, 8, (bHi | padHi) ^ ivHi);
+      s.encrypt(s.blockIn, s.blockOut, 16);
+      s.zHi = getLE(s.blockOut, 8, 8);
+      return getLE(s.blockOut, 0, 8);
+   }
+
+   /* ensureBatch() grows the batch blocks to hold count messages. */
+   static void ensureBatch(Scratch s, int count) {
+      if (s.batchIn.length < count*16) {
+         s.batchIn  = new byte[count*16];
+         s.batchOut = new byte[count*16];
+      }
+   }
+
+   /* putBlock() fills batch block j the way F() fills its single block. */
+   static void putBlock(Scratch s, int j, long ivLo, long ivHi, long bLo, long bHi,
+                        long padLo, long padHi) {
+      putLE(s.batchIn, j*16,     8, (bLo | padLo) ^ ivLo);
+      putLE(s.batchIn, j*16 + 8, 8, (bHi | padHi) ^ ivHi);
+   }
+
+   /* blocks() encrypts the first count batch blocks with one Cipher call, so the JCE
+      overhead is paid once and the AES pipeline sees independent blocks back to back.
+   */
+   static void blocks(Scratch s, int count) throws GeneralSecurityException {
+      if (count > 0) {
+         s.encrypt(s.batchIn, s.batchOut, count*16);
+      }
+   }
+
+   /* getBlock() returns bytes 0..7, (and getBlockHi() bytes 8..15,) of batch output
+      block j little-endian.
+   */
+   static long getBlock(Scratch s, int j) {
+      return getLE(s.batchOut, j*16, 8);
+   }
+   static long getBlockHi(Scratch s, int j) {
+      return getLE(s.batchOut, j*16 + 8, 8);
+   }
+
+   /* F() on byte arrays.. B is 0..15 bytes, out receives all 16 bytes of the
+      AES/CBC/PKCS5Padding result, (the same bytes FF1LS80's doFinal(B) returns.)
+   */
+   void F(byte[] Tweak, byte[] B, byte[] out) throws GeneralSecurityException {
+      if (Tweak.length != 16) {
+         throw new InvalidAlgorithmParameterException("Wrong IV length: must be 16 bytes long");
+      }
+      if (B.length > 15) {
+         throw new IllegalBlockSizeException("B must fit in one AES block");
+      }
+      Scratch s = scratch();
+      byte pad = (byte) (16 - B.length);
+      for (int i=0; i<16; i=i+1) {
+         s.blockIn[i] = (byte) (Tweak[i] ^ ((i < B.length) ? B[i] : pad));
+      }
+      s.encrypt(s.blockIn, out, 16);
+   }
+
+   /* adsbTweak() is true for an ADS-B Tweak, 16 copies of its first byte. */
+   static boolean adsbTweak(byte[] Tweak) {
+      if (Tweak.length != 16) {
+         return false;
+      }
+      for (int i=1; i<16; i=i+1) {
+         if (Tweak[i] != Tweak[0]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /* getLE() reads up to 8 bytes little-endian, (BitSet.valueOf() bit order.) */
+   static long getLE(byte[] b, int off, int len) {
+      long v = 0;
+      for (int i=0; i<len; i=i+1) {
+         v |= (b[off+i] & 0xFFL) << (8*i);
+      }
+      return v;
+   }
+
+   /* putLE() writes the low len bytes of v little-endian. */
+   static void putLE(byte[] b, int off, int len, long v) {
+      for (int i=0; i<len; i=i+1) {
+         b[off+i] = (byte) (v >>> (8*i));
+      }
+   }
+
+   /* getBE() reads up to 8 bytes big-endian, (SP 800-38G byte order, see FF1NIST.) */
+   static long getBE(byte[] b, int off, int len) {
+      long v = 0;
+      for (int i=0; i<len; i=i+1) {
+         v = (v << 8) | (b[off+i] & 0xFFL);
+      }
+      return v;
+   }
+
+   /* putBE() writes the low len bytes of v big-endian. */
+   static void putBE(byte[] b, int off, int len, long v) {
+      for (int i=len-1; i>=0; i=i-1) {
+         b[off+i] = (byte) v;
+         v = v >>> 8;
+      }
+   }
+
+   /* getLE() from a ByteBuffer at an absolute index, (the buffer state is not changed.) */
+   static long getLE(ByteBuffer b, int off, int len) {
+      long v = 0;
+      for (int i=0; i<len; i=i+1) {
+         v |= (b.get(off+i) & 0xFFL) << (8*i);
+      }
+      return v;
+   }
+
+   /* putLE() to a ByteBuffer at an absolute index. */
+   static void putLE(ByteBuffer b, int off, int len, long v) {
+      for (int i=0; i<len; i=i+1) {
+         b.put(off+i, (byte) (v >>> (8*i)));
+      }
+   }
+
+}
@@ -0,0 +1,99 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for checking FF1AES against JCE and timing the AES choices.
+   Usage: java FFX_aes [seconds per case]
+   Exit code 1 if FF1AES disagrees with a known answer or with JCE.
+*/
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class FFX_aes {
+
+   // Known answers: FIPS-197 appendix C.1, then SP 800-38A F.1.1 (ECB-AES128)
+   static final String[][] KAT = {
+      { "000102030405060708090A0B0C0D0E0F", "00112233445566778899AABBCCDDEEFF", "69C4E0D86A7B0430D8CDB78070B4C55A" },
+      { "2B7E151628AED2A6ABF7158809CF4F3C", "6BC1BEE22E409F96E93D7E117393172A", "3AD77BB40D7A3660A89ECAF32466EF97" },
+      { "2B7E151628AED2A6ABF7158809CF4F3C", "AE2D8A571E03AC9C9EB76FAC45AF8E51", "F5D3D58503B9699DE785895A96FDBAAF" },
+      { "2B7E151628AED2A6ABF7158809CF4F3C", "30C81C46A35CE411E5FBC1191A0A52EF", "43B1CD7F598ECE23881B00E3ED030688" },
+      { "2B7E151628AED2A6ABF7158809CF4F3C", "F69F2445DF4F9B17AD2B417BE66C3710", "7B0C785E27E8AD3F8223207104725DD4" },
+   };
+
+	public static final void main(String args[]) throws Exception {
+      double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2.0;
+      int bad = 0;
+
+      // Known-answer vectors
+      for (String[] v : KAT) {
+         byte[] out = new byte[16];
+         new FF1AES(FF1LS80.hexToBytes(v[0])).encryptBlock(FF1LS80.hexToBytes(v[1]), 0, out, 0);
+         if (!FF1LS80.bytesToHex(out).equals(v[2])) {
+            System.out.println("FFX_aes: Error - KAT " + v[1] + " gave " + FF1LS80.bytesToHex(out));
+            bad = bad + 1;
+         }
+      }
+
+      // Random keys and blocks against JCE AES/ECB/NoPadding
+      Random rnd = new Random(197);
+      byte[] key = new byte[16];
+      byte[] in  = new byte[16];
+      byte[] out = new byte[16];
+      Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+      for (int k=0; k<1000; k=k+1) {
+         rnd.nextBytes(key);
+         FF1AES aes = new FF1AES(key);
+         ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+         for (int j=0; j<16; j=j+1) {
+            rnd.nextBytes(in);
+            aes.encryptBlock(in, 0, out, 0);
+            if (!Arrays.equals(out, ecb.doFinal(in))) {
+               bad = bad + 1;
+            }
+         }
+      }
+      System.out.println("FF1AES known answers and 16000 JCE comparisons: " + bad + " failures");
+      if (bad > 0) {
+         System.exit(1);
+      }
+
+      // F() as FF1LS80 computes it, and through each FF1Round backend
+      SecretKeySpec Keys0 = new SecretKeySpec(FF1LS80.hexToBytes("0102030405060708090A0B0C0D0E0F16"), "AES");
+      byte[] Tweak = new byte[16];
+      byte[] B     = new byte[10];              // 80-bit B, as at n=104
+      byte[] Z     = new byte[16];
+      System.out.println("case                          blocks/s");
+
+      long t0 = System.nanoTime(), done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         Tweak[0] = (byte) done;
+         Cipher AESCBC = Cipher.getInstance("AES/CBC/PKCS5Padding");
+         AESCBC.init(Cipher.ENCRYPT_MODE, Keys0, new IvParameterSpec(Tweak));
+         Z = AESCBC.doFinal(B);
+         done = done + 1;
+      }
+      FFX_bench.report("getInstance CBC/PKCS5", done, System.nanoTime() - t0);
+
+      Cipher AESCBC = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         Tweak[0] = (byte) done;
+         AESCBC.init(Cipher.ENCRYPT_MODE, Keys0, new IvParameterSpec(Tweak));
+         Z = AESCBC.doFinal(B);
+         done = done + 1;
+      }
+      FFX_bench.report("reused CBC/PKCS5", done, System.nanoTime() - t0);
+
+      for (boolean table : new boolean[] { false, true }) {
+         FF1Round Round = new FF1Round(Keys0, table);
+         t0 = System.nanoTime(); done = 0;
+         while (System.nanoTime() - t0 < seconds*1e9) {
+            Tweak[0] = (byte) done;
+            Round.F(Tweak, B, Z);
+            done = done + 1;
+         }
+         FFX_bench.report(table ? "FF1Round F, FF1AES" : "FF1Round F, JCE ECB", done, System.nanoTime() - t0);
+      }
+   }
+
+}
@@ -0,0 +1,136 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the indexed archive: write, time-range queries, recovery.
+   Usage: java FFX_archive [frames] [blockFrames] [threads] [bits|nist]
+   Writes a synthetic capture under two keys to a temporary file, then decrypts random
+   time windows and the whole file, checking every frame. Exit code 3 if any frame is
+   rejected, wrong, missing or extra, or if the index cannot be recovered without its
+   trailer.
+*/
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class FFX_archive {
+
+	public static final void main(String args[]) throws Exception {
+      final int total       = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+      final int blockFrames = (args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+      final int threads     = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      final String engine   = (args.length > 3) ? args[3] : "bits";
+
+      final FF1Keys keys = new FF1Keys(engine, 2, 104);
+      keys.register(1, "0102030405060708090A0B0C0D0E0F16"); // test keys only
+      keys.register(2, "2B7E151628AED2A6ABF7158809CF4F3C");
+
+      // A synthetic capture: random frames, 1..2000 ticks apart, key 2 from halfway.
+      final long[] times  = new long[total];
+      final byte[] frames = new byte[total * 14];
+      Random rnd = new Random(1090);
+      rnd.nextBytes(frames);
+      long t = 1L << 40;
+      for (int i=0; i<total; i=i+1) {
+         t = t + 1 + rnd.nextInt(2000);
+         times[i] = t;
+      }
+
+      Path file = Files.createTempFile("ffx", ".ffxa");
+      long t0 = System.nanoTime();
+      FF1Archive.Writer w = new FF1Archive.Writer(file, blockFrames, engine);
+      w.key(1, (FF1Batch) keys.engine(1));
+      for (int i=0; i<total; i=i+1) {
+         if (i == total/2) {
+            w.key(2, (FF1Batch) keys.engine(2));
+         }
+         w.append(times[i], frames, i*14);
+      }
+      w.close();
+      long nanos = System.nanoTime() - t0;
+      FFX_bench.report("Archive.write", total, nanos);
+      System.out.println(String.format("%d frames, %d rejected, %d blocks, %d bytes",
+            w.frames(), w.rejected(), w.blocks(), Files.size(file)));
+
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      long bad = w.rejected();                // the engines are lossless - none expected
+      FF1Archive.Reader r = new FF1Archive.Reader(file);
+      if (!engine.equals(r.engineName)) {
+         bad = bad + 1;
+      }
+
+      // Random windows of about 0.5% of the capture, then the whole of it.
+      long windowed = 0;
+      t0 = System.nanoTime();
+      for (int q=0; q<50; q=q+1) {
+         long from = times[0] + (long) (rnd.nextDouble() * (times[total-1] - times[0]));
+         long to   = from + (times[total-1] - times[0]) / 200;
+         bad = bad + query(r, from, to, times, frames, keys, pool);
+         windowed = windowed + count(times, from, to);
+      }
+      nanos = System.nanoTime() - t0;
+      FFX_bench.report("Archive.query(0.5%)", windowed, nanos);
+      t0 = System.nanoTime();
+      bad = bad + query(r, Long.MIN_VALUE, Long.MAX_VALUE, times, frames, keys, pool);
+      nanos = System.nanoTime() - t0;
+      FFX_bench.report("Archive.query(all)", total, nanos);
+      r.close();
+
+      // Recovery: the same file without its index and trailer.
+      long indexAt = Files.size(file) - FF1Archive.TRAILER - (long) w.blocks() * FF1Archive.ENTRY;
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+         ch.truncate(indexAt);
+      }
+      r = new FF1Archive.Reader(file);
+      System.out.println("recovered " + r.recovered + ", " + r.blocks() + " blocks, " + r.frames() + " frames");
+      if (!r.recovered || r.blocks() != w.blocks()) {
+         bad = bad + 1;
+      }
+      bad = bad + query(r, times[total/3], times[total/3 + 5000], times, frames, keys, pool);
+      r.close();
+      Files.delete(file);
+      pool.shutdown();
+
+      System.out.println("mismatched, missing or extra: " + bad);
+      if (bad > 0) {
+         System.exit(3);
+      }
+   }
+
+   /* query() runs one query and returns how many frames were wrong, missing or extra. */
+   static long query(FF1Archive.Reader r, final long from, final long to, final long[] times,
+                     final byte[] frames, FF1Keys keys, ForkJoinPool pool) throws Exception {
+      final long[] bad  = new long[1];
+      final int[]  next = { lower(times, from) };
+      long n = r.query(from, to, keys, pool, new FF1Archive.Sink() {
+         public void frame(long time, int keyId, byte[] f, int off, int status) {
+            int i = next[0];
+            next[0] = i + 1;
+            if (i >= times.length || times[i] != time || keyId != ((i < times.length/2) ? 1 : 2)) {
+               bad[0] = bad[0] + 1;
+               return;
+            }
+            for (int j=0; j<14; j=j+1) {
+               byte want = (status != 0 && j > 0) ? 0 : frames[i*14 + j];
+               if (f[off + j] != want) {
+                  bad[0] = bad[0] + 1;
+                  return;
+               }
+            }
+         }
+      });
+      return bad[0] + Math.abs(n - count(times, from, to));
+   }
+
+   /* lower() - index of the first time at or after t; count() - times within from..to. */
+   static int lower(long[] times, long t) {
+      int i = Arrays.binarySearch(times, t);
+      return (i >= 0) ? i : -i - 1;
+   }
+
+   static long count(long[] times, long from, long to) {
+      return (to == Long.MAX_VALUE ? times.length : lower(times, to + 1)) - lower(times, from);
+   }
+
+}
@@ -0,0 +1,167 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for comparing throughput of the FF1LS80 engines.
+   Usage: java [-Dffx.metrics=true] FFX_bench [seconds per case]
+   With metrics on, FF1Metrics.report() follows the throughput figures.
+*/
+import java.util.Random;
+
+public class FFX_bench {
+
+   static final int   N       = 104;                    // 1090ES payload, bits
+   static final int[] BATCHES = { 1, 16, 256, 4096 };   // batch sizes to compare
+
+	public static final void main(String args[]) {
+      double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2.0;
+      String keyStr  = "0102030405060708090A0B0C0D0E0F16"; // test key only
+
+      FF1LS80       ref    = new FF1LS80(keyStr);
+      FF1LS80Packed packed = new FF1LS80Packed(keyStr);
+      ref.addValidSize(N);
+      packed.addValidSize(N);
+
+      // A fixed pool of frames, cycled so every case sees the same data. Each case
+      // ..encrypts a copy, and frames that the reference rejects are left out so the
+      // ..error path does not distort the numbers.
+      Random rnd = new Random(1090);
+      int pool = 4096;
+      byte[]   preTweak = new byte[pool];
+      byte[][] frames   = new byte[pool][N/8];
+      byte[]   Tweak    = new byte[16];
+      for (int k=0; k<pool; ) {
+         preTweak[k] = (byte) rnd.nextInt();
+         rnd.nextBytes(frames[k]);
+         java.util.Arrays.fill(Tweak, preTweak[k]);
+         try {
+            ref.Encrypt(Tweak, frames[k].clone());
+            k = k + 1;
+         }
+         catch (RuntimeException e) { }       // draw another frame
+      }
+      byte[][] work = new byte[4096][N/8];
+
+      System.out.println("case                          msgs/s");
+      // Single-message paths
+      long t0 = System.nanoTime(), done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % pool);
+         java.util.Arrays.fill(Tweak, preTweak[k]);
+         System.arraycopy(frames[k], 0, work[0], 0, N/8);
+         ref.Encrypt(Tweak, work[0]);
+         done = done + 1;
+      }
+      report("FF1LS80.Encrypt", done, System.nanoTime() - t0);
+
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % pool);
+         System.arraycopy(frames[k], 0, work[0], 0, N/8);
+         packed.Encrypt(preTweak[k], work[0]);
+         done = done + 1;
+      }
+      report("Packed.Encrypt", done, System.nanoTime() - t0);
+
+      // The same pool through a ciphertext cache, (after one pass every frame repeats.)
+      FF1Cache cache = new FF1Cache(new FF1LS80Packed(keyStr), 2*pool);
+      cache.addValidSize(N);
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % pool);
+         System.arraycopy(frames[k], 0, work[0], 0, N/8);
+         cache.Encrypt(preTweak[k], work[0]);
+         done = done + 1;
+      }
+      report("Cache.Encrypt (repeats)", done, System.nanoTime() - t0);
+      System.out.println(cache);
+
+      // A key registry, with another thread rotating the active key every millisecond,
+      // ..(FF1NIST engines, which accept every frame under every key.)
+      final FF1Keys keys = new FF1Keys("nist", 8, N);
+      for (int id=0; id<4; id=id+1) {
+         keys.register(id, keyStr.substring(0, 30) + String.format("%02X", id));
+      }
+      keys.rotate(0);
+      Thread rotator = new Thread() {
+         public void run() {
+            for (int id=1; !isInterrupted(); id=id+1) {
+               keys.rotate(id % 4);
+               try {
+                  Thread.sleep(1);
+               }
+               catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+      };
+      rotator.start();
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % pool);
+         java.util.Arrays.fill(Tweak, preTweak[k]);
+         System.arraycopy(frames[k], 0, work[0], 0, N/8);
+         keys.Encrypt(Tweak, work[0]);
+         done = done + 1;
+      }
+      report("Keys.Encrypt nist, rotating", done, System.nanoTime() - t0);
+      rotator.interrupt();
+
+      FF1NIST nist = new FF1NIST(keyStr);
+      nist.addValidSize(N);
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % pool);
+         System.arraycopy(frames[k], 0, work[0], 0, N/8);
+         nist.Encrypt(preTweak[k], work[0]);
+         done = done + 1;
+      }
+      report("FF1NIST.Encrypt", done, System.nanoTime() - t0);
+
+      // Round-interleaved batches
+      for (int size : BATCHES) {
+         byte[]   bt = new byte[size];
+         byte[][] bx = java.util.Arrays.copyOf(work, size);
+         t0 = System.nanoTime(); done = 0;
+         while (System.nanoTime() - t0 < seconds*1e9) {
+            int base = (int) (done % pool);
+            for (int k=0; k<size; k=k+1) {
+               bt[k] = preTweak[(base+k) % pool];
+               System.arraycopy(frames[(base+k) % pool], 0, bx[k], 0, N/8);
+            }
+            packed.encryptBatch(bt, bx, size, null);
+            done = done + size;
+         }
+         report("Packed.encryptBatch(" + size + ")", done, System.nanoTime() - t0);
+      }
+
+      // Round policies, batches of 256, (same frames - the work per frame is the point.)
+      // ..Frames a policy rejects are counted, since they stop part way.
+      FF1Policy[] policies = { FF1Policy.ORIGINAL, FF1Policy.ADDENDUM, FF1Policy.explicit(12) };
+      for (FF1Policy p : policies) {
+         FF1LS80Packed alt = new FF1LS80Packed(keyStr, p);
+         alt.addValidSize(N);
+         int size = 256;
+         byte[]   bt = new byte[size];
+         byte[][] bx = java.util.Arrays.copyOf(work, size);
+         t0 = System.nanoTime(); done = 0;
+         while (System.nanoTime() - t0 < seconds*1e9) {
+            int base = (int) (done % pool);
+            for (int k=0; k<size; k=k+1) {
+               bt[k] = preTweak[(base+k) % pool];
+               System.arraycopy(frames[(base+k) % pool], 0, bx[k], 0, N/8);
+            }
+            alt.encryptBatch(bt, bx, size, null);
+            done = done + size;
+         }
+         report("Policy " + p + " (" + p.rnds(N) + ")", done, System.nanoTime() - t0);
+      }
+
+      if (FF1Metrics.ENABLED) {                // java -Dffx.metrics=true FFX_bench
+         System.out.print(FF1Metrics.report());
+      }
+   }
+
+   static void report(String name, long msgs, long nanos) {
+      System.out.println(String.format("%-26s %9.0f", name, msgs / (nanos / 1e9)));
+   }
+
+}
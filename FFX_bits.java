@@ -0,0 +1,178 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the any-length engine.
+   Usage: java FFX_bits [messages per length] [seconds per case]
+   Checks FF1Bits at every length from 16 to 128 bits: round trips, the bits above n
+   left alone, batches of mixed lengths against single messages, Mode-S frames, and,
+   from 88 bits up, FF1LS80Packed's ciphertexts wherever the reference runs cleanly.
+   Then compares a mixed stream of 56-bit and 112-bit frames with padding the short
+   frames to 88 bits for FF1LS80Packed. Exit code 3 if any check fails.
+*/
+import java.util.Arrays;
+import java.util.Random;
+
+public class FFX_bits {
+
+	public static final void main(String args[]) {
+      int    per     = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+      double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 2.0;
+      String keyStr  = "0102030405060708090A0B0C0D0E0F16"; // test key only
+
+      FF1Metrics.setSinks();                // FF1LS80Packed's rejections are expected
+      FF1Bits       bits   = new FF1Bits(keyStr);
+      FF1LS80Packed packed = new FF1LS80Packed(keyStr);
+      for (int n=FF1Bits.MIN_BITS; n<=FF1Bits.MAX_BITS; n=n+1) {
+         bits.addValidSize(n);
+      }
+      for (int n=88; n<=128; n=n+8) {
+         packed.addValidSize(n);
+      }
+
+      // Every length: round trips under ADS-B and general Tweaks, spare bits untouched.
+      Random rnd = new Random(1090);
+      long bad = 0, clean = 0;
+      for (int n=FF1Bits.MIN_BITS; n<=FF1Bits.MAX_BITS; n=n+1) {
+         FF1Plan p = bits.plans[n];
+         for (int i=0; i<per; i=i+1) {
+            byte[] P = new byte[(n+7)/8];
+            rnd.nextBytes(P);
+            byte[] C = P.clone();
+            byte pre = (byte) rnd.nextInt();
+            if ((i & 1) == 0) {
+               bits.Encrypt(pre, C, n);
+               bad = bad + (Arrays.equals(bits.Decrypt(pre, C.clone(), n), P) ? 0 : 1);
+            }
+            else {
+               byte[] Tweak = new byte[16];
+               rnd.nextBytes(Tweak);
+               bits.Encrypt(Tweak, C, n);
+               bad = bad + (Arrays.equals(bits.Decrypt(Tweak, C.clone(), n), P) ? 0 : 1);
+            }
+            int top = P.length - 1;
+            int spare = (n % 8 == 0) ? 0 : (0xFF << (n % 8)) & 0xFF;
+            bad = bad + (((P[top] ^ C[top]) & spare) == 0 ? 0 : 1);
+
+            // FF1LS80's parameter set: the same ciphertext wherever the reference runs
+            // ..cleanly, (Packed encrypts and its own Decrypt gives P back.)
+            if (n >= 88 && n % 8 == 0 && (i & 1) == 0) {
+               try {
+                  byte[] R = packed.Encrypt(pre, P.clone());
+                  if (Arrays.equals(packed.Decrypt(pre, R.clone()), P)) {
+                     clean = clean + 1;
+                     bad = bad + (Arrays.equals(R, C) ? 0 : 1);
+                  }
+               }
+               catch (IllegalArgumentException e) { }
+            }
+         }
+         if (p.n != n) {
+            bad = bad + 1;
+         }
+      }
+      System.out.println((FF1Bits.MAX_BITS - FF1Bits.MIN_BITS + 1) * per + " messages at every length, "
+                         + clean + " compared with FF1LS80Packed, " + bad + " mismatches");
+
+      // Batches of mixed lengths against one message at a time, both directions.
+      long batchBad = 0;
+      for (int i=0; i<50; i=i+1) {
+         int count = 1 + rnd.nextInt(1024);
+         byte[]   pre = new byte[count];
+         int[]    n   = new int[count];
+         byte[][] M   = new byte[count][];
+         rnd.nextBytes(pre);
+         for (int k=0; k<count; k=k+1) {
+            n[k] = FF1Bits.MIN_BITS + rnd.nextInt(FF1Bits.MAX_BITS - FF1Bits.MIN_BITS + 1);
+            M[k] = new byte[(n[k]+7)/8];
+            rnd.nextBytes(M[k]);
+         }
+         byte[][] got = FFX_lanes.copy(M);
+         bits.encryptBatch(pre, got, n, count);
+         for (int k=0; k<count; k=k+1) {
+            batchBad = batchBad + (Arrays.equals(got[k], bits.Encrypt(pre[k], M[k].clone(), n[k])) ? 0 : 1);
+         }
+         bits.decryptBatch(pre, got, n, count);
+         for (int k=0; k<count; k=k+1) {
+            batchBad = batchBad + (Arrays.equals(got[k], M[k]) ? 0 : 1);
+         }
+      }
+
+      // Mode-S frames, short and extended, where they lie in a buffer.
+      int frames = 4096;
+      int[]  len = new int[frames];
+      int[]  off = new int[frames];
+      int    end = 0;
+      for (int k=0; k<frames; k=k+1) {
+         len[k] = rnd.nextBoolean() ? 7 : 14;
+         off[k] = end;
+         end = end + len[k];
+      }
+      byte[] capture = new byte[end];
+      rnd.nextBytes(capture);
+      byte[] buf = capture.clone();
+      for (int k=0; k<frames; k=k+1) {
+         bits.encryptFrame(buf, off[k], len[k]);
+         byte[] want = Arrays.copyOfRange(capture, off[k]+1, off[k]+len[k]);
+         bits.Encrypt(capture[off[k]], want, (len[k]-1)*8);
+         batchBad = batchBad + (Arrays.equals(want, Arrays.copyOfRange(buf, off[k]+1, off[k]+len[k])) ? 0 : 1);
+      }
+      for (int k=0; k<frames; k=k+1) {
+         bits.decryptFrame(buf, off[k], len[k]);
+      }
+      batchBad = batchBad + (Arrays.equals(buf, capture) ? 0 : 1);
+      System.out.println("mixed-length batches and " + frames + " Mode-S frames, " + batchBad + " mismatches");
+      bad = bad + batchBad;
+
+      // Throughput on a stream of short and extended squitters: FF1Bits takes the 48-bit
+      // ..payload as it is; padded, it is an 88-bit FF1LS80Packed message, (44 rounds.)
+      System.out.println("case                          msgs/s");
+      long t0 = System.nanoTime(), done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         System.arraycopy(capture, 0, buf, 0, end);
+         for (int k=0; k<frames; k=k+1) {
+            bits.encryptFrame(buf, off[k], len[k]);
+         }
+         done = done + frames;
+      }
+      FFX_bench.report("Bits.encryptFrame 7/14", done, System.nanoTime() - t0);
+      byte[] pad = new byte[11];
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         System.arraycopy(capture, 0, buf, 0, end);
+         for (int k=0; k<frames; k=k+1) {
+            try {
+               if (len[k] == 14) {
+                  packed.encryptFrame(buf, off[k]);
+               }
+               else {
+                  Arrays.fill(pad, (byte) 0);
+                  System.arraycopy(buf, off[k]+1, pad, 0, 6);
+                  packed.Encrypt(buf[off[k]], pad);
+               }
+            }
+            catch (IllegalArgumentException e) { }   // the reference's rejections
+         }
+         done = done + frames;
+      }
+      FFX_bench.report("Packed, short padded to 88", done, System.nanoTime() - t0);
+
+      // Any length, switching on every message: one table load each.
+      int[]    n = new int[frames];
+      byte[][] M = new byte[frames][];
+      for (int k=0; k<frames; k=k+1) {
+         n[k] = FF1Bits.MIN_BITS + rnd.nextInt(FF1Bits.MAX_BITS - FF1Bits.MIN_BITS + 1);
+         M[k] = new byte[(n[k]+7)/8];
+      }
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         for (int k=0; k<frames; k=k+1) {
+            bits.Encrypt(capture[k], M[k], n[k]);
+         }
+         done = done + frames;
+      }
+      FFX_bench.report("Bits.Encrypt 16..128 bits", done, System.nanoTime() - t0);
+
+      if (bad > 0) {
+         System.exit(3);
+      }
+   }
+
+}
@@ -0,0 +1,39 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for bulk encryption and decryption of ADS-B capture files.
+   Usage: java FFX_bulk enc|dec avr|raw keyHex inFile outFile [threads]
+   Warning: a key given on the command line is visible to other users of the machine.
+*/
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+public class FFX_bulk {
+
+   public static final void main(String args[]) throws Exception {
+      if (args.length < 5) {
+         System.out.println("Usage: java FFX_bulk enc|dec avr|raw keyHex inFile outFile [threads]");
+         System.exit(1);
+      }
+      boolean encrypt = args[0].equals("enc");
+      boolean avr     = args[1].equals("avr");
+      int     threads = (args.length > 5) ? Integer.parseInt(args[5])
+                                          : Runtime.getRuntime().availableProcessors();
+
+      FF1LS80Packed engine = new FF1LS80Packed(args[2]);
+      if (engine.addValidSize(104) > 1) {     // 1090ES payload
+         System.exit(2);
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      long t0 = System.nanoTime();
+      FF1Bulk.Result r = new FF1Bulk(engine, encrypt).run(Paths.get(args[3]), Paths.get(args[4]), avr, pool);
+      double secs = (System.nanoTime() - t0) / 1e9;
+      pool.shutdown();
+
+      System.out.println(String.format("%d bytes, %d frames, %d failed, %.2f s, %.0f frames/s",
+                                       r.bytes, r.frames, r.failed, secs, r.frames / secs));
+      if (r.failed > 0) {
+         System.exit(3);                      // some frames were zeroed
+      }
+   }
+
+}
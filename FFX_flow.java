@@ -0,0 +1,149 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the Flow processor: throughput, ordering and bounded memory under overload.
+   Usage: java FFX_flow [parallelism] [frames]
+   Exit code 3 if any result differs from the single-threaded engine, or is out of order,
+   or more frames were ever in flight than the processor's capacity.
+*/
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FFX_flow {
+
+	public static final void main(String args[]) throws InterruptedException {
+      final int  parallelism = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+      final long total       = (args.length > 1) ? Long.parseLong(args[1]) : 1000000;
+      String keyStr = "0102030405060708090A0B0C0D0E0F16"; // test key only
+      final int capacity = 4096;
+
+      FF1LS80Packed engine = new FF1LS80Packed(keyStr);
+      engine.addValidSize(104);
+
+      // A pool of random frames and what the engine makes of them, one batch at a time.
+      final int pool = 4096;
+      final byte[][] frames   = new byte[pool][14];
+      final byte[][] expected = new byte[pool][14];
+      byte[]    tweak   = new byte[pool];
+      byte[][]  payload = new byte[pool][13];
+      boolean[] failed  = new boolean[pool];
+      Random rnd = new Random(1090);
+      for (int k=0; k<pool; k=k+1) {
+         rnd.nextBytes(frames[k]);
+         tweak[k] = frames[k][0];
+         System.arraycopy(frames[k], 1, payload[k], 0, 13);
+      }
+      engine.encryptBatch(tweak, payload, pool, failed);
+      for (int k=0; k<pool; k=k+1) {
+         expected[k][0] = tweak[k];
+         if (!failed[k]) System.arraycopy(payload[k], 0, expected[k], 1, 13);
+      }
+
+      long bad = 0;
+
+      // 1. Throughput: a subscriber that keeps up, checking every result and its order.
+      FF1Flow flow = new FF1Flow(engine, true, parallelism, capacity);
+      Check check = new Check(expected, 256, 0);
+      SubmissionPublisher<byte[]> pub = new SubmissionPublisher<byte[]>();
+      pub.subscribe(flow);
+      flow.subscribe(check);
+      long t0 = System.nanoTime();
+      for (long i=0; i<total; i=i+1) {
+         pub.submit(frames[(int) (i % pool)].clone());
+      }
+      pub.close();
+      check.done.await();
+      long nanos = System.nanoTime() - t0;
+      System.out.println(flow.stats());
+      FFX_bench.report("Flow(" + parallelism + ")", check.seen.get(), nanos);
+      bad = bad + check.bad.get() + ((check.seen.get() != total) ? 1 : 0);
+
+      // 2. Overload: a subscriber taking one frame per 100 microseconds. The processor
+      // ..holds at most capacity frames, the publisher's buffer fills, and then submit()
+      // ..blocks the producer instead of the heap growing.
+      flow  = new FF1Flow(engine, true, parallelism, capacity);
+      check = new Check(expected, 1, 100000);
+      pub   = new SubmissionPublisher<byte[]>();
+      pub.subscribe(flow);
+      flow.subscribe(check);
+      Runtime rt = Runtime.getRuntime();
+      long heap0 = rt.totalMemory() - rt.freeMemory(), heapMax = heap0;
+      long end = System.nanoTime() + 2000000000L;
+      long submitted = 0;
+      for (; System.nanoTime() < end; submitted=submitted+1) {
+         pub.submit(frames[(int) (submitted % pool)].clone());
+         if ((submitted & 0xFF) == 0) {
+            heapMax = Math.max(heapMax, rt.totalMemory() - rt.freeMemory());
+         }
+      }
+      System.out.println(flow.stats());
+      System.out.println(String.format("overload: %d submitted in 2 s, %d delivered, heap %d -> %d MB max",
+            submitted, check.seen.get(), heap0 >> 20, heapMax >> 20));
+      check.cancel();
+      pub.close();
+      bad = bad + check.bad.get() + ((flow.maxInFlight() > capacity) ? 1 : 0);
+
+      System.out.println("mismatched or out of order: " + bad);
+      if (bad > 0) {
+         System.exit(3);
+      }
+   }
+
+   /* Check - a subscriber that requests batch frames at a time, (pausing pause ns per
+      frame,) and compares frame i with expected[i % pool].
+   */
+   static final class Check implements Flow.Subscriber<byte[]> {
+      final byte[][] expected;
+      final int  batch;
+      final long pause;
+      final AtomicLong seen = new AtomicLong(), bad = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(1);
+      volatile Flow.Subscription sub;
+      int outstanding;
+
+      Check(byte[][] expected, int batch, long pause) {
+         this.expected = expected;
+         this.batch    = batch;
+         this.pause    = pause;
+      }
+
+      public void onSubscribe(Flow.Subscription s) {
+         sub = s;
+         outstanding = batch;
+         s.request(batch);
+      }
+
+      public void onNext(byte[] f) {
+         long i = seen.getAndIncrement();
+         if (!Arrays.equals(f, expected[(int) (i % expected.length)])) {
+            bad.incrementAndGet();
+         }
+         if (pause > 0) {
+            java.util.concurrent.locks.LockSupport.parkNanos(pause);
+         }
+         outstanding = outstanding - 1;
+         if (outstanding == 0) {
+            outstanding = batch;
+            sub.request(batch);
+         }
+      }
+
+      public void onError(Throwable t) {
+         System.out.println("FFX_flow: Error - " + t);
+         bad.incrementAndGet();
+         done.countDown();
+      }
+
+      public void onComplete() {
+         done.countDown();
+      }
+
+      void cancel() {
+         sub.cancel();
+         done.countDown();
+      }
+   }
+
+}
@@ -0,0 +1,219 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the shared encryption gateway: a server, and a load generator.
+   Usage: java FFX_gateway server enc|dec avr|raw host tcpPort udpPort [maxBatch] [maxDelayMicros] [batchers]
+          java FFX_gateway load tcp|udp avr|raw host port [connections] [seconds] [burst] [verify]
+          java FFX_gateway demo [seconds]
+   The server uses the test key. load sends bursts of random frames on each connection,
+   waits for each reply and reports p50/p99 latency per burst and messages per second;
+   with "verify" it also checks every reply against a local encrypting engine.
+   demo runs both on loopback. Exit code 3 if a verified reply differs, or none came back.
+*/
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FFX_gateway {
+
+   static final String keyStr = "0102030405060708090A0B0C0D0E0F16"; // test key only
+   static final int    FRAME  = FF1Gateway.FRAME;
+   static final int    POOL   = 4096;      // distinct frames each client cycles through
+
+	public static final void main(String args[]) throws Exception {
+      String mode = (args.length > 0) ? args[0] : "demo";
+      if (mode.equals("server")) {
+         FF1Gateway g = server(args[1].equals("enc"), args[2].equals("avr"),
+               (args.length > 6) ? Integer.parseInt(args[6]) : 256,
+               (args.length > 7) ? Long.parseLong(args[7]) : 200,
+               (args.length > 8) ? Integer.parseInt(args[8]) : Runtime.getRuntime().availableProcessors());
+         System.out.println("tcp " + g.listenTcp(args[3], Integer.parseInt(args[4]))
+                          + ", udp " + g.listenUdp(args[3], Integer.parseInt(args[5])));
+         while (true) {
+            Thread.sleep(10000);
+            System.out.println(g.stats());
+         }
+      }
+      if (mode.equals("load")) {
+         long bad = load(args[1].equals("udp"), args[2].equals("avr"), args[3], Integer.parseInt(args[4]),
+               (args.length > 5) ? Integer.parseInt(args[5]) : 16,
+               (args.length > 6) ? Integer.parseInt(args[6]) : 5,
+               (args.length > 7) ? Integer.parseInt(args[7]) : 1,
+               (args.length > 8) && args[8].equals("verify"));
+         System.exit((bad != 0) ? 3 : 0);
+      }
+      int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+      long bad = 0;
+      for (int pass=0; pass<2; pass=pass+1) {
+         boolean avr = (pass == 1);
+         FF1Gateway g = server(true, avr, 256, 200, Runtime.getRuntime().availableProcessors());
+         int tcp = g.listenTcp("127.0.0.1", 0);
+         int udp = g.listenUdp("127.0.0.1", 0);
+         bad = bad + load(false, avr, "127.0.0.1", tcp, 1,  seconds, 1, true);
+         bad = bad + load(false, avr, "127.0.0.1", tcp, 64, seconds, 1, true);
+         bad = bad + load(false, avr, "127.0.0.1", tcp, 16, seconds, 16, true);
+         bad = bad + load(true,  avr, "127.0.0.1", udp, 64, seconds, 1, true);
+         System.out.println(g.stats());
+         g.close();
+      }
+      if (bad != 0) {
+         System.exit(3);
+      }
+   }
+
+   static FF1Gateway server(boolean encrypt, boolean avr, int maxBatch, long maxDelayMicros, int batchers) {
+      FF1LS80Packed engine = new FF1LS80Packed(keyStr);
+      engine.addValidSize(104);
+      return new FF1Gateway(engine, encrypt, avr, maxBatch, maxDelayMicros, batchers);
+   }
+
+   /* load() runs the clients and prints one line of results; returns the count of wrong
+      replies, (with verify,) or 1 if no reply came back at all.
+   */
+   static long load(final boolean udp, final boolean avr, final String host, final int port,
+                    int connections, int seconds, final int burst, boolean verify) throws Exception {
+      // Requests, (burst frames each, in the wire format,) and the replies they should get.
+      final byte[][] request  = new byte[POOL][];
+      final byte[][] expected = new byte[POOL][];
+      Random rnd = new Random(1090);
+      byte[]    tweak   = new byte[POOL*burst];
+      byte[][]  payload = new byte[POOL*burst][FRAME-1];
+      boolean[] failed  = new boolean[POOL*burst];
+      byte[][]  frames  = new byte[POOL*burst][FRAME];
+      for (int k=0; k<POOL*burst; k=k+1) {
+         rnd.nextBytes(frames[k]);
+         tweak[k] = frames[k][0];
+         System.arraycopy(frames[k], 1, payload[k], 0, FRAME-1);
+      }
+      FF1LS80Packed engine = new FF1LS80Packed(keyStr);
+      engine.addValidSize(104);
+      engine.encryptBatch(tweak, payload, POOL*burst, failed);
+      for (int r=0; r<POOL; r=r+1) {
+         StringBuilder in = new StringBuilder(), out = new StringBuilder();
+         byte[] rawIn = new byte[burst*FRAME], rawOut = new byte[burst*FRAME];
+         for (int j=0; j<burst; j=j+1) {
+            int k = r*burst + j;
+            System.arraycopy(frames[k], 0, rawIn, j*FRAME, FRAME);
+            rawOut[j*FRAME] = tweak[k];
+            if (!failed[k]) System.arraycopy(payload[k], 0, rawOut, j*FRAME + 1, FRAME-1);
+            in.append('*').append(FF1LS80.bytesToHex(frames[k])).append(";\n");
+            out.append('*').append(FF1LS80.bytesToHex(Arrays.copyOfRange(rawOut, j*FRAME, (j+1)*FRAME))).append(";\n");
+         }
+         request[r]  = avr ? in.toString().getBytes("US-ASCII") : rawIn;
+         expected[r] = avr ? out.toString().getBytes("US-ASCII") : rawOut;
+      }
+
+      final boolean check = verify;
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      final long[][] latency = new long[connections][];
+      final int[]    count   = new int[connections];
+      final long[]   bad     = new long[connections];
+      final long[]   lost    = new long[connections];
+      Thread[] clients = new Thread[connections];
+      for (int c=0; c<connections; c=c+1) {
+         final int id = c;
+         clients[c] = new Thread() {
+            public void run() {
+               long[] lat = new long[1 << 16];
+               int n = 0;
+               try {
+                  Socket s = null;
+                  DatagramSocket d = null;
+                  InputStream in = null;
+                  OutputStream out = null;
+                  if (udp) {
+                     d = new DatagramSocket();
+                     d.connect(new InetSocketAddress(host, port));
+                     d.setSoTimeout(1000);
+                  }
+                  else {
+                     s = new Socket(host, port);
+                     s.setTcpNoDelay(true);
+                     in  = s.getInputStream();
+                     out = s.getOutputStream();
+                  }
+                  byte[] reply = new byte[65536];
+                  DatagramPacket p = new DatagramPacket(reply, reply.length);
+                  for (int r=id*997; System.nanoTime() < deadline; r=r+1) {
+                     byte[] req = request[r % POOL];
+                     long t0 = System.nanoTime();
+                     int len = 0;
+                     if (udp) {
+                        d.send(new DatagramPacket(req, req.length));
+                        try {
+                           d.receive(p);
+                           len = p.getLength();
+                        }
+                        catch (SocketTimeoutException e) {
+                           lost[id] = lost[id] + 1;
+                           continue;
+                        }
+                     }
+                     else {
+                        out.write(req);
+                        while (len < req.length) {
+                           int m = in.read(reply, len, req.length - len);
+                           if (m < 0) {
+                              throw new java.io.EOFException();
+                           }
+                           len = len + m;
+                        }
+                     }
+                     long t = System.nanoTime() - t0;
+                     if (n == lat.length) {
+                        lat = Arrays.copyOf(lat, 2*n);
+                     }
+                     lat[n] = t;
+                     n = n + 1;
+                     if (check && !Arrays.equals(Arrays.copyOf(reply, len), expected[r % POOL])) {
+                        bad[id] = bad[id] + 1;
+                     }
+                  }
+                  if (s != null) s.close();
+                  if (d != null) d.close();
+               }
+               catch (java.io.IOException e) {
+                  System.out.println("FFX_gateway.load: Error - " + e);
+               }
+               latency[id] = lat;
+               count[id]   = n;
+            }
+         };
+         clients[c].start();
+      }
+      long t0 = System.nanoTime();
+      long total = 0, wrong = 0, dropped = 0;
+      for (int c=0; c<connections; c=c+1) {
+         clients[c].join();
+         total   = total + count[c];
+         wrong   = wrong + bad[c];
+         dropped = dropped + lost[c];
+      }
+      long nanos = System.nanoTime() - t0;
+      long[] all = new long[(int) total];
+      for (int c=0, at=0; c<connections; c=c+1) {
+         System.arraycopy(latency[c], 0, all, at, count[c]);
+         at = at + count[c];
+      }
+      Arrays.sort(all);
+      System.out.println(String.format("%s %s, %3d conn x %2d: %9.0f msgs/s, p50 %7.1f us,"
+            + " p99 %7.1f us, max %8.1f us%s%s", udp ? "udp" : "tcp", avr ? "avr" : "raw",
+            connections, burst, total * burst * 1e9 / nanos, pct(all, 0.50), pct(all, 0.99),
+            (total == 0) ? 0.0 : all[all.length-1] / 1e3,
+            (dropped == 0) ? "" : ", " + dropped + " lost", verify ? ", " + wrong + " wrong" : ""));
+      return (total == 0) ? 1 : wrong;
+   }
+
+   /* pct() - the p-th quantile of sorted nanoseconds, in microseconds. */
+   static double pct(long[] sorted, double p) {
+      if (sorted.length == 0) {
+         return 0.0;
+      }
+      return sorted[Math.min(sorted.length-1, (int) (p * sorted.length))] / 1e3;
+   }
+
+}
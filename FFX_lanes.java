@@ -0,0 +1,157 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the lane-parallel batch engine.
+   Usage: java [--add-modules jdk.incubator.vector] FFX_lanes [batches] [seconds per case]
+   Checks FF1Lanes, with the vector kernel where it loads and with the scalar one, against
+   FF1LS80Packed on random batches, (mixed lengths and sizes, both directions,) and on
+   runs of 14-byte frames, then compares throughput with the single-message and batch
+   paths. Exit code 3 if any message differs.
+*/
+import java.util.Arrays;
+import java.util.Random;
+
+public class FFX_lanes {
+
+	public static final void main(String args[]) {
+      int    batches = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+      double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 2.0;
+      String keyStr  = "0102030405060708090A0B0C0D0E0F16"; // test key only
+
+      FF1Metrics.setSinks();                // rejected frames are expected, (and compared)
+      FF1LS80Packed packed = new FF1LS80Packed(keyStr);
+      FF1Lanes      lanes  = new FF1Lanes(keyStr);
+      FF1Lanes      scalar = new FF1Lanes(keyStr);
+      scalar.kernel = new FF1Lanes.Kernel();
+      FF1Lanes.Kernel vector = FF1Lanes.vector();
+      if (vector != null) {
+         lanes.kernel = vector;             // whatever the default, (see -Dffx.vector)
+      }
+      for (int n=88; n<=128; n=n+8) {
+         packed.addValidSize(n);
+         lanes.addValidSize(n);
+         scalar.addValidSize(n);
+      }
+      System.out.println("default kernel: " + FF1Lanes.KERNEL + ", vector: " + ((vector != null) ? vector : "none"));
+
+      // Random batches: 1..4096 messages, (so vector tails of every size occur,) mostly
+      // ..104 bits with a mix of the other lengths in every other batch.
+      Random rnd = new Random(1090);
+      long bad = 0, msgs = 0;
+      for (int i=0; i<batches; i=i+1) {
+         int count = 1 + rnd.nextInt((i % 4 == 0) ? 4096 : 64);
+         byte[]   pre = new byte[count];
+         byte[][] in  = new byte[count][];
+         rnd.nextBytes(pre);
+         for (int k=0; k<count; k=k+1) {
+            int n = ((i & 1) == 0) ? 104 : 88 + 8*rnd.nextInt(6);
+            in[k] = new byte[n/8];
+            rnd.nextBytes(in[k]);
+         }
+         for (int dir=0; dir<2; dir=dir+1) {
+            byte[][]  want = copy(in);
+            boolean[] wf   = new boolean[count];
+            int wn = (dir == 0) ? packed.encryptBatch(pre, want, count, wf) : packed.decryptBatch(pre, want, count, wf);
+            for (FF1Lanes e : new FF1Lanes[] { lanes, scalar }) {
+               byte[][]  got = copy(in);
+               boolean[] gf  = new boolean[count];
+               int gn = (dir == 0) ? e.encryptBatch(pre, got, count, gf) : e.decryptBatch(pre, got, count, gf);
+               bad = bad + ((gn != wn) ? 1 : 0);
+               for (int k=0; k<count; k=k+1) {
+                  if (gf[k] != wf[k] || !Arrays.equals(got[k], want[k])) {
+                     bad = bad + 1;
+                  }
+               }
+            }
+         }
+         msgs = msgs + count;
+      }
+
+      // Runs of frames, as a raw capture holds them.
+      int frames = 4096;
+      byte[] capture = new byte[frames * FF1LS80Packed.FRAME_BYTES];
+      rnd.nextBytes(capture);
+      for (int dir=0; dir<2; dir=dir+1) {
+         byte[]    want = capture.clone();
+         boolean[] wf   = new boolean[frames];
+         for (int k=0; k<frames; k=k+1) {
+            try {
+               if (dir == 0) packed.encryptFrame(want, k*FF1LS80Packed.FRAME_BYTES);
+               else          packed.decryptFrame(want, k*FF1LS80Packed.FRAME_BYTES);
+            }
+            catch (IllegalArgumentException e) {
+               wf[k] = true;
+            }
+         }
+         for (FF1Lanes e : new FF1Lanes[] { lanes, scalar }) {
+            byte[]    got = capture.clone();
+            boolean[] gf  = new boolean[frames];
+            if (dir == 0) e.encryptFrames(got, 0, frames, gf);
+            else          e.decryptFrames(got, 0, frames, gf);
+            bad = bad + (Arrays.equals(got, want) && Arrays.equals(gf, wf) ? 0 : 1);
+         }
+      }
+      System.out.println(msgs + " messages in " + batches + " batches, " + frames + " frames, "
+                         + bad + " mismatches");
+
+      // Throughput, 104-bit messages: one at a time, then batches of 4096.
+      int size = 4096;
+      byte[]   pre   = new byte[size];
+      byte[][] plain = new byte[size][13];
+      byte[][] work  = new byte[size][13];
+      for (int k=0; k<size; ) {             // frames the engines accept, (as FFX_bench)
+         pre[k] = (byte) rnd.nextInt();
+         rnd.nextBytes(plain[k]);
+         try {
+            packed.Encrypt(pre[k], plain[k].clone());
+            k = k + 1;
+         }
+         catch (IllegalArgumentException e) { }
+      }
+      System.out.println("case                          msgs/s");
+      long t0 = System.nanoTime(), done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         int k = (int) (done % size);
+         System.arraycopy(plain[k], 0, work[k], 0, 13);
+         packed.Encrypt(pre[k], work[k]);
+         done = done + 1;
+      }
+      FFX_bench.report("Packed.Encrypt", done, System.nanoTime() - t0);
+      batch("Packed.encryptBatch", packed, pre, plain, work, seconds);
+      batch("Lanes.encryptBatch scalar", scalar, pre, plain, work, seconds);
+      if (lanes.kernel.getClass() != FF1Lanes.Kernel.class) {
+         batch("Lanes.encryptBatch vector", lanes, pre, plain, work, seconds);
+      }
+      byte[] buf = capture.clone();
+      t0 = System.nanoTime(); done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         System.arraycopy(capture, 0, buf, 0, buf.length);
+         lanes.encryptFrames(buf, 0, frames, null);
+         done = done + frames;
+      }
+      FFX_bench.report("Lanes.encryptFrames", done, System.nanoTime() - t0);
+
+      if (bad > 0) {
+         System.exit(3);
+      }
+   }
+
+   static void batch(String name, FF1LS80Packed e, byte[] pre, byte[][] plain, byte[][] work, double seconds) {
+      long t0 = System.nanoTime(), done = 0;
+      while (System.nanoTime() - t0 < seconds*1e9) {
+         for (int k=0; k<plain.length; k=k+1) {
+            System.arraycopy(plain[k], 0, work[k], 0, plain[k].length);
+         }
+         e.encryptBatch(pre, work, plain.length, null);
+         done = done + plain.length;
+      }
+      FFX_bench.report(name, done, System.nanoTime() - t0);
+   }
+
+   static byte[][] copy(byte[][] m) {
+      byte[][] c = new byte[m.length][];
+      for (int k=0; k<m.length; k=k+1) {
+         c[k] = m[k].clone();
+      }
+      return c;
+   }
+
+}
@@ -0,0 +1,102 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for the sharded pipeline: throughput, ordering and queue statistics.
+   Usage: java FFX_pipe [workers] [frames] [ordered|icao]
+   Exit code 3 if any result differs from the single-threaded engine, or is out of order.
+*/
+import java.util.Random;
+
+public class FFX_pipe {
+
+	public static final void main(String args[]) throws InterruptedException {
+      final int     workers = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+      final long    total   = (args.length > 1) ? Long.parseLong(args[1]) : 2000000;
+      final boolean byIcao  = (args.length > 2) && args[2].equals("icao");
+      String keyStr = "0102030405060708090A0B0C0D0E0F16"; // test key only
+
+      FF1LS80Packed engine = new FF1LS80Packed(keyStr);
+      engine.addValidSize(104);
+
+      // A pool of random frames and what the engine makes of them, one at a time. Each
+      // ..pool entry has its own ICAO address, so in icao mode the entries spread over
+      // ..the shards. There results are matched by content, (the order across shards is
+      // ..free,) and each result must come out as often as it went in. Rejected frames
+      // ..come out as zeros, so those with one tweak byte count as one result.
+      final int pool = 4096;
+      final byte[][] frames   = new byte[pool][14];
+      final byte[][] expected = new byte[pool][];
+      final int[]    status   = new int[pool];
+      final java.util.Map<Long, Integer> byResult = new java.util.HashMap<Long, Integer>();
+      final long[]   want     = new long[pool];
+      byte[]    tweak   = new byte[pool];
+      byte[][]  payload = new byte[pool][];
+      boolean[] failed  = new boolean[pool];
+      Random rnd = new Random(1090);
+      for (int k=0; k<pool; k=k+1) {
+         rnd.nextBytes(frames[k]);
+         frames[k][1] = (byte) (k >>> 8);     // distinct ICAO address per pool entry
+         frames[k][2] = (byte) k;
+         tweak[k]   = frames[k][0];
+         payload[k] = java.util.Arrays.copyOfRange(frames[k], 1, 14);
+      }
+      engine.encryptBatch(tweak, payload, pool, failed);
+      for (int k=0; k<pool; k=k+1) {
+         expected[k] = new byte[14];
+         expected[k][0] = tweak[k];
+         if (failed[k]) status[k] = 1;
+         else           System.arraycopy(payload[k], 0, expected[k], 1, 13);
+         byResult.put(key(expected[k]), k);
+      }
+      for (int k=0; k<pool; k=k+1) {
+         want[byResult.get(key(expected[k]))] += total/pool + ((k < total%pool) ? 1 : 0);
+      }
+
+      final FF1Pipeline pipe = new FF1Pipeline(engine, true, workers, 4096, byIcao);
+      final long[] bad = new long[1];
+      Thread consumer = new Thread() {
+         public void run() {
+            byte[] f = new byte[14];
+            long[] seen = new long[pool];
+            for (long i=0; i<total; i=i+1) {
+               int s = pipe.take(f, 0);
+               int k = (int) (i % pool);
+               if (byIcao) {
+                  Integer e = byResult.get(key(f));
+                  k = (e == null) ? k : e;
+               }
+               seen[k] = seen[k] + 1;
+               if (s != status[k] || !java.util.Arrays.equals(f, expected[k])) {
+                  bad[0] = bad[0] + 1;
+               }
+            }
+            for (int k=0; k<pool; k=k+1) {
+               if (seen[k] != (byIcao ? want[k] : total/pool + ((k < total%pool) ? 1 : 0))) {
+                  bad[0] = bad[0] + 1;
+               }
+            }
+         }
+      };
+      consumer.start();
+
+      long t0 = System.nanoTime();
+      pipe.start();
+      for (long i=0; i<total; i=i+1) {
+         pipe.put(frames[(int) (i % pool)], 0);
+      }
+      consumer.join();
+      long nanos = System.nanoTime() - t0;
+      pipe.close();
+
+      System.out.print(pipe.stats());
+      FFX_bench.report("Pipeline(" + workers + (byIcao ? ", icao)" : ")"), total, nanos);
+      System.out.println("mismatched or out of order: " + bad[0]);
+      if (bad[0] > 0) {
+         System.exit(3);
+      }
+   }
+
+   /* key() - a result frame as one long, (for matching results in icao mode.) */
+   static long key(byte[] f) {
+      return FF1Round.getLE(f, 0, 8) ^ (FF1Round.getLE(f, 8, 6) << 8);
+   }
+
+}
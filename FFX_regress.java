@@ -0,0 +1,711 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Top-Level stub for regression testing the FF1LS80-compatible engines.
+   Usage: java FFX_regress [check|golden|baseline] [frames] [threads] [seconds]
+   check, (the default,) runs five stages and exits 3 if any frame differs, 4 if a
+   throughput case falls more than ffx.regress.tolerance, (default 0.2,) below baseline:
+   1. Golden vectors - every engine against FFX_golden.txt, (all 256 ADS-B tweaks at
+      every length from 88 to 128 bits,) both directions, twice, (so caches hit,) and
+      the batch paths of FF1LS80Packed and FF1Lanes, (each of its kernels.)
+   2. Fuzz - frames random messages, (mixed lengths, ADS-B and arbitrary tweaks, both
+      directions,) through the reference FF1LS80 and every other engine, single and batch.
+   3. Round trips - threads threads sharing engines, each checked against its own.
+   4. Key registry and frame bounds - FF1Keys keeps the active and in-use engines at
+      capacity 1, and frames outside a buffer, (or a slice of one,) are refused.
+   5. Throughput - each case for seconds, (best of 3,) against FFX_baseline.txt.
+   golden writes FFX_golden.txt from FF1LS80, (only if it does not exist - the point is
+   that it never changes.) baseline writes FFX_baseline.txt for this machine.
+   -Dffx.golden and -Dffx.baseline give other paths; -Dffx.regress.engines adds engine
+   classes, (FF1Engine with a (String keyStr) constructor,) by name.
+*/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FFX_regress {
+
+   static final String KEY    = "0102030405060708090A0B0C0D0E0F16"; // test key only
+   static final int    MIN_N  = 88;                                  // FF1LS80 lengths
+   static final int    MAX_N  = 128;
+   static final int    CHUNK  = 256;                                 // fuzz frames per batch
+
+   static final Path   GOLDEN    = Paths.get(System.getProperty("ffx.golden", "FFX_golden.txt"));
+   static final Path   BASELINE  = Paths.get(System.getProperty("ffx.baseline", "FFX_baseline.txt"));
+   static final double TOLERANCE = Double.parseDouble(System.getProperty("ffx.regress.tolerance", "0.2"));
+
+   static final AtomicLong shown = new AtomicLong();                 // mismatches printed
+
+	public static final void main(String args[]) throws Exception {
+      String mode    = (args.length > 0) ? args[0] : "check";
+      long   frames  = (args.length > 1) ? Long.parseLong(args[1]) : 1000000;
+      int    threads = (args.length > 2) ? Integer.parseInt(args[2]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+      double seconds = (args.length > 3) ? Double.parseDouble(args[3]) : 1.0;
+      FF1Metrics.setSinks();                // the reference rejects frames by design; count them
+
+      if (mode.equals("golden")) {
+         if (Files.exists(GOLDEN)) {
+            System.out.println("FFX_regress: Error - ("+GOLDEN+") exists; golden vectors are never rewritten.");
+            System.exit(2);
+         }
+         Files.write(GOLDEN, golden(), StandardCharsets.US_ASCII);
+         System.out.println("wrote " + GOLDEN);
+         return;
+      }
+      if (mode.equals("baseline")) {
+         Map<String, Double> rates = throughput(seconds);
+         List<String> lines = new ArrayList<String>();
+         lines.add("# FFX_regress throughput baseline, msgs/s, " + System.getProperty("java.vm.name") + " "
+                   + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+         for (Map.Entry<String, Double> r : rates.entrySet()) {
+            lines.add(String.format("%-26s %9.0f", r.getKey(), r.getValue()));
+         }
+         Files.write(BASELINE, lines, StandardCharsets.US_ASCII);
+         System.out.println("wrote " + BASELINE);
+         return;
+      }
+      if (!mode.equals("check")) {
+         System.out.println("FFX_regress: Error - unknown mode ("+mode+"), (check, golden or baseline.)");
+         System.exit(2);
+      }
+
+      long bad = 0;
+      long t0  = System.nanoTime();
+      bad = bad + goldenCheck();
+      System.out.println(String.format("golden vectors: %d mismatches, %.1f s", bad, (System.nanoTime() - t0) / 1e9));
+
+      t0 = System.nanoTime();
+      long fuzzed = fuzz(frames);
+      System.out.println(String.format("fuzz, %d frames: %d mismatches, %.1f s", frames, fuzzed, (System.nanoTime() - t0) / 1e9));
+      bad = bad + fuzzed;
+
+      t0 = System.nanoTime();
+      long trips = roundTrips(frames, threads);
+      System.out.println(String.format("round trips, %d frames on %d threads: %d mismatches, %.1f s",
+            frames, threads, trips, (System.nanoTime() - t0) / 1e9));
+      bad = bad + trips;
+
+      long keyed = keys();
+      System.out.println(String.format("key registry: %d failures", keyed));
+      bad = bad + keyed;
+
+      long bounds = frameBounds();
+      System.out.println(String.format("frame bounds: %d failures", bounds));
+      bad = bad + bounds;
+      System.out.println(FF1Metrics.errors() + " engine error messages, (frames the engines reject,) not shown");
+
+      int slow = 0;
+      if (Files.exists(BASELINE)) {
+         Map<String, Double> base = new LinkedHashMap<String, Double>();
+         for (String line : Files.readAllLines(BASELINE, StandardCharsets.US_ASCII)) {
+            int sp = line.lastIndexOf(' ');
+            if (!line.startsWith("#") && sp > 0) {
+               base.put(line.substring(0, sp).trim(), Double.parseDouble(line.substring(sp+1)));
+            }
+         }
+         System.out.println("case                          msgs/s  baseline");
+         for (Map.Entry<String, Double> r : throughput(seconds).entrySet()) {
+            Double b = base.get(r.getKey());
+            boolean low = b != null && r.getValue() < b * (1 - TOLERANCE);
+            System.out.println(String.format("%-26s %9.0f %9s%s", r.getKey(), r.getValue(),
+                  (b == null) ? "-" : String.format("%.0f", b), low ? "  SLOW" : ""));
+            slow = slow + (low ? 1 : 0);
+         }
+      }
+      else {
+         System.out.println("no " + BASELINE + ", throughput not checked, (run FFX_regress baseline to record one.)");
+      }
+
+      if (bad > 0) {
+         System.exit(3);
+      }
+      if (slow > 0) {
+         System.exit(4);
+      }
+   }
+
+   /*-Engines----------------------------------------------------------------*/
+
+   /* engines() - every engine that must give FF1LS80's results, ready for 88..128 bits. */
+   static Map<String, FF1Engine> engines() throws ReflectiveOperationException {
+      Map<String, FF1Engine> e = new LinkedHashMap<String, FF1Engine>();
+      e.put("FF1LS80",          new FF1LS80(KEY));
+      e.put("Packed",           new FF1LS80Packed(KEY));
+      e.put("Packed(preTweak)", new PreTweak(new FF1LS80Packed(KEY)));
+      e.put("Packed(frame)",    new Frame(new FF1LS80Packed(KEY)));
+      e.put("Cache(Packed)",    new FF1Cache(new FF1LS80Packed(KEY), 8192));
+      String more = System.getProperty("ffx.regress.engines", "");
+      for (String name : more.split(",")) {
+         if (!name.trim().isEmpty()) {
+            e.put(name.trim(), (FF1Engine) Class.forName(name.trim()).getConstructor(String.class).newInstance(KEY));
+         }
+      }
+      for (Map.Entry<String, FF1Engine> x : e.entrySet()) {
+         for (int n=MIN_N; n<=MAX_N; n=n+8) {
+            x.getValue().addValidSize(n);
+         }
+      }
+      return e;
+   }
+
+   /* batchers() - the engines with encryptBatch()/decryptBatch(), ready for 88..128 bits:
+      FF1LS80Packed, and FF1Lanes with the scalar kernel and, where it loads, the vector one.
+   */
+   static Map<String, FF1LS80Packed> batchers() {
+      Map<String, FF1LS80Packed> b = new LinkedHashMap<String, FF1LS80Packed>();
+      b.put("Packed(batch)", new FF1LS80Packed(KEY));
+      FF1Lanes scalar = new FF1Lanes(KEY);
+      scalar.kernel = new FF1Lanes.Kernel();
+      b.put("Lanes(scalar)", scalar);
+      FF1Lanes.Kernel v = FF1Lanes.vector();
+      if (v != null) {
+         FF1Lanes vector = new FF1Lanes(KEY);
+         vector.kernel = v;
+         b.put("Lanes(" + v + ")", vector);
+      }
+      for (FF1LS80Packed e : b.values()) {
+         for (int n=MIN_N; n<=MAX_N; n=n+8) {
+            e.addValidSize(n);
+         }
+      }
+      return b;
+   }
+
+   /* PreTweak - FF1LS80Packed through its preTweak overloads, where the tweak allows. */
+   static final class PreTweak implements FF1Engine {
+      final FF1LS80Packed e;
+      PreTweak(FF1LS80Packed e) { this.e = e; }
+      public int addValidSize(int n) { return e.addValidSize(n); }
+      public byte[] Encrypt(byte[] Tweak, byte[] Xi) {
+         return FF1Round.adsbTweak(Tweak) ? e.Encrypt(Tweak[0], Xi) : e.Encrypt(Tweak, Xi);
+      }
+      public byte[] Decrypt(byte[] Tweak, byte[] Yi) {
+         return FF1Round.adsbTweak(Tweak) ? e.Decrypt(Tweak[0], Yi) : e.Decrypt(Tweak, Yi);
+      }
+   }
+
+   /* Frame - FF1LS80Packed through encryptFrame/decryptFrame for 104-bit ADS-B messages. */
+   static final class Frame implements FF1Engine {
+      final FF1LS80Packed e;
+      final byte[] frame = new byte[FF1LS80Packed.FRAME_BYTES];
+      Frame(FF1LS80Packed e) { this.e = e; }
+      public int addValidSize(int n) { return e.addValidSize(n); }
+      public synchronized byte[] Encrypt(byte[] Tweak, byte[] Xi) {
+         return frame(Tweak, Xi, true);
+      }
+      public synchronized byte[] Decrypt(byte[] Tweak, byte[] Yi) {
+         return frame(Tweak, Yi, false);
+      }
+      private byte[] frame(byte[] Tweak, byte[] M, boolean enc) {
+         if (M.length != frame.length-1 || !FF1Round.adsbTweak(Tweak)) {
+            return enc ? e.Encrypt(Tweak, M) : e.Decrypt(Tweak, M);
+         }
+         frame[0] = Tweak[0];
+         System.arraycopy(M, 0, frame, 1, M.length);
+         try {
+            if (enc) e.encryptFrame(frame, 0);
+            else     e.decryptFrame(frame, 0);
+         }
+         finally {
+            System.arraycopy(frame, 1, M, 0, M.length); // left part way, as the reference
+         }
+         return M;
+      }
+   }
+
+   /*-Cases------------------------------------------------------------------*/
+
+   /* Case - one call and what the reference did: out is null if it threw, and left is
+      the message array afterwards, (null if not known.)
+   */
+   static final class Case {
+      final boolean enc;
+      final byte[]  tweak, in, out, left;
+      Case(boolean enc, byte[] tweak, byte[] in, byte[] out, byte[] left) {
+         this.enc   = enc;
+         this.tweak = tweak;
+         this.in    = in;
+         this.out   = out;
+         this.left  = left;
+      }
+   }
+
+   /* reference() runs one call through FF1LS80 and records it. */
+   static Case reference(FF1LS80 ref, boolean enc, byte[] tweak, byte[] in) {
+      byte[] m = in.clone();
+      byte[] out;
+      try {
+         out = (enc ? ref.Encrypt(tweak, m) : ref.Decrypt(tweak, m)).clone();
+      }
+      catch (RuntimeException e) {
+         out = null;
+      }
+      return new Case(enc, tweak, in, out, m);
+   }
+
+   /* check() runs c through one engine: 0 if it matches, else 1. */
+   static int check(String name, FF1Engine e, Case c) {
+      byte[] m = c.in.clone();
+      byte[] out;
+      try {
+         out = c.enc ? e.Encrypt(c.tweak, m) : e.Decrypt(c.tweak, m);
+      }
+      catch (RuntimeException x) {
+         out = null;
+      }
+      boolean ok = (out == null) ? c.out == null : Arrays.equals(out, c.out);
+      if (ok && c.left != null && !Arrays.equals(m, c.left)) {
+         ok = false;
+      }
+      if (!ok) {
+         mismatch(name, c, out);
+      }
+      return ok ? 0 : 1;
+   }
+
+   /* checkBatch() runs cs[from..from+count-1], (all ADS-B tweaks, one direction,) as one
+      encryptBatch or decryptBatch call, and returns the number that do not match.
+   */
+   static int checkBatch(String name, FF1LS80Packed e, Case[] cs, int from, int count) {
+      byte[]    pre    = new byte[count];
+      byte[][]  m      = new byte[count][];
+      boolean[] failed = new boolean[count];
+      for (int k=0; k<count; k=k+1) {
+         pre[k] = cs[from+k].tweak[0];
+         m[k]   = cs[from+k].in.clone();
+      }
+      if (cs[from].enc) e.encryptBatch(pre, m, count, failed);
+      else              e.decryptBatch(pre, m, count, failed);
+      int bad = 0;
+      for (int k=0; k<count; k=k+1) {
+         Case c = cs[from+k];
+         boolean ok = failed[k] ? c.out == null : Arrays.equals(m[k], c.out);
+         if (ok && c.left != null && !Arrays.equals(m[k], c.left)) {
+            ok = false;
+         }
+         if (!ok) {
+            mismatch(name, c, failed[k] ? null : m[k]);
+            bad = bad + 1;
+         }
+      }
+      return bad;
+   }
+
+   static void mismatch(String name, Case c, byte[] out) {
+      if (shown.incrementAndGet() <= 10) {
+         System.out.println(String.format("%s: %s n=%d tweak=%s in=%s want=%s got=%s", name,
+               c.enc ? "Encrypt" : "Decrypt", c.in.length*8, FF1LS80.bytesToHex(c.tweak), FF1LS80.bytesToHex(c.in),
+               (c.out == null) ? "-" : FF1LS80.bytesToHex(c.out), (out == null) ? "-" : FF1LS80.bytesToHex(out)));
+      }
+   }
+
+   /*-Golden vectors---------------------------------------------------------*/
+
+   /* golden() - one line per length and ADS-B tweak: n, tweak byte, plaintext, FF1LS80's
+      ciphertext, and what FF1LS80 decrypts that ciphertext to, ("-" where it throws.)
+      The plaintexts are random, except 104 bits under 0x57, which is FFX_test's.
+   */
+   static List<String> golden() {
+      FF1LS80 ref = new FF1LS80(KEY);
+      List<String> lines = new ArrayList<String>();
+      lines.add("# FFX_regress golden vectors from FF1LS80, key " + KEY + ", FF1Policy.ORIGINAL");
+      lines.add("# n tweak plaintext ciphertext decrypted, (- where FF1LS80 throws)");
+      Random rnd = new Random(1090);
+      for (int n=MIN_N; n<=MAX_N; n=n+8) {
+         ref.addValidSize(n);
+         for (int t=0; t<256; t=t+1) {
+            byte[] tweak = new byte[16];
+            Arrays.fill(tweak, (byte) t);
+            byte[] p = new byte[n/8];
+            rnd.nextBytes(p);
+            if (n == 104 && t == 0x57) {
+               p = FF1LS80.hexToBytes("0102030405060708090A0B0C13");
+            }
+            Case e = reference(ref, true, tweak, p);
+            Case d = (e.out == null) ? null : reference(ref, false, tweak, e.out);
+            lines.add(String.format("%d %02X %s %s %s", n, t, FF1LS80.bytesToHex(p),
+                  (e.out == null) ? "-" : FF1LS80.bytesToHex(e.out),
+                  (d == null || d.out == null) ? "-" : FF1LS80.bytesToHex(d.out)));
+         }
+      }
+      return lines;
+   }
+
+   /* goldenCheck() - every engine, and the batch path, against the golden file. */
+   static long goldenCheck() throws IOException, ReflectiveOperationException {
+      if (!Files.exists(GOLDEN)) {
+         System.out.println("FFX_regress: Error - no golden vectors at ("+GOLDEN+"), (see -Dffx.golden.)");
+         return 1;
+      }
+      List<Case> cases = new ArrayList<Case>();
+      for (String line : Files.readAllLines(GOLDEN, StandardCharsets.US_ASCII)) {
+         if (line.startsWith("#") || line.trim().isEmpty()) {
+            continue;
+         }
+         String[] f = line.trim().split(" +");
+         byte[] tweak = new byte[16];
+         Arrays.fill(tweak, (byte) Integer.parseInt(f[1], 16));
+         byte[] p = FF1LS80.hexToBytes(f[2]);
+         byte[] c = f[3].equals("-") ? null : FF1LS80.hexToBytes(f[3]);
+         byte[] d = f[4].equals("-") ? null : FF1LS80.hexToBytes(f[4]);
+         if (p.length*8 != Integer.parseInt(f[0])) {
+            System.out.println("FFX_regress: Error - bad golden line (" + line + ").");
+            return 1;
+         }
+         cases.add(new Case(true, tweak, p, c, null));
+         if (c != null) {
+            cases.add(new Case(false, tweak, c, d, null));
+         }
+      }
+      long bad = 0;
+      for (Map.Entry<String, FF1Engine> e : engines().entrySet()) {
+         for (int pass=0; pass<2; pass=pass+1) {
+            for (Case c : cases) {
+               bad = bad + check(e.getKey(), e.getValue(), c);
+            }
+         }
+      }
+      // The batch paths, one direction and length at a time, (all 256 tweaks per batch.)
+      Map<String, FF1LS80Packed> batchers = batchers();
+      for (int dir=0; dir<2; dir=dir+1) {
+         for (int n=MIN_N; n<=MAX_N; n=n+8) {
+            List<Case> sel = new ArrayList<Case>();
+            for (Case c : cases) {
+               if (c.enc == (dir == 0) && c.in.length*8 == n) {
+                  sel.add(c);
+               }
+            }
+            for (Map.Entry<String, FF1LS80Packed> e : batchers.entrySet()) {
+               bad = bad + checkBatch(e.getKey(), e.getValue(), sel.toArray(new Case[0]), 0, sel.size());
+            }
+         }
+      }
+      System.out.println(cases.size() + " golden cases");
+      return bad;
+   }
+
+   /*-Fuzz-------------------------------------------------------------------*/
+
+   /* fuzz() - frames random messages in chunks of CHUNK: each gets a random length and,
+      in alternate chunks, an ADS-B tweak or 16 random bytes. Both directions are run on
+      random input, (so Decrypt also sees messages no Encrypt produced.)
+   */
+   static long fuzz(long frames) throws ReflectiveOperationException {
+      FF1LS80 ref = new FF1LS80(KEY);
+      for (int n=MIN_N; n<=MAX_N; n=n+8) {
+         ref.addValidSize(n);
+      }
+      Map<String, FF1Engine> engines = engines();
+      engines.remove("FF1LS80");
+      Map<String, FF1LS80Packed> batchers = batchers();
+      Random rnd = new Random(4915);
+      long bad = 0;
+      for (long done=0, chunk=0; done<frames; done=done+CHUNK, chunk=chunk+1) {
+         int count = (int) Math.min(CHUNK, frames - done);
+         boolean adsb = (chunk & 1) == 0;
+         for (int dir=0; dir<2; dir=dir+1) {
+            Case[] cs = new Case[count];
+            for (int k=0; k<count; k=k+1) {
+               byte[] tweak = new byte[16];
+               rnd.nextBytes(tweak);
+               if (adsb) {
+                  Arrays.fill(tweak, tweak[0]);
+               }
+               byte[] in = new byte[MIN_N/8 + rnd.nextInt((MAX_N-MIN_N)/8 + 1)];
+               rnd.nextBytes(in);
+               if (k % 7 == 0) {
+                  in[rnd.nextInt(in.length)] = 0; // short bytes are where the quirks are
+               }
+               cs[k] = reference(ref, dir == 0, tweak, in);
+            }
+            for (Map.Entry<String, FF1Engine> e : engines.entrySet()) {
+               for (Case c : cs) {
+                  bad = bad + check(e.getKey(), e.getValue(), c);
+               }
+            }
+            if (adsb) {
+               for (Map.Entry<String, FF1LS80Packed> e : batchers.entrySet()) {
+                  bad = bad + checkBatch(e.getKey(), e.getValue(), cs, 0, count);
+               }
+            }
+         }
+      }
+      return bad;
+   }
+
+   /*-Round trips------------------------------------------------------------*/
+
+   /* roundTrips() - threads threads share one FF1LS80Packed, FF1Cache and FF1NIST, and
+      each checks Encrypt, Decrypt and 64-frame batches against engines of its own.
+      FF1NIST must also give every plaintext back.
+   */
+   static long roundTrips(final long frames, int threads) throws InterruptedException {
+      final FF1LS80Packed packed = new FF1LS80Packed(KEY);
+      final FF1Cache      cache  = new FF1Cache(new FF1LS80Packed(KEY), 4096);
+      final FF1NIST       nist   = new FF1NIST(KEY);
+      for (int n=MIN_N; n<=MAX_N; n=n+8) {
+         packed.addValidSize(n);
+         cache.addValidSize(n);
+         nist.addValidSize(n);
+      }
+      final AtomicLong bad = new AtomicLong();
+      Thread[] t = new Thread[threads];
+      for (int i=0; i<threads; i=i+1) {
+         final int id = i;
+         final long share = frames / threads + ((i < frames % threads) ? 1 : 0);
+         t[i] = new Thread("regress-" + i) {
+            public void run() {
+               FF1LS80Packed own     = new FF1LS80Packed(KEY);
+               FF1NIST       ownNist = new FF1NIST(KEY);
+               for (int n=MIN_N; n<=MAX_N; n=n+8) {
+                  own.addValidSize(n);
+                  ownNist.addValidSize(n);
+               }
+               Random rnd = new Random(id);
+               byte[]    pre    = new byte[64];
+               byte[][]  batch  = new byte[64][];
+               byte[][]  want   = new byte[64][];
+               boolean[] failed = new boolean[64];
+               long wrong = 0;
+               for (long done=0; done<share; done=done+64) {
+                  int count = (int) Math.min(64, share - done);
+                  for (int k=0; k<count; k=k+1) {
+                     pre[k] = (byte) rnd.nextInt();
+                     byte[] p = new byte[MIN_N/8 + rnd.nextInt((MAX_N-MIN_N)/8 + 1)];
+                     rnd.nextBytes(p);
+                     byte[] mine = trip(own, pre[k], p);
+                     if (!Arrays.equals(mine, trip(packed, pre[k], p)) || !Arrays.equals(mine, trip(cache, pre[k], p))) {
+                        wrong = wrong + 1;
+                     }
+                     byte[] c = ownNist.Encrypt(pre[k], p.clone());
+                     if (!Arrays.equals(c, nist.Encrypt(pre[k], p.clone()))
+                           || !Arrays.equals(p, nist.Decrypt(pre[k], c.clone()))) {
+                        wrong = wrong + 1;
+                     }
+                     batch[k] = p.clone();
+                     want[k]  = p.clone();
+                     try {
+                        own.Encrypt(pre[k], want[k]);
+                     }
+                     catch (IllegalArgumentException e) {
+                        want[k] = null;
+                     }
+                  }
+                  packed.encryptBatch(pre, batch, count, failed);
+                  for (int k=0; k<count; k=k+1) {
+                     if (failed[k] ? want[k] != null : !Arrays.equals(batch[k], want[k])) {
+                        wrong = wrong + 1;
+                     }
+                  }
+               }
+               bad.addAndGet(wrong);
+            }
+         };
+         t[i].start();
+      }
+      for (Thread x : t) {
+         x.join();
+      }
+      return bad.get();
+   }
+
+   /* trip() - ciphertext || Decrypt(ciphertext) as one array, (null parts where it throws.) */
+   static byte[] trip(FF1Engine e, byte preTweak, byte[] p) {
+      byte[] tweak = new byte[16];
+      Arrays.fill(tweak, preTweak);
+      byte[] c, d;
+      try {
+         c = e.Encrypt(tweak, p.clone());
+      }
+      catch (IllegalArgumentException x) {
+         return new byte[0];
+      }
+      try {
+         d = e.Decrypt(tweak, c.clone());
+      }
+      catch (IllegalArgumentException x) {
+         return c;
+      }
+      byte[] both = Arrays.copyOf(c, c.length + d.length);
+      System.arraycopy(d, 0, both, c.length, d.length);
+      return both;
+   }
+
+   /*-Key registry-----------------------------------------------------------*/
+
+   /* keys() - FF1Keys at capacity 1 must keep the active key's engine across rotations
+      and lookups, (not build and evict it again on every engine() call,) and must keep
+      a key that is in use beside it without thrashing either. Returns the failures.
+   */
+   static long keys() {
+      FF1Keys keys = new FF1Keys("packed", 1, 104);
+      keys.register(1, KEY);
+      keys.register(2, "000102030405060708090A0B0C0D0E0F");
+      keys.rotate(1);
+      FF1Keys.Epoch a = keys.rotate(2);
+      long bad = 0;
+      long evicted = keys.evictions();
+      byte[] tweak = new byte[16];
+      for (int i=0; i<1000; i=i+1) {
+         if (keys.engine(2) != a.engine || keys.active().engine != a.engine) {
+            bad = bad + 1;
+         }
+         byte[] p = new byte[13];
+         p[0] = (byte) i;
+         Arrays.fill(tweak, (byte) i);
+         try {
+            keys.Decrypt(1, tweak, keys.Encrypt(tweak, p.clone()));
+         }
+         catch (IllegalArgumentException e) {
+         }
+      }
+      if (keys.evictions() != evicted || evicted > 1) {
+         bad = bad + 1;
+      }
+      return bad;
+   }
+
+   /* frameBounds() - encryptFrame/decryptFrame must refuse a frame that does not lie
+      inside the ByteBuffer, including a heap slice, (whose backing array is larger,)
+      and direct buffers, and must leave the bytes around the slice alone. Returns the
+      failures.
+   */
+   static long frameBounds() {
+      FF1LS80Packed e = new FF1LS80Packed(KEY);
+      e.addValidSize(104);
+      byte[]     b      = new byte[48];
+      ByteBuffer direct = ByteBuffer.allocateDirect(14);
+      ByteBuffer slice  = ByteBuffer.wrap(b, 20, 14).slice();
+      long bad = 0;
+      for (ByteBuffer frame : new ByteBuffer[] { slice, direct }) {
+         for (int off : new int[] { 14, -5, 1 }) {
+            for (int d=0; d<2; d=d+1) {
+               try {
+                  if (d == 0) e.encryptFrame(frame, off);
+                  else        e.decryptFrame(frame, off);
+                  bad = bad + 1;
+               }
+               catch (IndexOutOfBoundsException x) {
+               }
+            }
+         }
+      }
+      try {
+         e.encryptFrame(slice, 0);
+         e.decryptFrame(slice, 0);
+      }
+      catch (RuntimeException x) {
+         bad = bad + 1;
+      }
+      for (int i=0; i<b.length; i=i+1) {
+         bad = bad + ((b[i] != 0) ? 1 : 0);          // untouched, (or back to zero,) everywhere
+      }
+      return bad;
+   }
+
+   /*-Throughput-------------------------------------------------------------*/
+
+   /* Step - one unit of work on frame k of the pool; returns the messages it did. */
+   interface Step {
+      int run(int k);
+   }
+
+   /* throughput() - msgs/s per case, 104-bit frames the reference accepts. */
+   static Map<String, Double> throughput(double seconds) {
+      final int n = 104;
+      final FF1LS80       ref    = new FF1LS80(KEY);
+      final FF1LS80Packed packed = new FF1LS80Packed(KEY);
+      final FF1NIST       nist   = new FF1NIST(KEY);
+      final FF1Lanes      lanes  = new FF1Lanes(KEY);
+      ref.addValidSize(n);
+      packed.addValidSize(n);
+      lanes.addValidSize(n);
+      nist.addValidSize(n);
+      final int pool = 4096;
+      final byte[]   pre    = new byte[pool];
+      final byte[][] frames = new byte[pool][n/8];
+      final byte[][] tweaks = new byte[pool][16];
+      Random rnd = new Random(1090);
+      for (int k=0; k<pool; ) {
+         pre[k] = (byte) rnd.nextInt();
+         rnd.nextBytes(frames[k]);
+         Arrays.fill(tweaks[k], pre[k]);
+         try {
+            ref.Encrypt(tweaks[k], frames[k].clone());
+            k = k + 1;
+         }
+         catch (RuntimeException e) { }       // draw another frame
+      }
+      final byte[]   work = new byte[n/8];
+      final byte[]   bt   = new byte[256];
+      final byte[][] bx   = new byte[256][n/8];
+      Map<String, Double> rates = new LinkedHashMap<String, Double>();
+      rates.put("FF1LS80.Encrypt", rate(seconds, pool, k -> {
+         System.arraycopy(frames[k], 0, work, 0, n/8);
+         ref.Encrypt(tweaks[k], work);
+         return 1;
+      }));
+      rates.put("Packed.Encrypt", rate(seconds, pool, k -> {
+         System.arraycopy(frames[k], 0, work, 0, n/8);
+         packed.Encrypt(pre[k], work);
+         return 1;
+      }));
+      rates.put("Packed.Decrypt", rate(seconds, pool, k -> {
+         System.arraycopy(frames[k], 0, work, 0, n/8);
+         try {
+            packed.Decrypt(pre[k], work);
+         }
+         catch (IllegalArgumentException e) { }
+         return 1;
+      }));
+      rates.put("Packed.encryptBatch(256)", rate(seconds, pool, k -> {
+         for (int j=0; j<256; j=j+1) {
+            bt[j] = pre[(k+j) % pool];
+            System.arraycopy(frames[(k+j) % pool], 0, bx[j], 0, n/8);
+         }
+         packed.encryptBatch(bt, bx, 256, null);
+         return 256;
+      }));
+      rates.put("Lanes.encryptBatch(256)", rate(seconds, pool, k -> {
+         for (int j=0; j<256; j=j+1) {
+            bt[j] = pre[(k+j) % pool];
+            System.arraycopy(frames[(k+j) % pool], 0, bx[j], 0, n/8);
+         }
+         lanes.encryptBatch(bt, bx, 256, null);
+         return 256;
+      }));
+      rates.put("FF1NIST.Encrypt", rate(seconds, pool, k -> {
+         System.arraycopy(frames[k], 0, work, 0, n/8);
+         nist.Encrypt(pre[k], work);
+         return 1;
+      }));
+      return rates;
+   }
+
+   /* rate() - a warm-up of half of seconds, then the best of 3 runs of seconds. */
+   static double rate(double seconds, int pool, Step step) {
+      double best = 0;
+      for (int run=0; run<4; run=run+1) {
+         double limit = (run == 0) ? seconds / 2 : seconds;
+         long t0 = System.nanoTime(), done = 0;
+         int  k  = 0;
+         while (System.nanoTime() - t0 < limit*1e9) {
+            done = done + step.run(k);
+            k = (k + 1) % pool;
+         }
+         if (run > 0) {
+            best = Math.max(best, done / ((System.nanoTime() - t0) / 1e9));
+         }
+      }
+      return best;
+   }
+
+}
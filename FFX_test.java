@@ -67,6 +67,33 @@ public class FFX_test {
       catch (IllegalArgumentException e) {
          System.exit(4);
       }
+
+      // The packed engine also takes the whole 112-bit frame. Byte 0 is the preTweak and
+      // ..bytes 1..13 are encrypted in place, (a ByteBuffer works the same way.)
+      FF1LS80Packed packed = new FF1LS80Packed(keyStr);
+      packed.addValidSize(n);
+      byte[] frame = FF1LS80.hexToBytes("570102030405060708090A0B0C13");
+      try {
+         packed.encryptFrame(frame, 0);
+         System.out.println("Frame: " + FF1LS80.bytesToHex(frame));
+         packed.decryptFrame(frame, 0);
+         System.out.println("Frame: " + FF1LS80.bytesToHex(frame));
+      }
+      catch (IllegalArgumentException e) {
+         System.exit(5);
+      }
+
+      // SP 800-38G FF1 through the shared engine shape, (different ciphertexts.)
+      FF1Engine nist = FF1Engine.create("nist", keyStr);
+      nist.addValidSize(n);
+      Xi = FF1LS80.hexToBytes("0102030405060708090A0B0C13");
+      try {
+         System.out.println("NIST:  " + FF1LS80.bytesToHex(nist.Encrypt(Tweak, Xi)));
+         System.out.println("NIST:  " + FF1LS80.bytesToHex(nist.Decrypt(Tweak, Xi)));
+      }
+      catch (IllegalArgumentException e) {
+         System.exit(6);
+      }
    }
 	
 }
@@ -0,0 +1,38 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   The unnamed-package side of ffx.jmh.Engines, (see there.)
+*/
+import ffx.jmh.Engines;
+
+public class FFXEngines implements Engines {
+
+   public Engine reference(String keyStr) {
+      final FF1LS80 e = new FF1LS80(keyStr);
+      return new Engine() {
+         public int    addValidSize(int n)                       { return e.addValidSize(n); }
+         public byte[] encrypt(byte[] Tweak, byte pre, byte[] X) { return e.Encrypt(Tweak, X); }
+         public byte[] decrypt(byte[] Tweak, byte pre, byte[] Y) { return e.Decrypt(Tweak, Y); }
+      };
+   }
+
+   public Engine packed(String keyStr) {
+      final FF1LS80Packed e = new FF1LS80Packed(keyStr);
+      return new Engine() {
+         public int    addValidSize(int n)                       { return e.addValidSize(n); }
+         public byte[] encrypt(byte[] Tweak, byte pre, byte[] X) { return e.Encrypt(pre, X); }
+         public byte[] decrypt(byte[] Tweak, byte pre, byte[] Y) { return e.Decrypt(pre, Y); }
+      };
+   }
+
+   public Engine nist(String keyStr) {
+      final FF1NIST e = new FF1NIST(keyStr);
+      return new Engine() {
+         public int    addValidSize(int n)                       { return e.addValidSize(n); }
+         public byte[] encrypt(byte[] Tweak, byte pre, byte[] X) { return e.Encrypt(pre, X); }
+         public byte[] decrypt(byte[] Tweak, byte pre, byte[] Y) { return e.Decrypt(pre, Y); }
+      };
+   }
+
+   public byte[] hexToBytes(String s)     { return FF1LS80.hexToBytes(s); }
+   public String bytesToHex(byte[] bytes) { return FF1LS80.bytesToHex(bytes); }
+
+}
@@ -0,0 +1,37 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   Bridge from the benchmarks to the engines.
+*/
+package ffx.jmh;
+
+/* JMH will not generate code for a benchmark in the unnamed package, and a named package
+   cannot refer to classes in the unnamed package. So the benchmarks talk to the engines
+   through these interfaces, and FFXEngines, (unnamed package, same jar,) implements them.
+   It is loaded once per trial; the calls themselves are plain interface calls.
+*/
+public interface Engines {
+
+   /* Engine - the addValidSize/Encrypt/Decrypt shape shared by the engines. */
+   interface Engine {
+      int    addValidSize(int n);
+      byte[] encrypt(byte[] Tweak, byte preTweak, byte[] X);
+      byte[] decrypt(byte[] Tweak, byte preTweak, byte[] Y);
+   }
+
+   Engine reference(String keyStr);        // FF1LS80
+   Engine packed(String keyStr);           // FF1LS80Packed
+   Engine nist(String keyStr);             // FF1NIST, (SP 800-38G)
+
+   byte[] hexToBytes(String s);            // FF1LS80.hexToBytes()
+   String bytesToHex(byte[] bytes);        // FF1LS80.bytesToHex()
+
+   /* load() returns the FFXEngines bridge. */
+   static Engines load() {
+      try {
+         return (Engines) Class.forName("FFXEngines").getDeclaredConstructor().newInstance();
+      }
+      catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("FFXEngines is not on the class path", e);
+      }
+   }
+
+}
@@ -0,0 +1,212 @@
+/* EEL4915 - Develop prototype FFX encryption and decryption
+   JMH benchmarks for the FF1LS80 hot path.
+   Each reports throughput, and average and sampled latency per message. Add "-prof gc"
+   for allocation rate. The engines are reached through Engines, (see there.)
+*/
+package ffx.jmh;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FF1LS80Bench {
+
+   static final String KEY  = "0102030405060708090A0B0C0D0E0F16"; // test key only
+   static final int    POOL = 1024;                               // frames cycled per thread
+
+   /* Shared - one engine of each kind, shared by every benchmark thread. */
+   @State(Scope.Benchmark)
+   public static class Shared {
+      Engines        bridge;
+      Engines.Engine ref;                     // FF1LS80
+      Engines.Engine packed;                  // FF1LS80Packed
+      Engines.Engine nist;                    // FF1NIST
+
+      @Setup(Level.Trial)
+      public void setup() {
+         bridge = Engines.load();
+         ref    = bridge.reference(KEY);
+         packed = bridge.packed(KEY);
+         nist   = bridge.nist(KEY);
+         for (int n : new int[] { 104, 112 }) {
+            ref.addValidSize(n);
+            packed.addValidSize(n);
+            nist.addValidSize(n);
+         }
+      }
+   }
+
+   /* Frames - per-thread plaintexts and ciphertexts that every engine accepts, so the
+      error path (see FF1LS80Packed) does not distort the numbers.
+   */
+   @State(Scope.Thread)
+   public static class Frames {
+      byte[]   preTweak = new byte[POOL];
+      byte[][] Tweak    = new byte[POOL][16];
+      byte[][] plain    = new byte[POOL][];   // 104-bit, and 112-bit at odd indexes
+      byte[][] cipher   = new byte[POOL][];
+      byte[]   work104  = new byte[13];
+      byte[]   work112  = new byte[14];
+      String[] hex      = new String[POOL];
+      int      next;
+
+      @Setup(Level.Trial)
+      public void setup(Shared e) {
+         Random rnd = new Random(1090);
+         for (int k=0; k<POOL; ) {
+            preTweak[k] = (byte) rnd.nextInt();
+            Arrays.fill(Tweak[k], preTweak[k]);
+            plain[k] = new byte[(k%2 == 0) ? 13 : 14];
+            rnd.nextBytes(plain[k]);
+            try {
+               cipher[k] = e.ref.encrypt(Tweak[k], preTweak[k], plain[k].clone());
+               e.ref.decrypt(Tweak[k], preTweak[k], cipher[k].clone());
+               hex[k] = e.bridge.bytesToHex(plain[k]);
+               k = k + 1;
+            }
+            catch (RuntimeException x) { }     // draw another frame
+         }
+      }
+
+      /* k() steps through the 104-bit (even) frames. */
+      int k() {
+         next = (next + 2) & (POOL-1);
+         return next;
+      }
+
+      byte[] load(byte[] src) {
+         byte[] w = (src.length == 13) ? work104 : work112;
+         System.arraycopy(src, 0, w, 0, w.length);
+         return w;
+      }
+   }
+
+   /*-Encrypt / Decrypt------------------------------------------------------*/
+
+   @Benchmark
+   public byte[] refEncrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.ref.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   public byte[] refDecrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.ref.decrypt(f.Tweak[k], f.preTweak[k], f.load(f.cipher[k]));
+   }
+
+   @Benchmark
+   public byte[] packedEncrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.packed.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   public byte[] packedDecrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.packed.decrypt(f.Tweak[k], f.preTweak[k], f.load(f.cipher[k]));
+   }
+
+   /* SP 800-38G FF1 on the same frames, (any 104 bits decrypt, so the FF1LS80
+      ciphertexts serve as input.)
+   */
+   @Benchmark
+   public byte[] nistEncrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.nist.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   public byte[] nistDecrypt(Shared e, Frames f) {
+      int k = f.k();
+      return e.nist.decrypt(f.Tweak[k], f.preTweak[k], f.load(f.cipher[k]));
+   }
+
+   /*-Length switching-------------------------------------------------------*/
+
+   /* Alternates 104 and 112-bit messages, (this used to rebuild the FF1 parameters.) */
+   @Benchmark
+   public byte[] refEncryptMixedLengths(Shared e, Frames f) {
+      int k = (f.next = (f.next + 1) & (POOL-1));
+      return e.ref.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   public byte[] packedEncryptMixedLengths(Shared e, Frames f) {
+      int k = (f.next = (f.next + 1) & (POOL-1));
+      return e.packed.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   /* A fresh engine and its first addValidSize(), (the per-key setup cost.) */
+   @Benchmark
+   public int refNewEngineAddValidSize(Shared e) {
+      return e.bridge.reference(KEY).addValidSize(104);
+   }
+
+   @Benchmark
+   public int packedNewEngineAddValidSize(Shared e) {
+      return e.bridge.packed(KEY).addValidSize(104);
+   }
+
+   /*-Hex conversion---------------------------------------------------------*/
+
+   @Benchmark
+   public byte[] hexToBytes(Shared e, Frames f) {
+      return e.bridge.hexToBytes(f.hex[f.k()]);
+   }
+
+   @Benchmark
+   public String bytesToHex(Shared e, Frames f) {
+      return e.bridge.bytesToHex(f.plain[f.k()]);
+   }
+
+   /*-Threads----------------------------------------------------------------*/
+
+   /* Single- versus all-core throughput on one shared engine. */
+   @Benchmark
+   @Threads(1)
+   public byte[] packedEncrypt1Thread(Shared e, Frames f) {
+      int k = f.k();
+      return e.packed.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   @Threads(Threads.MAX)
+   public byte[] packedEncryptAllThreads(Shared e, Frames f) {
+      int k = f.k();
+      return e.packed.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   @Threads(1)
+   public byte[] refEncrypt1Thread(Shared e, Frames f) {
+      int k = f.k();
+      return e.ref.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+   @Benchmark
+   @Threads(Threads.MAX)
+   public byte[] refEncryptAllThreads(Shared e, Frames f) {
+      int k = f.k();
+      return e.ref.encrypt(f.Tweak[k], f.preTweak[k], f.load(f.plain[k]));
+   }
+
+}